@@ -0,0 +1,315 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+
+/**
+ * The AuthBenchmark class measures the throughput and allocation of the hashing, lookup and
+ * authentication hot paths, at several thread counts, and writes the results as JSON so runs can
+ * be compared between commits.
+ *
+ * Each benchmark is run for some warmup iterations, which are discarded, and then for measured
+ * iterations of a fixed duration; every thread calls the operation in a loop, and the score is
+ * operations per second summed over the threads. Allocation is read from the JVM's per-thread
+ * allocation counters and reported per operation. The JSON follows the layout of JMH's result
+ * files, so the usual JMH result viewers and comparison scripts can read it.
+ *
+ * End-to-end authentication runs against an {@link EmbeddedUserStore} in a temporary directory, so
+ * no database server is needed. Its password hashes use the iteration count of the
+ * "auth.pbkdf2.iterations" system property, like the application.
+ *
+ * Usage:
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out AuthBenchmark [--threads 1,2,4] [--warmup 2] [--iterations 5] [--time 1000]
+ *                              [--filter hash] [--out bench-results.json]
+ */
+public class AuthBenchmark {
+
+    private static final int USERS = 10_000;
+    private static final char[] PASSWORD = "correct horse battery staple".toCharArray();
+
+    /**
+     * One benchmarked operation. Returns a value so the work cannot be optimized away.
+     */
+    @FunctionalInterface
+    private interface Operation {
+        Object run(ThreadLocalRandom random) throws Exception;
+    }
+
+    /**
+     * The result of one benchmark at one thread count.
+     */
+    private static final class Result {
+        private final String name;
+        private final int threads;
+        private final double[] opsPerSecond;
+        private final double bytesPerOp;
+
+        private Result(String name, int threads, double[] opsPerSecond, double bytesPerOp) {
+            this.name = name;
+            this.threads = threads;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    // Settings
+    private int[] threadCounts = defaultThreadCounts();
+    private int warmupIterations = 2;
+    private int measuredIterations = 5;
+    private long iterationMillis = 1000;
+    private String filter = "";
+    private Path output = Paths.get("bench-results.json");
+
+    private static volatile int sink; // consumes results
+
+
+    /**
+     * Runs the benchmarks.
+     * @param args Command line options, see the class comment.
+     * @throws Exception if the fixture cannot be set up or the results cannot be written.
+     */
+    public static void main(String[] args) throws Exception {
+        AuthBenchmark benchmark = new AuthBenchmark();
+        benchmark.parseArgs(args);
+        benchmark.runAll();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--threads": threadCounts = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                case "--warmup": warmupIterations = Integer.parseInt(value); break;
+                case "--iterations": measuredIterations = Integer.parseInt(value); break;
+                case "--time": iterationMillis = Long.parseLong(value); break;
+                case "--filter": filter = value; break;
+                case "--out": output = Paths.get(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private static int[] defaultThreadCounts() {
+        List<Integer> counts = new ArrayList<>();
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(cores);
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private void runAll() throws Exception {
+        // Fixture: an embedded store with registered users, and a handler over it
+        Path directory = Files.createTempDirectory("auth-bench");
+        EmbeddedUserStore store = new EmbeddedUserStore(directory);
+        PasswordHashing hashing = new PasswordHashing(new Pbkdf2PasswordHasher(), Runtime.getRuntime().availableProcessors(), 4096);
+        UserDatabaseHandler handler = new UserDatabaseHandler(store, new CredentialCache<>(), hashing);
+        handler.setThrottle(new LoginThrottle() {
+            // Let every attempt through: wrong and unknown logins would otherwise back off
+            @Override public void acquire(String username, String source) { }
+            @Override public void recordFailure(String username, String source) { }
+            @Override public void recordSuccess(String username, String source) { }
+        });
+        SessionManager sessions = new SessionManager();
+
+        String passwordHash = hashing.hash(PASSWORD); // one hash shared by every user keeps setup fast
+        List<UserRecord> users = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            users.add(new UserRecord("First", "Last", "user" + i, "2000-01-01", passwordHash));
+        }
+        store.insertUsers(users);
+        String[] usernames = users.stream().map(UserRecord::getUserName).toArray(String[]::new);
+        String[] tokens = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            tokens[i] = sessions.create(usernames[i]);
+        }
+
+        Sha256PasswordHasher sha256 = new Sha256PasswordHasher();
+        Pbkdf2PasswordHasher pbkdf2 = new Pbkdf2PasswordHasher();
+        byte[] digest = StoredPassword.parse(sha256.hash(PASSWORD)).getHash();
+        byte[] digestCopy = digest.clone();
+        String hex = Sha256PasswordHasher.encodeHex(digest);
+
+        Map<String, Operation> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("hash.sha256", random -> sha256.hash(PASSWORD));
+        benchmarks.put("hash.pbkdf2", random -> pbkdf2.hash(PASSWORD));
+        benchmarks.put("hex.encode", random -> Sha256PasswordHasher.encodeHex(digest));
+        benchmarks.put("hex.decode", random -> Sha256PasswordHasher.decodeHex(hex));
+        benchmarks.put("compare.constantTime", random -> PasswordHasher.constantTimeEquals(digest, digestCopy));
+        benchmarks.put("lookup.store", random -> store.findPasswordHash(usernames[random.nextInt(USERS)]));
+        benchmarks.put("lookup.handler", random -> handler.getPasswordbyUsername(usernames[random.nextInt(USERS)]));
+        benchmarks.put("auth.endToEnd", random -> handler.authenticateUser(usernames[random.nextInt(USERS)], PASSWORD));
+        benchmarks.put("auth.unknownUser", random -> handler.authenticateUser("nobody" + random.nextInt(USERS), PASSWORD));
+        benchmarks.put("session.validate", random -> sessions.validate(tokens[random.nextInt(USERS)]));
+
+        System.out.println("PBKDF2 iterations: " + pbkdf2.getIterations() + ", threads: " + Arrays.toString(threadCounts));
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Operation> benchmark : benchmarks.entrySet()) {
+                if (!benchmark.getKey().contains(filter)) {
+                    continue;
+                }
+                for (int threads : threadCounts) {
+                    Result result = run(benchmark.getKey(), benchmark.getValue(), threads);
+                    results.add(result);
+                    System.out.printf("%-22s %3d threads  %,14.1f ops/s  %,10.0f B/op%n",
+                            result.name, threads, mean(result.opsPerSecond), result.bytesPerOp);
+                }
+            }
+        } finally {
+            sessions.shutdown();
+            hashing.shutdown();
+            store.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+
+        writeJson(results);
+        System.out.println("Results written to " + output.toAbsolutePath());
+    }
+
+    /**
+     * Runs one benchmark at one thread count: warmup iterations, then measured ones.
+     */
+    private Result run(String name, Operation operation, int threads) throws InterruptedException {
+        double[] opsPerSecond = new double[measuredIterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int iteration = -warmupIterations; iteration < measuredIterations; iteration++) {
+            long[] ops = new long[threads];
+            long[] bytes = new long[threads];
+            long elapsed = runIteration(operation, threads, ops, bytes);
+            if (iteration >= 0) {
+                long iterationOps = Arrays.stream(ops).sum();
+                opsPerSecond[iteration] = iterationOps * 1e9 / elapsed;
+                totalOps += iterationOps;
+                totalBytes += Arrays.stream(bytes).sum();
+            }
+        }
+        return new Result(name, threads, opsPerSecond, totalOps == 0 ? 0 : (double) totalBytes / totalOps);
+    }
+
+    /**
+     * Runs the operation on every thread for one iteration.
+     * @return The iteration's length in nanoseconds.
+     */
+    private long runIteration(Operation operation, int threads, long[] ops, long[] bytes) throws InterruptedException {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long id = Thread.currentThread().getId();
+                try {
+                    start.await();
+                    long allocatedBefore = threadBean.getThreadAllocatedBytes(id);
+                    long count = 0;
+                    int local = 0;
+                    while (System.nanoTime() < deadline[0]) {
+                        Object result = operation.run(random);
+                        local += result == null ? 0 : result.hashCode();
+                        count++;
+                    }
+                    bytes[index] = threadBean.getThreadAllocatedBytes(id) - allocatedBefore;
+                    ops[index] = count;
+                    sink += local;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + iterationMillis * 1_000_000; // published to the workers by the latch
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Writes the results in the layout of JMH's JSON output.
+     */
+    private void writeJson(List<Result> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(output, StandardCharsets.UTF_8))) {
+            out.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                out.println("    {");
+                out.printf("        \"benchmark\" : \"AuthBenchmark.%s\",%n", result.name);
+                out.println("        \"mode\" : \"thrpt\",");
+                out.printf("        \"threads\" : %d,%n", result.threads);
+                out.printf("        \"warmupIterations\" : %d,%n", warmupIterations);
+                out.printf("        \"measurementIterations\" : %d,%n", measuredIterations);
+                out.printf("        \"measurementTime\" : \"%d ms\",%n", iterationMillis);
+                out.println("        \"primaryMetric\" : {");
+                out.printf("            \"score\" : %s,%n", number(mean(result.opsPerSecond)));
+                out.printf("            \"scoreError\" : %s,%n", number(standardDeviation(result.opsPerSecond)));
+                out.println("            \"scoreUnit\" : \"ops/s\",");
+                out.printf("            \"rawData\" : [ [ %s ] ]%n", joinNumbers(result.opsPerSecond));
+                out.println("        },");
+                out.println("        \"secondaryMetrics\" : {");
+                out.println("            \"alloc.rate.norm\" : {");
+                out.printf("                \"score\" : %s,%n", number(result.bytesPerOp));
+                out.println("                \"scoreUnit\" : \"B/op\"");
+                out.println("            }");
+                out.println("        }");
+                out.println(i + 1 < results.size() ? "    }," : "    }");
+            }
+            out.println("]");
+        }
+    }
+
+    private static double mean(double[] values) {
+        return Arrays.stream(values).average().orElse(0);
+    }
+
+    private static double standardDeviation(double[] values) {
+        if (values.length < 2) {
+            return 0;
+        }
+        double mean = mean(values);
+        double squares = Arrays.stream(values).map(v -> (v - mean) * (v - mean)).sum();
+        return Math.sqrt(squares / (values.length - 1));
+    }
+
+    private static String joinNumbers(double[] values) {
+        StringBuilder joined = new StringBuilder();
+        for (double value : values) {
+            if (joined.length() > 0) {
+                joined.append(", ");
+            }
+            joined.append(number(value));
+        }
+        return joined.toString();
+    }
+
+    private static String number(double value) {
+        return String.format(java.util.Locale.ROOT, "%.3f", value);
+    }
+}
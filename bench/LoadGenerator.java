@@ -0,0 +1,269 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+
+/**
+ * The LoadGenerator class measures how many logins per second one {@link UserDatabaseHandler}
+ * sustains, and how its latency grows with load. It registers synthetic users through the normal
+ * registration path, then sends a mix of successful, wrong-password and unknown-user logins and
+ * reports throughput and latency percentiles for each kind of login.
+ *
+ * Two modes are supported:
+ * - closed: a fixed number of virtual users each send a login, wait for the answer, and send the
+ *   next. Throughput is whatever the handler sustains.
+ * - open: logins are started at a fixed rate whether or not earlier ones have finished, like
+ *   independent clients. Latency is measured from when a login was due to start, so time spent
+ *   queueing behind a slow handler is counted rather than hidden.
+ *
+ * The handler runs over an {@link EmbeddedUserStore} in a temporary directory, so no database
+ * server is needed. Password hashes use the "auth.pbkdf2.iterations" system property.
+ *
+ * Usage:
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out LoadGenerator [--users 1000] [--mode closed|open] [--concurrency 64] [--rate 500]
+ *                              [--warmup 5] [--duration 30] [--mix 80:15:5] [--dir <store directory>]
+ */
+public class LoadGenerator {
+
+    private static final String PASSWORD = "load-test-password";
+    private static final int MAX_OUTSTANDING = 100_000; // open-loop logins in flight before new ones are skipped
+
+    /**
+     * The kinds of login the generator sends.
+     */
+    private enum Kind {
+        SUCCESS, WRONG_PASSWORD, UNKNOWN_USER
+    }
+
+    // Settings
+    private int users = 1000;
+    private boolean openLoop = false;
+    private int concurrency = 64;
+    private int rate = 500;
+    private int warmupSeconds = 5;
+    private int durationSeconds = 30;
+    private int[] mix = {80, 15, 5};
+    private Path directory;
+
+    // Results
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Kind.values().length];
+    private final LatencyHistogram allLatencies = new LatencyHistogram();
+    private final LongAdder unexpected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+
+    /**
+     * Runs the load test.
+     * @param args Command line options, see the class comment.
+     * @throws Exception if the store cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArgs(args);
+        generator.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--users": users = Integer.parseInt(value); break;
+                case "--mode": openLoop = value.equals("open"); break;
+                case "--concurrency": concurrency = Integer.parseInt(value); break;
+                case "--rate": rate = Integer.parseInt(value); break;
+                case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "--duration": durationSeconds = Integer.parseInt(value); break;
+                case "--mix":
+                    String[] parts = value.split(":");
+                    mix = new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])};
+                    break;
+                case "--dir": directory = Paths.get(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (mix[0] + mix[1] + mix[2] <= 0) {
+            throw new IllegalArgumentException("The login mix must not be all zero");
+        }
+    }
+
+    private void run() throws Exception {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        boolean temporary = directory == null;
+        Path storeDirectory = temporary ? Files.createTempDirectory("auth-load") : directory;
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        EmbeddedUserStore store = new EmbeddedUserStore(storeDirectory);
+        PasswordHashing hashing = new PasswordHashing(new Pbkdf2PasswordHasher(), cores, MAX_OUTSTANDING);
+        UserDatabaseHandler handler = new UserDatabaseHandler(store, new CredentialCache<>(), hashing);
+        handler.setThrottle(new LoginThrottle() {
+            // Let every attempt through: the generator measures logins, not the limits and backoff
+            @Override public void acquire(String username, String source) { }
+            @Override public void recordFailure(String username, String source) { }
+            @Override public void recordSuccess(String username, String source) { }
+        });
+        handler.setAuditWriter(new LoginAuditWriter(store));
+        ExecutorService executor = TaskExecutors.newPerTaskExecutor("load");
+
+        try {
+            seed(handler);
+            System.out.printf("Mode: %s, %s, mix %d:%d:%d (success:wrong password:unknown user), %s threads%n",
+                    openLoop ? "open" : "closed", openLoop ? rate + " logins/s" : concurrency + " virtual users",
+                    mix[0], mix[1], mix[2], TaskExecutors.hasVirtualThreads() ? "virtual" : "platform");
+
+            long start = System.nanoTime();
+            long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+            if (openLoop) {
+                runOpenLoop(handler, executor, start, measureFrom, end);
+            } else {
+                runClosedLoop(handler, executor, measureFrom, end);
+            }
+            report();
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            handler.close();
+            hashing.shutdown();
+            if (temporary) {
+                try (Stream<Path> files = Files.walk(storeDirectory)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the synthetic users through {@link UserDatabaseHandler#registerUserAsync}, which
+     * hashes each password and writes the user, the same way the application does.
+     */
+    private void seed(UserDatabaseHandler handler) throws InterruptedException {
+        long start = System.nanoTime();
+        Semaphore inFlight = new Semaphore(Runtime.getRuntime().availableProcessors() * 4);
+        LongAdder failed = new LongAdder();
+        List<CompletableFuture<RegistrationResult>> registrations = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            inFlight.acquire();
+            CompletableFuture<RegistrationResult> registration =
+                    handler.registerUserAsync("Load", "User", "user" + i, "2000-01-01", PASSWORD.toCharArray());
+            registration.whenComplete((result, e) -> {
+                inFlight.release();
+                if (e != null || result != RegistrationResult.SUCCESS) {
+                    failed.increment(); // already registered, in a reused directory
+                }
+            });
+            registrations.add(registration);
+        }
+        CompletableFuture.allOf(registrations.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Registered %,d users in %.1f s (%,.0f registrations/s, %d not new)%n",
+                users - failed.sum(), seconds, users / seconds, failed.sum());
+    }
+
+    /**
+     * Each virtual user sends one login at a time until the end.
+     */
+    private void runClosedLoop(UserDatabaseHandler handler, ExecutorService executor, long measureFrom, long end) {
+        List<CompletableFuture<Void>> virtualUsers = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            virtualUsers.add(CompletableFuture.runAsync(() -> {
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    login(handler, now, now >= measureFrom);
+                }
+            }, executor));
+        }
+        CompletableFuture.allOf(virtualUsers.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * Starts logins at fixed intervals, each on its own thread, until the end.
+     */
+    private void runOpenLoop(UserDatabaseHandler handler, ExecutorService executor, long start, long measureFrom, long end) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        Semaphore outstanding = new Semaphore(MAX_OUTSTANDING);
+        for (long due = start; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!outstanding.tryAcquire()) {
+                skipped.increment(); // the handler has fallen hopelessly behind
+                continue;
+            }
+            long scheduled = due;
+            executor.execute(() -> {
+                try {
+                    login(handler, scheduled, scheduled >= measureFrom);
+                } finally {
+                    outstanding.release();
+                }
+            });
+        }
+        outstanding.acquireUninterruptibly(MAX_OUTSTANDING); // let the last logins finish
+    }
+
+    /**
+     * Sends one login of a randomly chosen kind and records how long it took from the start time.
+     */
+    private void login(UserDatabaseHandler handler, long startNanos, boolean measured) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int pick = random.nextInt(mix[0] + mix[1] + mix[2]);
+        Kind kind = pick < mix[0] ? Kind.SUCCESS : pick < mix[0] + mix[1] ? Kind.WRONG_PASSWORD : Kind.UNKNOWN_USER;
+        String username = kind == Kind.UNKNOWN_USER ? "nobody" + random.nextInt(users) : "user" + random.nextInt(users);
+        String password = kind == Kind.WRONG_PASSWORD ? PASSWORD + "!" : PASSWORD;
+
+        try {
+            boolean authenticated = handler.authenticateUser(username, password.toCharArray(), "load-generator");
+            if (authenticated != (kind == Kind.SUCCESS)) {
+                unexpected.increment();
+            }
+        } catch (RuntimeException e) {
+            errors.increment(); // hashing queue full
+            if (errors.sum() == 1) {
+                System.out.println("First error: " + e);
+            }
+        }
+        if (measured) {
+            long elapsed = System.nanoTime() - startNanos;
+            latencies[kind.ordinal()].record(elapsed);
+            allLatencies.record(elapsed);
+        }
+    }
+
+    private void report() {
+        System.out.printf("%-16s %10s %12s %10s %10s %10s %10s %10s%n",
+                "Login", "Count", "Logins/s", "p50 ms", "p99 ms", "p99.9 ms", "Max ms", "Mean ms");
+        for (Kind kind : Kind.values()) {
+            reportLine(kind.name().toLowerCase().replace('_', ' '), latencies[kind.ordinal()].snapshot());
+        }
+        reportLine("all", allLatencies.snapshot());
+        System.out.printf("Unexpected outcomes: %d, errors: %d, skipped starts: %d%n", unexpected.sum(), errors.sum(), skipped.sum());
+    }
+
+    private void reportLine(String label, LatencyHistogram.Snapshot snapshot) {
+        System.out.printf("%-16s %,10d %,12.1f %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+                label, snapshot.getCount(), snapshot.getCount() / (double) durationSeconds,
+                snapshot.getValueAtPercentile(50) / 1e6, snapshot.getValueAtPercentile(99) / 1e6,
+                snapshot.getValueAtPercentile(99.9) / 1e6, snapshot.getMax() / 1e6, snapshot.getMean() / 1e6);
+    }
+}
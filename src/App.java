@@ -2,19 +2,41 @@
  * @author Akshun Kalra, October 17, 2023
  */
 
+// Imports
+import java.nio.file.Paths;
+import javax.swing.SwingUtilities;
+
 
 /**
  * The `App` class serves as the entry point for the application.
- * It initializes the graphical user interface (GUI) and displays the main application window.
+ * By default it initializes the graphical user interface (GUI) and displays the main application window.
+ * Started with {@code --headless [port]}, it instead runs the authentication service as a local HTTP
+ * endpoint, with no display needed. {@code --import <file> [batchSize]} registers every user in a CSV
+ * or JSON-lines file.
  */
 public class App {
     public static void main(String[] args) throws Exception {
+        long started = System.nanoTime();
+
+        // Bulk import: register every user in a CSV or JSON-lines file, then exit
+        if (args.length > 1 && args[0].equals("--import")) {
+            int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : BulkImporter.DEFAULT_BATCH_SIZE;
+            new BulkImporter(new UserDatabaseHandler(), batchSize).importFile(Paths.get(args[1]));
+            return;
+        }
+
+        // Headless mode: serve register/login over HTTP until the process is stopped
+        if (args.length > 0 && args[0].equals("--headless")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : AuthServer.DEFAULT_PORT;
+            AuthServer server = new AuthServer(new AuthService(new UserDatabaseHandler()), port);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "auth-server-shutdown")); // graceful shutdown on Ctrl+C / SIGTERM
+            server.start();
+            return;
+        }
             
-        // Create a new instance of the `Gui` class
-        UserInterface UI = new UserInterface();
+        // Create and show the main application window on the Event Dispatch Thread.
+        // The user store and the logo are loaded in the background, so the window appears at once.
+        SwingUtilities.invokeLater(() -> new UserInterface(started).show());
 
-        // Show the main application window
-        UI.show();
-        
     }
 }
@@ -0,0 +1,389 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+
+/**
+ * The AuthMetrics class counts and times what the authentication hot path does, so it can be seen
+ * where login time goes in production. It keeps:
+ * - counters of logins by outcome, of registrations by result, and of store errors;
+ * - latency histograms of the whole login, the password hash lookup, the hash verification, and
+ *   the store write of a registration;
+ * - gauges, read on demand from the cache, connection pool, throttle and other components.
+ *
+ * Counters are striped {@link LongAdder}s and histograms are lock-free {@link LatencyHistogram}s,
+ * so recording costs a few nanoseconds and never makes threads wait on each other.
+ *
+ * The metrics can be read over JMX, as the attributes of the "ProfileAuthenticator:type=AuthMetrics"
+ * MBean, and as Prometheus-style text from {@link #scrape()}, which the headless server serves at
+ * GET /metrics. When the "auth.metrics.spans" system property is true, every login is also printed
+ * as a one-line timing span.
+ */
+public class AuthMetrics implements DynamicMBean {
+
+    public static final String OBJECT_NAME = "ProfileAuthenticator:type=AuthMetrics";
+
+    private static AuthMetrics defaultMetrics; // shared by the handlers and services of the application
+
+    /**
+     * How a login attempt ended.
+     */
+    public enum LoginOutcome {
+        SUCCESS, WRONG_PASSWORD, UNKNOWN_USER, THROTTLED, BUSY
+    }
+
+    /**
+     * A value read when the metrics are read.
+     */
+    private static class Gauge {
+        private final String help;
+        private final DoubleSupplier value;
+
+        private Gauge(String help, DoubleSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    // Attributes
+    private final LongAdder[] logins = newAdders(LoginOutcome.values().length);
+    private final LongAdder[] registrations = newAdders(RegistrationResult.values().length);
+    private final LongAdder storeErrors = new LongAdder();
+    private final LatencyHistogram loginTime = new LatencyHistogram();
+    private final LatencyHistogram lookupTime = new LatencyHistogram();
+    private final LatencyHistogram hashTime = new LatencyHistogram();
+    private final LatencyHistogram registrationTime = new LatencyHistogram();
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private volatile Consumer<String> spanSink; // receives timing spans when set
+
+
+    // Constructor
+
+    /**
+     * Creates an empty set of metrics, not registered with JMX.
+     */
+    public AuthMetrics() {
+    }
+
+    /**
+     * Returns the metrics shared by the application, creating them and registering them with the
+     * platform MBean server on first use.
+     * @return The shared metrics.
+     */
+    public static synchronized AuthMetrics getDefault() {
+        if (defaultMetrics == null) {
+            defaultMetrics = new AuthMetrics();
+            if (Boolean.getBoolean("auth.metrics.spans")) {
+                defaultMetrics.setSpanSink(System.out::println);
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(defaultMetrics, new ObjectName(OBJECT_NAME));
+            }
+            catch (JMException e) {
+                System.out.println(e); // still counted, only not visible over JMX
+            }
+        }
+        return defaultMetrics;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+
+    // Recording
+
+    /**
+     * Records a login attempt.
+     * @param username The username that was tried, used only in spans.
+     * @param outcome How the attempt ended.
+     * @param lookupNanos The time spent finding the stored password hash, or -1 if it was not looked up.
+     * @param hashNanos The time spent verifying the password, or -1 if it was not verified.
+     * @param totalNanos The time the whole attempt took.
+     */
+    public void recordLogin(String username, LoginOutcome outcome, long lookupNanos, long hashNanos, long totalNanos) {
+        logins[outcome.ordinal()].increment();
+        loginTime.record(totalNanos);
+        if (lookupNanos >= 0) {
+            lookupTime.record(lookupNanos);
+        }
+        if (hashNanos >= 0) {
+            hashTime.record(hashNanos);
+        }
+
+        Consumer<String> sink = spanSink;
+        if (sink != null) {
+            sink.accept(String.format(Locale.ROOT, "span login user=%s outcome=%s lookup=%.3fms hash=%.3fms total=%.3fms",
+                    username, outcome.name().toLowerCase(Locale.ROOT), Math.max(lookupNanos, 0) / 1e6,
+                    Math.max(hashNanos, 0) / 1e6, totalNanos / 1e6));
+        }
+    }
+
+    /**
+     * Records a registration written to the store.
+     * @param username The username registered, used only in spans.
+     * @param result The outcome.
+     * @param storeNanos The time the store write took.
+     */
+    public void recordRegistration(String username, RegistrationResult result, long storeNanos) {
+        registrations[result.ordinal()].increment();
+        registrationTime.record(storeNanos);
+
+        Consumer<String> sink = spanSink;
+        if (sink != null) {
+            sink.accept(String.format(Locale.ROOT, "span register user=%s result=%s store=%.3fms",
+                    username, result.name().toLowerCase(Locale.ROOT), storeNanos / 1e6));
+        }
+    }
+
+    /**
+     * Records a failed call to the user store.
+     */
+    public void recordStoreError() {
+        storeErrors.increment();
+    }
+
+    /**
+     * Adds a gauge, or replaces the one with the same name.
+     * @param name The metric name, such as "auth_pool_active_connections".
+     * @param help A one-line description.
+     * @param value Reads the current value; called whenever the metrics are read, from any thread.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+
+    // Reading
+
+    /**
+     * @param outcome The outcome to count.
+     * @return The number of login attempts that ended with it.
+     */
+    public long getLoginCount(LoginOutcome outcome) {
+        return logins[outcome.ordinal()].sum();
+    }
+
+    /**
+     * @param result The result to count.
+     * @return The number of registrations that ended with it.
+     */
+    public long getRegistrationCount(RegistrationResult result) {
+        return registrations[result.ordinal()].sum();
+    }
+
+    /**
+     * @return The number of failed calls to the user store.
+     */
+    public long getStoreErrorCount() {
+        return storeErrors.sum();
+    }
+
+    /**
+     * @return The durations of whole login attempts.
+     */
+    public LatencyHistogram getLoginTime() {
+        return loginTime;
+    }
+
+    /**
+     * @return The durations of password hash lookups.
+     */
+    public LatencyHistogram getLookupTime() {
+        return lookupTime;
+    }
+
+    /**
+     * @return The durations of password verifications.
+     */
+    public LatencyHistogram getHashTime() {
+        return hashTime;
+    }
+
+    /**
+     * @return The durations of registration store writes.
+     */
+    public LatencyHistogram getRegistrationTime() {
+        return registrationTime;
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     * @return The metrics text.
+     */
+    public String scrape() {
+        StringBuilder text = new StringBuilder(4096);
+        header(text, "auth_logins_total", "Login attempts by outcome.", "counter");
+        for (LoginOutcome outcome : LoginOutcome.values()) {
+            text.append("auth_logins_total{outcome=\"").append(outcome.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                    .append(logins[outcome.ordinal()].sum()).append('\n');
+        }
+        header(text, "auth_registrations_total", "Registrations by result.", "counter");
+        for (RegistrationResult result : RegistrationResult.values()) {
+            text.append("auth_registrations_total{result=\"").append(result.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                    .append(registrations[result.ordinal()].sum()).append('\n');
+        }
+        header(text, "auth_store_errors_total", "Failed calls to the user store.", "counter");
+        text.append("auth_store_errors_total ").append(storeErrors.sum()).append('\n');
+
+        summary(text, "auth_login_seconds", "Time of whole login attempts.", loginTime);
+        summary(text, "auth_lookup_seconds", "Time to find a stored password hash.", lookupTime);
+        summary(text, "auth_hash_seconds", "Time to verify a password against its hash.", hashTime);
+        summary(text, "auth_registration_store_seconds", "Time to write a registration to the store.", registrationTime);
+
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            header(text, gauge.getKey(), gauge.getValue().help, "gauge");
+            text.append(gauge.getKey()).append(' ').append(number(readGauge(gauge.getValue()))).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        header(text, name, help, "summary");
+        for (String quantile : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+            double seconds = snapshot.getValueAtPercentile(Double.parseDouble(quantile) * 100) / 1e9;
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(number(seconds)).append('\n');
+        }
+        text.append(name).append("_sum ").append(number(snapshot.getMean() * snapshot.getCount() / 1e9)).append('\n');
+        text.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+    }
+
+    private static double readGauge(Gauge gauge) {
+        try {
+            return gauge.value.getAsDouble();
+        }
+        catch (RuntimeException e) {
+            return Double.NaN; // the component is closed or failing
+        }
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * @return Every metric as a flat map of JMX attribute names to values.
+     */
+    private Map<String, Object> attributes() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (LoginOutcome outcome : LoginOutcome.values()) {
+            values.put("logins_" + outcome.name().toLowerCase(Locale.ROOT), logins[outcome.ordinal()].sum());
+        }
+        for (RegistrationResult result : RegistrationResult.values()) {
+            values.put("registrations_" + result.name().toLowerCase(Locale.ROOT), registrations[result.ordinal()].sum());
+        }
+        values.put("store_errors", storeErrors.sum());
+        putPercentiles(values, "login", loginTime);
+        putPercentiles(values, "lookup", lookupTime);
+        putPercentiles(values, "hash", hashTime);
+        putPercentiles(values, "registration_store", registrationTime);
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), readGauge(gauge.getValue()));
+        }
+        return values;
+    }
+
+    private static void putPercentiles(Map<String, Object> values, String name, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        values.put(name + "_count", snapshot.getCount());
+        values.put(name + "_p50_ms", snapshot.getValueAtPercentile(50) / 1e6);
+        values.put(name + "_p99_ms", snapshot.getValueAtPercentile(99) / 1e6);
+        values.put(name + "_p999_ms", snapshot.getValueAtPercentile(99.9) / 1e6);
+        values.put(name + "_max_ms", snapshot.getMax() / 1e6);
+    }
+
+
+    // DynamicMBean, every metric is a read-only attribute
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = attributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> values = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (values.containsKey(name)) {
+                list.add(new Attribute(name, values.get(name)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Object> values = attributes();
+        MBeanAttributeInfo[] infos = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            infos[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Authentication metrics", infos, null,
+                new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+
+
+    // Setters
+
+    /**
+     * Set where per-request timing spans are sent.
+     *
+     * @param spanSink Receives one line per login and registration, or null for no spans.
+     */
+    public void setSpanSink(Consumer<String> spanSink) {
+        this.spanSink = spanSink;
+    }
+}
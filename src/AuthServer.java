@@ -0,0 +1,442 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The AuthServer class exposes an {@link AuthService} over a small local HTTP endpoint, so
+ * registration and login work without a display and for many clients at once.
+ * Every request runs on its own (virtual, when available) thread. When the service is
+ * saturated the server answers 503 straight away instead of queueing the request.
+ *
+ * Endpoints (request bodies are form-encoded, {@code application/x-www-form-urlencoded}):
+ * - POST /register  firstName, lastName, userName, dateOfBirth, password  -> 201, or 409 if the username is taken
+ * - POST /login     userName, password                                    -> 200 or 401, or 429 after too many attempts
+ *                   a 200 carries a session token in the X-Session-Token header
+ * - GET  /session   header "Authorization: Bearer <token>"                -> 200 with the username, or 401
+ * - POST /logout    header "Authorization: Bearer <token>"                -> 200, or 401 if there is no such session
+ * - GET  /profile   header "Authorization: Bearer <token>"                -> 200 with the profile as name=value lines, or 401
+ * - POST /profile   firstName, lastName, dateOfBirth, version; bearer     -> 200 with the new version, or 409 if the profile
+ *                                                                          changed since that version was loaded
+ * - POST /password  currentPassword, newPassword; bearer                  -> 200 with a new session token in X-Session-Token
+ *                                                                          (all other sessions end), 401, or 429
+ * - GET  /username?userName=<name>                                       -> 200 with availability=AVAILABLE, TAKEN or UNKNOWN
+ *                                                                          and, when taken, suggestions=<free names>
+ * - GET  /metrics                                                         -> 200 with the metrics in Prometheus text format
+ * - GET  /health                                                          -> 200
+ *
+ * The server only listens on 127.0.0.1, so remote clients reach it through a local reverse proxy.
+ * The login throttle limits each client address; the proxy must append the client's address to
+ * an X-Forwarded-For header, since every connection it makes comes from the same loopback address.
+ */
+public class AuthServer {
+
+    public static final int DEFAULT_PORT = 8080;
+    private static final int MAX_BODY_BYTES = 8 * 1024;
+    private static final int SHUTDOWN_GRACE_SECONDS = 5;
+    private static final int USERNAME_SUGGESTIONS = 3;
+
+    // Attributes
+    private final AuthService service;
+    private final HttpServer server;
+    private final ExecutorService executor = TaskExecutors.newPerTaskExecutor("auth-http");
+
+
+    // Constructor
+
+    /**
+     * Creates a server bound to the loopback interface.
+     * @param service The service that handles the requests.
+     * @param port The TCP port to listen on.
+     * @throws IOException if the port cannot be bound.
+     */
+    public AuthServer(AuthService service, int port) throws IOException {
+        this.service = service;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.setExecutor(executor);
+        server.createContext("/register", this::handleRegister);
+        server.createContext("/login", this::handleLogin);
+        server.createContext("/session", this::handleSession);
+        server.createContext("/logout", this::handleLogout);
+        server.createContext("/profile", this::handleProfile);
+        server.createContext("/password", this::handlePassword);
+        server.createContext("/username", this::handleUsername);
+        server.createContext("/metrics", exchange -> respond(exchange, 200, service.getMetrics().scrape()));
+        server.createContext("/health", exchange -> respond(exchange, 200, "ok"));
+    }
+
+
+    // Methods
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+        System.out.println("Authentication service listening on http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    /**
+     * Stops accepting new connections, gives requests in flight a few seconds to finish,
+     * then releases the service's threads and database connections.
+     */
+    public void stop() {
+        server.stop(SHUTDOWN_GRACE_SECONDS);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        service.shutdown();
+        System.out.println("Authentication service stopped");
+    }
+
+    /**
+     * Handles POST /register.
+     */
+    private void handleRegister(HttpExchange exchange) throws IOException {
+        Map<String, String> form = readForm(exchange);
+        if (form == null) {
+            return;
+        }
+        String userName = form.get("userName");
+        String password = form.get("password");
+        if (isBlank(userName) || isBlank(password) || isBlank(form.get("firstName"))
+                || isBlank(form.get("lastName")) || isBlank(form.get("dateOfBirth"))) {
+            respond(exchange, 400, "firstName, lastName, userName, dateOfBirth and password are required");
+            return;
+        }
+        try {
+            LocalDate.parse(form.get("dateOfBirth")); // checked before any hashing or store work
+        } catch (DateTimeParseException e) {
+            respond(exchange, 400, "dateOfBirth must be YYYY-MM-DD");
+            return;
+        }
+
+        char[] passwordChars = password.toCharArray();
+        try {
+            RegistrationResult result = service.register(form.get("firstName"), form.get("lastName"), userName, form.get("dateOfBirth"), passwordChars);
+            if (result == RegistrationResult.SUCCESS) {
+                respond(exchange, 201, "registered");
+            } else if (result == RegistrationResult.DUPLICATE_USERNAME) {
+                respond(exchange, 409, "username already taken");
+            } else {
+                respond(exchange, 500, "registration failed");
+            }
+        } catch (RejectedExecutionException e) {
+            respondBusy(exchange);
+        } finally {
+            Arrays.fill(passwordChars, '\0');
+        }
+    }
+
+    /**
+     * Handles POST /login.
+     */
+    private void handleLogin(HttpExchange exchange) throws IOException {
+        Map<String, String> form = readForm(exchange);
+        if (form == null) {
+            return;
+        }
+        String userName = form.get("userName");
+        String password = form.get("password");
+        if (isBlank(userName) || password == null) {
+            respond(exchange, 400, "userName and password are required");
+            return;
+        }
+
+        char[] passwordChars = password.toCharArray();
+        try {
+            String source = clientAddress(exchange);
+            String token = service.startSession(userName, passwordChars, source);
+            if (token != null) {
+                exchange.getResponseHeaders().set("X-Session-Token", token);
+                respond(exchange, 200, "authenticated");
+            } else {
+                respond(exchange, 401, "invalid username or password");
+            }
+        } catch (LoginThrottledException e) {
+            exchange.getResponseHeaders().set("Retry-After", Long.toString(Math.max(1, (e.getRetryAfterMillis() + 999) / 1000)));
+            respond(exchange, 429, "too many login attempts, retry later");
+        } catch (RejectedExecutionException e) {
+            respondBusy(exchange);
+        } finally {
+            Arrays.fill(passwordChars, '\0');
+        }
+    }
+
+    /**
+     * Handles GET /session: tells which user a session token belongs to, extending the session.
+     */
+    private void handleSession(HttpExchange exchange) throws IOException {
+        String userName = service.validateSession(bearerToken(exchange));
+        if (userName != null) {
+            respond(exchange, 200, userName);
+        } else {
+            respond(exchange, 401, "invalid or expired session");
+        }
+    }
+
+    /**
+     * Handles POST /logout.
+     */
+    private void handleLogout(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "POST required");
+            return;
+        }
+        if (service.logout(bearerToken(exchange))) {
+            respond(exchange, 200, "logged out");
+        } else {
+            respond(exchange, 401, "invalid or expired session");
+        }
+    }
+
+    /**
+     * Handles GET /profile and POST /profile, for the user the session token belongs to.
+     */
+    private void handleProfile(HttpExchange exchange) throws IOException {
+        String userName = service.validateSession(bearerToken(exchange));
+        if (userName == null) {
+            respond(exchange, 401, "invalid or expired session");
+            return;
+        }
+
+        try {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                UserProfile profile = service.loadProfile(userName);
+                if (profile == null) {
+                    respond(exchange, 404, "no such user");
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", "\"" + profile.getVersion() + "\"");
+                respond(exchange, 200, "userName=" + profile.getUserName()
+                        + "\nfirstName=" + profile.getFirstName()
+                        + "\nlastName=" + profile.getLastName()
+                        + "\ndateOfBirth=" + profile.getDateOfBirthText()
+                        + "\nlastLogged=" + (profile.getLastLogged() == null ? "" : profile.getLastLogged())
+                        + "\nversion=" + profile.getVersion());
+                return;
+            }
+
+            Map<String, String> form = readForm(exchange);
+            if (form == null) {
+                return;
+            }
+            long version;
+            try {
+                version = Long.parseLong(form.getOrDefault("version", ""));
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "version is required");
+                return;
+            }
+            if (isBlank(form.get("firstName")) || isBlank(form.get("lastName")) || isBlank(form.get("dateOfBirth"))) {
+                respond(exchange, 400, "firstName, lastName, dateOfBirth and version are required");
+                return;
+            }
+
+            ProfileUpdateResult result;
+            try {
+                result = service.updateProfile(userName, form.get("firstName"), form.get("lastName"), form.get("dateOfBirth"), version);
+            } catch (DateTimeParseException e) {
+                respond(exchange, 400, "dateOfBirth must be YYYY-MM-DD");
+                return;
+            }
+            if (result == ProfileUpdateResult.SUCCESS) {
+                respond(exchange, 200, "version=" + (version + 1));
+            } else if (result == ProfileUpdateResult.VERSION_CONFLICT) {
+                respond(exchange, 409, "the profile was changed since it was loaded; load it again");
+            } else if (result == ProfileUpdateResult.NOT_FOUND) {
+                respond(exchange, 404, "no such user");
+            } else {
+                respond(exchange, 500, "update failed");
+            }
+        } catch (RejectedExecutionException e) {
+            respondBusy(exchange);
+        }
+    }
+
+    /**
+     * Handles GET /username: tells whether a username is free, from memory, for sign-up forms.
+     */
+    private void handleUsername(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        Map<String, String> form = decodeForm(query == null ? "" : query);
+        if (form == null) {
+            respond(exchange, 400, "malformed query string");
+            return;
+        }
+        String userName = form.get("userName");
+        if (isBlank(userName)) {
+            respond(exchange, 400, "userName is required");
+            return;
+        }
+        UsernameAvailability availability = service.checkUsername(userName);
+        respond(exchange, 200, "availability=" + availability + (availability == UsernameAvailability.TAKEN
+                ? "\nsuggestions=" + String.join(",", service.suggestUsernames(userName, USERNAME_SUGGESTIONS)) : ""));
+    }
+
+    /**
+     * Handles POST /password, for the user the session token belongs to.
+     */
+    private void handlePassword(HttpExchange exchange) throws IOException {
+        String userName = service.validateSession(bearerToken(exchange));
+        if (userName == null) {
+            respond(exchange, 401, "invalid or expired session");
+            return;
+        }
+        Map<String, String> form = readForm(exchange);
+        if (form == null) {
+            return;
+        }
+        String currentPassword = form.get("currentPassword");
+        String newPassword = form.get("newPassword");
+        if (currentPassword == null || isBlank(newPassword)) {
+            respond(exchange, 400, "currentPassword and newPassword are required");
+            return;
+        }
+
+        char[] currentChars = currentPassword.toCharArray();
+        char[] newChars = newPassword.toCharArray();
+        try {
+            String source = clientAddress(exchange);
+            String token = service.changePassword(userName, currentChars, newChars, source);
+            if (token != null) {
+                exchange.getResponseHeaders().set("X-Session-Token", token);
+                respond(exchange, 200, "password changed");
+            } else {
+                respond(exchange, 401, "current password is wrong");
+            }
+        } catch (LoginThrottledException e) {
+            exchange.getResponseHeaders().set("Retry-After", Long.toString(Math.max(1, (e.getRetryAfterMillis() + 999) / 1000)));
+            respond(exchange, 429, "too many attempts, retry later");
+        } catch (RejectedExecutionException e) {
+            respondBusy(exchange);
+        } finally {
+            Arrays.fill(currentChars, '\0');
+            Arrays.fill(newChars, '\0');
+        }
+    }
+
+    /**
+     * Returns the address of the client, for the login throttle. A connection from loopback is a
+     * local process or a reverse proxy, so the last X-Forwarded-For entry, the one the proxy
+     * appended, is used when there is one.
+     * @return The client's address.
+     */
+    private static String clientAddress(HttpExchange exchange) {
+        InetAddress peer = exchange.getRemoteAddress().getAddress();
+        String forwarded = exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+        if (peer.isLoopbackAddress() && forwarded != null) {
+            String client = forwarded.substring(forwarded.lastIndexOf(',') + 1).trim();
+            if (!client.isEmpty()) {
+                return client;
+            }
+        }
+        return peer.getHostAddress();
+    }
+
+    /**
+     * @return The token of an "Authorization: Bearer" header, or null if there is none.
+     */
+    private static String bearerToken(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return null;
+        }
+        return authorization.substring(7).trim();
+    }
+
+    /**
+     * Reads a form-encoded POST body. Answers the request itself and returns null if it is not a
+     * POST, the body is too large, or it is not validly encoded.
+     */
+    private Map<String, String> readForm(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "POST required");
+            return null;
+        }
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (body.length > MAX_BODY_BYTES) {
+            respond(exchange, 413, "request body too large");
+            return null;
+        }
+
+        Map<String, String> form = decodeForm(new String(body, StandardCharsets.UTF_8));
+        if (form == null) {
+            respond(exchange, 400, "malformed form body");
+        }
+        return form;
+    }
+
+    /**
+     * Decodes name=value pairs separated by '&', as in form bodies and query strings.
+     * @return The pairs, or null if a '%' escape is malformed.
+     */
+    private static Map<String, String> decodeForm(String encoded) {
+        Map<String, String> form = new HashMap<>();
+        try {
+            for (String pair : encoded.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    form.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return form;
+    }
+
+    private void respondBusy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        respond(exchange, 503, "service busy, retry later");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+
+    // Getters
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The AuthService class is the register/login core shared by every front end: the Swing
+ * {@link UserInterface} and the headless {@link AuthServer}. It wraps one pooled
+ * {@link UserDatabaseHandler} and limits how many requests may be in flight at once. Requests
+ * beyond that limit are rejected immediately with a {@link RejectedExecutionException} instead
+ * of queueing behind a saturated connection pool.
+ * A successful login can start a session in the {@link SessionManager}; later requests then
+ * present the session token instead of the password.
+ */
+public class AuthService {
+
+    // Attributes
+    private final UserDatabaseHandler dbHandler;
+    private final SessionManager sessions;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final ExecutorService executor = TaskExecutors.newPerTaskExecutor("auth-request");
+    private final LongAdder rejected = new LongAdder();
+
+
+    // Constructors
+
+    /**
+     * Creates a service that allows as many requests in flight as the handler's store serves well
+     * at once (for MySQL, twice the pool's connections), so the store is kept busy without letting waiters pile up.
+     * @param dbHandler The handler that does the database and hashing work.
+     */
+    public AuthService(UserDatabaseHandler dbHandler) {
+        this(dbHandler, dbHandler.getStore().getConcurrencyHint());
+    }
+
+    /**
+     * Creates a service with an explicit in-flight limit.
+     * @param dbHandler The handler that does the database and hashing work.
+     * @param maxInFlight The maximum number of requests processed at once.
+     */
+    public AuthService(UserDatabaseHandler dbHandler, int maxInFlight) {
+        this(dbHandler, maxInFlight, SessionManager.getDefault());
+    }
+
+    /**
+     * Creates a service with an explicit in-flight limit and session manager.
+     * @param dbHandler The handler that does the database and hashing work.
+     * @param maxInFlight The maximum number of requests processed at once.
+     * @param sessions The manager that issues and checks session tokens.
+     */
+    public AuthService(UserDatabaseHandler dbHandler, int maxInFlight, SessionManager sessions) {
+        this.dbHandler = dbHandler;
+        this.sessions = sessions;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+
+        AuthMetrics metrics = dbHandler.getMetrics();
+        metrics.gauge("auth_requests_in_flight", "Requests being processed.", () -> maxInFlight - inFlight.availablePermits());
+        metrics.gauge("auth_requests_rejected", "Requests rejected because the service was saturated.", rejected::sum);
+        metrics.gauge("auth_sessions_active", "Sessions that have not ended.", sessions::getActiveCount);
+    }
+
+
+    // Methods
+
+    /**
+     * Registers a new user, hashing the password with the current algorithm. A username the
+     * username index knows is taken is refused before the password is hashed.
+     * @param firstName The user's first name.
+     * @param lastName The user's last name.
+     * @param userName The user's username.
+     * @param dateOfBirth The user's date of birth (YYYY-MM-DD).
+     * @param password The user's plain text password characters.
+     * @return SUCCESS, DUPLICATE_USERNAME if the username is already registered, or ERROR.
+     * @throws RejectedExecutionException if the service is saturated.
+     */
+    public RegistrationResult register(String firstName, String lastName, String userName, String dateOfBirth, char[] password) {
+        if (dbHandler.checkUsername(userName) == UsernameAvailability.TAKEN) {
+            return RegistrationResult.DUPLICATE_USERNAME;
+        }
+        acquire();
+        try {
+            String passwordHash = dbHandler.getHashing().hash(password);
+            return dbHandler.writeUserData(firstName, lastName, userName, dateOfBirth, passwordHash);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Tells whether a username can be registered. It is answered from memory, so it is cheap enough
+     * to call on every keystroke and does not count against the in-flight limit.
+     * @param userName The username, as typed.
+     * @return AVAILABLE, TAKEN, or UNKNOWN while the username index is loading.
+     */
+    public UsernameAvailability checkUsername(String userName) {
+        return dbHandler.checkUsername(userName);
+    }
+
+    /**
+     * Suggests free usernames close to a taken one.
+     * @param userName The username, as typed.
+     * @param count The number of suggestions wanted.
+     * @return Up to count free usernames; empty while the username index is loading.
+     */
+    public List<String> suggestUsernames(String userName, int count) {
+        return dbHandler.suggestUsernames(userName, count);
+    }
+
+    /**
+     * Authenticates a user.
+     * @param userName The username of the user to authenticate.
+     * @param password The password characters entered by the user.
+     * @return True if the password matches the stored password hash.
+     * @throws LoginThrottledException if the user has made too many attempts.
+     * @throws RejectedExecutionException if the service is saturated.
+     */
+    public boolean login(String userName, char[] password) {
+        return login(userName, password, null);
+    }
+
+    /**
+     * Authenticates a user, counting the attempt against its source as well as the username.
+     * @param userName The username of the user to authenticate.
+     * @param password The password characters entered by the user.
+     * @param source Where the attempt comes from, such as the client address, or null if unknown.
+     * @return True if the password matches the stored password hash.
+     * @throws LoginThrottledException if the user or the source has made too many attempts.
+     * @throws RejectedExecutionException if the service is saturated.
+     */
+    public boolean login(String userName, char[] password, String source) {
+        acquire();
+        try {
+            return dbHandler.authenticateUser(userName, password, source);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Authenticates a user and, if the password matches, starts a session.
+     * @param userName The username of the user to authenticate.
+     * @param password The password characters entered by the user.
+     * @param source Where the attempt comes from, such as the client address, or null if unknown.
+     * @return The session token, or null if the username or password is wrong.
+     * @throws LoginThrottledException if the user or the source has made too many attempts.
+     * @throws RejectedExecutionException if the service is saturated.
+     */
+    public String startSession(String userName, char[] password, String source) {
+        return login(userName, password, source) ? sessions.create(userName) : null;
+    }
+
+    /**
+     * Checks a session token. This needs no password check or database access, so it is never rejected as busy.
+     * @param token The token returned by {@link #startSession(String, char[], String)}.
+     * @return The user the session belongs to, or null if the token is invalid or the session has ended.
+     */
+    public String validateSession(String token) {
+        SessionManager.Session session = sessions.validate(token);
+        return session == null ? null : session.getUsername();
+    }
+
+    /**
+     * Ends a session.
+     * @param token The session token.
+     * @return True if the session existed.
+     */
+    public boolean logout(String token) {
+        return sessions.revoke(token);
+    }
+
+    /**
+     * Loads a user's profile, from the profile cache when possible.
+     * @param userName The user to load.
+     * @return The profile, or null if the user is not registered or the store cannot be reached.
+     * @throws RejectedExecutionException if the service is saturated.
+     */
+    public UserProfile loadProfile(String userName) {
+        acquire();
+        try {
+            return dbHandler.loadProfile(userName);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Saves a user's names and date of birth, unless the profile changed since the caller loaded it.
+     * @param userName The user to update.
+     * @param firstName The new first name.
+     * @param lastName The new last name.
+     * @param dateOfBirth The new date of birth (YYYY-MM-DD).
+     * @param version The version of the profile the changes were made to, from {@link UserProfile#getVersion()}.
+     * @return SUCCESS, VERSION_CONFLICT if the profile was changed meanwhile, NOT_FOUND, or ERROR.
+     * @throws java.time.format.DateTimeParseException if the date of birth is not a valid date.
+     * @throws RejectedExecutionException if the service is saturated.
+     */
+    public ProfileUpdateResult updateProfile(String userName, String firstName, String lastName, String dateOfBirth, long version) {
+        acquire();
+        try {
+            // Start from the stored profile, so the update and the cache invalidation use the username as stored
+            UserProfile profile = dbHandler.loadProfile(userName);
+            if (profile == null) {
+                return ProfileUpdateResult.NOT_FOUND;
+            }
+            profile.setFirstName(firstName);
+            profile.setLastName(lastName);
+            profile.setDateOfBirth(dateOfBirth);
+            profile.setVersion(version);
+            return dbHandler.updateProfile(profile);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Changes a user's password after checking the current one, then ends all of the user's
+     * sessions, so a stolen session does not outlive the password, and starts a new one.
+     * @param userName The user whose password changes.
+     * @param currentPassword The user's current password characters.
+     * @param newPassword The new password characters.
+     * @param source Where the request comes from, such as the client address, or null if unknown.
+     * @return A new session token, or null if the current password is wrong or the password was not changed.
+     * @throws LoginThrottledException if the user or the source has made too many attempts.
+     * @throws RejectedExecutionException if the service is saturated.
+     */
+    public String changePassword(String userName, char[] currentPassword, char[] newPassword, String source) {
+        acquire();
+        try {
+            if (!dbHandler.changePassword(userName, currentPassword, newPassword, source)) {
+                return null;
+            }
+        } finally {
+            inFlight.release();
+        }
+        sessions.revokeAll(userName);
+        return sessions.create(userName);
+    }
+
+    /**
+     * Registers a new user in the background.
+     * @see #register(String, String, String, String, char[])
+     * @return A future completed with the outcome, or exceptionally if the service is saturated.
+     */
+    public CompletableFuture<RegistrationResult> registerAsync(String firstName, String lastName, String userName, String dateOfBirth, char[] password) {
+        char[] copy = password.clone();   // the caller may clear its array before the task runs
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return register(firstName, lastName, userName, dateOfBirth, copy);
+            } finally {
+                Arrays.fill(copy, '\0');
+            }
+        }, executor);
+    }
+
+    /**
+     * Authenticates a user in the background.
+     * @see #login(String, char[])
+     * @return A future completed with true if the password matches, or exceptionally if the attempt is
+     *         throttled or the service is saturated.
+     */
+    public CompletableFuture<Boolean> loginAsync(String userName, char[] password) {
+        char[] copy = password.clone();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return login(userName, copy);
+            } finally {
+                Arrays.fill(copy, '\0');
+            }
+        }, executor);
+    }
+
+    /**
+     * Authenticates a user and starts a session, in the background.
+     * @see #startSession(String, char[], String)
+     * @return A future completed with the session token, or null if the username or password is wrong;
+     *         or exceptionally if the attempt is throttled or the service is saturated.
+     */
+    public CompletableFuture<String> startSessionAsync(String userName, char[] password) {
+        char[] copy = password.clone();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return startSession(userName, copy, null);
+            } finally {
+                Arrays.fill(copy, '\0');
+            }
+        }, executor);
+    }
+
+    /**
+     * Takes an in-flight slot, or rejects the request right away if none is free.
+     */
+    private void acquire() {
+        if (!inFlight.tryAcquire()) {
+            rejected.increment();
+            throw new RejectedExecutionException("Authentication service is busy");
+        }
+    }
+
+    /**
+     * Stops accepting background work, saves sessions if they are persisted, writes out queued
+     * login events, and releases the hashing threads and the user store.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        sessions.shutdown();
+        dbHandler.getHashing().shutdown();
+        dbHandler.close();
+    }
+
+
+    // Getters
+
+    /**
+     * @return The manager that issues and checks session tokens.
+     */
+    public SessionManager getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @return The metrics the handler records logins and registrations in.
+     */
+    public AuthMetrics getMetrics() {
+        return dbHandler.getMetrics();
+    }
+
+    /**
+     * @return The handler that does the database and hashing work.
+     */
+    public UserDatabaseHandler getDbHandler() {
+        return dbHandler;
+    }
+
+    /**
+     * @return The number of requests currently being processed.
+     */
+    public int getInFlightCount() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * @return The number of requests rejected because the service was saturated.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
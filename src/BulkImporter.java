@@ -0,0 +1,353 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The BulkImporter class registers many users from a file, for example during a migration.
+ * The file is read lazily, one batch at a time, so its size does not matter. Passwords of a batch
+ * are hashed in parallel on all cores while the previous batch is written, and each batch is
+ * inserted as one JDBC batch in its own transaction. A failing batch is reported and skipped;
+ * the rest of the import carries on.
+ *
+ * Two formats are accepted, chosen by file extension:
+ * - .csv: a header line naming the columns firstName, lastName, userName, dateOfBirth, password
+ *   (in any order), then one user per line.
+ * - .jsonl: one flat JSON object per line with those same keys.
+ */
+public class BulkImporter {
+
+    public static final int DEFAULT_BATCH_SIZE = 1_000;
+    private static final String[] FIELDS = {"firstName", "lastName", "userName", "dateOfBirth", "password"};
+
+    // Attributes
+    private final UserDatabaseHandler dbHandler;
+    private final int batchSize;
+    private final PasswordHasher hasher;
+
+    // Progress
+    private long imported;
+    private long failed;
+    private long skipped;
+    private int batchNumber;
+
+
+    // Constructor
+
+    /**
+     * Creates an importer.
+     * @param dbHandler The handler the users are written through.
+     * @param batchSize The number of users inserted per batch and transaction.
+     */
+    public BulkImporter(UserDatabaseHandler dbHandler, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.dbHandler = dbHandler;
+        this.batchSize = batchSize;
+        this.hasher = dbHandler.getHashing().getCurrentHasher();
+    }
+
+
+    // Methods
+
+    /**
+     * Imports every user in a file, printing progress and throughput after each batch and a summary at the end.
+     * @param file The CSV or JSON-lines file.
+     * @return The number of users imported.
+     * @throws IOException if the file cannot be read.
+     */
+    public long importFile(Path file) throws IOException {
+        boolean json = file.getFileName().toString().endsWith(".jsonl");
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService hashingPool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "import-hashing-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.nanoTime();
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int[] columns = json ? null : readCsvHeader(reader.readLine());
+            long lineNumber = json ? 0 : 1;
+
+            // Read a batch, start hashing it, then write the previous batch while this one hashes
+            CompletableFuture<List<UserRecord>> pending = null;
+            List<String[]> rows = new ArrayList<>(batchSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                String[] row = json ? parseJsonLine(line) : parseCsvLine(line, columns);
+                if (row == null) {
+                    skipped++;
+                    System.out.println("Skipping line " + lineNumber + ": missing or malformed fields");
+                    continue;
+                }
+                rows.add(row);
+                if (rows.size() == batchSize) {
+                    CompletableFuture<List<UserRecord>> hashing = hashBatch(rows, hashingPool);
+                    if (pending != null) {
+                        writeBatch(pending.join(), start);
+                    }
+                    pending = hashing;
+                    rows = new ArrayList<>(batchSize);
+                }
+            }
+            if (!rows.isEmpty()) {
+                CompletableFuture<List<UserRecord>> hashing = hashBatch(rows, hashingPool);
+                if (pending != null) {
+                    writeBatch(pending.join(), start);
+                }
+                pending = hashing;
+            }
+            if (pending != null) {
+                writeBatch(pending.join(), start);
+            }
+        } finally {
+            hashingPool.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Import finished: %d imported, %d failed, %d skipped in %.1f s (%.0f rows/s)%n",
+                imported, failed, skipped, seconds, imported / Math.max(seconds, 1e-9));
+        return imported;
+    }
+
+    /**
+     * Hashes the passwords of a batch in parallel.
+     * @param rows The parsed rows, in {@link #FIELDS} order.
+     * @param pool The threads to hash on.
+     * @return A future completed with the batch ready to insert.
+     */
+    private CompletableFuture<List<UserRecord>> hashBatch(List<String[]> rows, ExecutorService pool) {
+        List<CompletableFuture<UserRecord>> records = new ArrayList<>(rows.size());
+        for (String[] row : rows) {
+            records.add(CompletableFuture.supplyAsync(() -> {
+                char[] password = row[4].toCharArray();
+                try {
+                    return new UserRecord(row[0], row[1], row[2], row[3], hasher.hash(password));
+                } finally {
+                    Arrays.fill(password, '\0');
+                }
+            }, pool));
+        }
+        return CompletableFuture.allOf(records.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    List<UserRecord> batch = new ArrayList<>(records.size());
+                    for (CompletableFuture<UserRecord> record : records) {
+                        batch.add(record.join());
+                    }
+                    return batch;
+                });
+    }
+
+    /**
+     * Inserts one batch and prints progress. A failing batch is reported and counted, not rethrown.
+     */
+    private void writeBatch(List<UserRecord> batch, long start) {
+        batchNumber++;
+        try {
+            dbHandler.writeUserDataBatch(batch);
+            imported += batch.size();
+        } catch (UserStoreException e) {
+            failed += batch.size();
+            System.out.println("Batch " + batchNumber + " failed (" + batch.size() + " users, first username '"
+                    + batch.get(0).getUserName() + "'): " + e);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Batch %d: %d imported, %d failed so far, %.0f rows/s%n",
+                batchNumber, imported, failed, imported / Math.max(seconds, 1e-9));
+    }
+
+    /**
+     * Maps the CSV header to the position of each field.
+     * @param header The first line of the file.
+     * @return For each of {@link #FIELDS}, the column it is in.
+     * @throws IOException if the header is missing a field.
+     */
+    private static int[] readCsvHeader(String header) throws IOException {
+        if (header == null) {
+            throw new IOException("CSV file is empty");
+        }
+        List<String> names = splitCsv(header);
+        int[] columns = new int[FIELDS.length];
+        for (int i = 0; i < FIELDS.length; i++) {
+            columns[i] = -1;
+            for (int c = 0; c < names.size(); c++) {
+                if (names.get(c).trim().equalsIgnoreCase(FIELDS[i])) {
+                    columns[i] = c;
+                }
+            }
+            if (columns[i] < 0) {
+                throw new IOException("CSV header is missing the '" + FIELDS[i] + "' column");
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Parses a CSV line into the fields in {@link #FIELDS} order.
+     * @return The fields, or null if any is missing or empty.
+     */
+    private static String[] parseCsvLine(String line, int[] columns) {
+        List<String> values = splitCsv(line);
+        String[] row = new String[FIELDS.length];
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (columns[i] >= values.size() || values.get(columns[i]).isEmpty()) {
+                return null;
+            }
+            row[i] = values.get(columns[i]);
+        }
+        return row;
+    }
+
+    /**
+     * Splits a CSV line on commas. Fields may be quoted with '"', and '""' inside quotes is a literal quote.
+     */
+    private static List<String> splitCsv(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        values.add(field.toString());
+        return values;
+    }
+
+    /**
+     * Parses a flat JSON object with string values into the fields in {@link #FIELDS} order.
+     * @return The fields, or null if the line is malformed or a field is missing or empty.
+     */
+    private static String[] parseJsonLine(String line) {
+        Map<String, String> object = new HashMap<>();
+        int[] pos = {skipWhitespace(line, 0)};
+        if (pos[0] >= line.length() || line.charAt(pos[0]) != '{') {
+            return null;
+        }
+        pos[0]++;
+        while (true) {
+            pos[0] = skipWhitespace(line, pos[0]);
+            if (pos[0] < line.length() && line.charAt(pos[0]) == '}') {
+                break;
+            }
+            String key = readJsonString(line, pos);
+            pos[0] = skipWhitespace(line, pos[0]);
+            if (key == null || pos[0] >= line.length() || line.charAt(pos[0]) != ':') {
+                return null;
+            }
+            pos[0] = skipWhitespace(line, pos[0] + 1);
+            String value = readJsonString(line, pos);
+            if (value == null) {
+                return null;
+            }
+            object.put(key, value);
+            pos[0] = skipWhitespace(line, pos[0]);
+            if (pos[0] < line.length() && line.charAt(pos[0]) == ',') {
+                pos[0]++;
+            } else if (pos[0] >= line.length() || line.charAt(pos[0]) != '}') {
+                return null;
+            }
+        }
+
+        String[] row = new String[FIELDS.length];
+        for (int i = 0; i < FIELDS.length; i++) {
+            row[i] = object.get(FIELDS[i]);
+            if (row[i] == null || row[i].isEmpty()) {
+                return null;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Reads a JSON string starting at pos[0], advancing pos[0] past it.
+     * @return The unescaped string, or null if there is no well-formed string at that position.
+     */
+    private static String readJsonString(String line, int[] pos) {
+        int i = pos[0];
+        if (i >= line.length() || line.charAt(i) != '"') {
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        for (i++; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                pos[0] = i + 1;
+                return value.toString();
+            }
+            if (c == '\\') {
+                if (++i >= line.length()) {
+                    return null;
+                }
+                char escaped = line.charAt(i);
+                switch (escaped) {
+                    case 'n': value.append('\n'); break;
+                    case 't': value.append('\t'); break;
+                    case 'r': value.append('\r'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'u':
+                        if (i + 4 >= line.length()) {
+                            return null;
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        i += 4;
+                        break;
+                    default: value.append(escaped);   // \" \\ \/
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        return null;
+    }
+
+    private static int skipWhitespace(String line, int i) {
+        while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
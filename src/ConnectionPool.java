@@ -0,0 +1,456 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.sql.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The ConnectionPool class keeps a bounded set of JDBC connections that can be shared
+ * safely by many threads. Connections are validated when borrowed, evicted when idle for
+ * too long, recycled once they reach their maximum lifetime, and borrowers give up after
+ * a configurable acquire timeout instead of waiting forever.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    // Default tuning values
+    public static final int DEFAULT_MAX_SIZE = 10;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 5_000;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 600_000;     // 10 minutes
+    public static final long DEFAULT_MAX_LIFETIME_MILLIS = 1_800_000;   // 30 minutes
+    private static final long VALIDATION_BYPASS_MILLIS = 500;           // skip validation for connections returned very recently
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long HOUSEKEEPING_PERIOD_MILLIS = 30_000;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;         // prepared statements kept open per connection
+
+    // Attributes
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long maxLifetimeMillis;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger total = new AtomicInteger();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    // Metrics
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+
+
+    // Constructors
+
+    /**
+     * Creates a pool with the default size and timeouts.
+     * @param url The JDBC URL of the database.
+     * @param user The database user name.
+     * @param password The database password.
+     */
+    public ConnectionPool(String url, String user, String password) {
+        this(url, user, password, DEFAULT_MAX_SIZE, DEFAULT_ACQUIRE_TIMEOUT_MILLIS,
+                DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_MAX_LIFETIME_MILLIS);
+    }
+
+    /**
+     * Creates a pool with explicit size and timeouts.
+     * @param url The JDBC URL of the database.
+     * @param user The database user name.
+     * @param password The database password.
+     * @param maxSize The maximum number of open connections.
+     * @param acquireTimeoutMillis How long a borrower waits for a free connection before failing.
+     * @param idleTimeoutMillis How long a connection may sit unused before it is closed.
+     * @param maxLifetimeMillis How long a connection may live before it is recycled.
+     */
+    public ConnectionPool(String url, String user, String password, int maxSize,
+                          long acquireTimeoutMillis, long idleTimeoutMillis, long maxLifetimeMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.permits = new Semaphore(maxSize, true); // fair, so waiting threads are served in order
+
+        // Background thread that closes idle and expired connections
+        housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleWithFixedDelay(this::evictIdle, HOUSEKEEPING_PERIOD_MILLIS,
+                HOUSEKEEPING_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+
+    // Methods
+
+    /**
+     * Borrows a connection from the pool, opening a new one if none is idle.
+     * The returned connection must be closed to give it back to the pool.
+     * @return A validated pooled connection.
+     * @throws SQLTimeoutException if no connection becomes free within the acquire timeout.
+     * @throws SQLException if the pool is closed or a new connection cannot be opened.
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLTimeoutException("Timed out after " + acquireTimeoutMillis + " ms waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        waitNanos.add(System.nanoTime() - start);
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {   // most recently used first, it is the most likely to still be alive
+                if (isUsable(pooled)) {
+                    break;
+                }
+                discard(pooled);
+            }
+            if (pooled == null) {
+                pooled = open();
+            }
+            pooled.returned = false;
+            active.incrementAndGet();
+            acquired.increment();
+            return pooled;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a borrowed connection back to the pool. Called from {@link PooledConnection#close()}.
+     * @param pooled The connection being returned.
+     */
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        try {
+            long now = System.currentTimeMillis();
+            if (closed || pooled.broken || now - pooled.createdAt >= maxLifetimeMillis) {
+                discard(pooled);
+                return;
+            }
+
+            // Reset state a borrower may have changed
+            Connection con = pooled.connection;
+            if (!con.getAutoCommit()) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+            pooled.lastUsed = now;
+            idle.offerFirst(pooled);
+            if (closed && idle.removeFirstOccurrence(pooled)) {
+                discard(pooled); // close() drained the idle connections before this one was offered
+            }
+        } catch (SQLException e) {
+            discard(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Checks whether an idle connection can be handed out again.
+     * @param pooled The idle connection.
+     * @return True if it is within its lifetime and idle limits and still answers the server.
+     */
+    private boolean isUsable(PooledConnection pooled) {
+        long now = System.currentTimeMillis();
+        if (now - pooled.createdAt >= maxLifetimeMillis || now - pooled.lastUsed >= idleTimeoutMillis) {
+            return false;
+        }
+        if (now - pooled.lastUsed < VALIDATION_BYPASS_MILLIS) {
+            return true;
+        }
+        try {
+            return pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a new physical connection.
+     * @return The new pooled connection.
+     * @throws SQLException if the database cannot be reached.
+     */
+    private PooledConnection open() throws SQLException {
+        Connection con = DriverManager.getConnection(url, user, password);
+        total.incrementAndGet();
+        created.increment();
+        return new PooledConnection(con);
+    }
+
+    /**
+     * Closes a physical connection and removes it from the pool's accounting.
+     * @param pooled The connection to close.
+     */
+    private void discard(PooledConnection pooled) {
+        total.decrementAndGet();
+        evicted.increment();
+        try {
+            pooled.closeStatements();
+            pooled.connection.close();
+        } catch (SQLException e) {
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Closes idle connections that have been unused for too long or have outlived their maximum lifetime.
+     * Runs periodically on the housekeeping thread.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> it = idle.iterator();
+        while (it.hasNext()) {
+            PooledConnection pooled = it.next();
+            if (now - pooled.lastUsed >= idleTimeoutMillis || now - pooled.createdAt >= maxLifetimeMillis) {
+                if (idle.removeFirstOccurrence(pooled)) {   // a borrower may have taken it in the meantime
+                    discard(pooled);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the pool and every idle connection. Connections still borrowed are closed when returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+
+    // Getters
+
+    /**
+     * @return The maximum number of open connections.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return The number of connections currently borrowed.
+     */
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    /**
+     * @return The number of open connections waiting in the pool.
+     */
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * @return The number of open physical connections, borrowed or idle.
+     */
+    public int getTotalConnections() {
+        return total.get();
+    }
+
+    /**
+     * @return The number of threads currently waiting for a connection.
+     */
+    public int getWaitingThreads() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * @return The average time, in milliseconds, borrowers waited for a connection.
+     */
+    public double getAverageWaitMillis() {
+        long count = acquired.sum();
+        return count == 0 ? 0.0 : waitNanos.sum() / 1_000_000.0 / count;
+    }
+
+    /**
+     * @return The number of borrow attempts that gave up after the acquire timeout.
+     */
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return The number of physical connections opened since the pool was created.
+     */
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    /**
+     * @return The number of physical connections closed since the pool was created.
+     */
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * @return The number of prepared statements served from a connection's statement cache.
+     */
+    public long getStatementCacheHitCount() {
+        return statementHits.sum();
+    }
+
+    /**
+     * @return The number of prepared statements that had to be prepared because they were not cached.
+     */
+    public long getStatementCacheMissCount() {
+        return statementMisses.sum();
+    }
+
+    /**
+     * @return A one-line summary of the pool metrics.
+     */
+    @Override
+    public String toString() {
+        return String.format("ConnectionPool[active=%d, idle=%d, total=%d/%d, waiting=%d, avgWait=%.2fms, timeouts=%d]",
+                getActiveConnections(), getIdleConnections(), getTotalConnections(), maxSize,
+                getWaitingThreads(), getAverageWaitMillis(), getTimeoutCount());
+    }
+
+
+    /**
+     * A connection borrowed from the pool. Closing it returns the underlying connection to the pool
+     * instead of closing it. Each connection keeps its own LRU cache of prepared statements, so a
+     * query that runs often is prepared once per connection and then only executed.
+     */
+    public class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final long createdAt;
+        private volatile long lastUsed;
+        private boolean broken;
+        private boolean returned;
+
+        // Prepared statements keyed by SQL text, least recently used first.
+        // Only the borrowing thread touches it, so it needs no locking.
+        private final LinkedHashMap<String, PreparedStatement> statements =
+                new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() > DEFAULT_STATEMENT_CACHE_SIZE) {
+                            closeQuietly(eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.createdAt = System.currentTimeMillis();
+            this.lastUsed = createdAt;
+        }
+
+        /**
+         * Returns a prepared statement for the given SQL, reusing the cached one when this
+         * connection has already prepared it. The statement belongs to the cache and must not
+         * be closed by the caller; its result sets should be closed as soon as they are read.
+         * @param sql The SQL text, used as the cache key.
+         * @return A prepared statement with its parameters and batch cleared.
+         * @throws SQLException if the statement cannot be prepared.
+         */
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt != null && !stmt.isClosed()) {
+                statementHits.increment();
+                stmt.clearParameters();
+                stmt.clearBatch();   // a failed batch may have left rows behind
+                return stmt;
+            }
+            statementMisses.increment();
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+            return stmt;
+        }
+
+        /**
+         * Closes every cached prepared statement. Called before the physical connection is closed.
+         */
+        private void closeStatements() {
+            for (PreparedStatement stmt : statements.values()) {
+                closeQuietly(stmt);
+            }
+            statements.clear();
+        }
+
+        private void closeQuietly(Statement stmt) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                System.out.println(e);
+            }
+        }
+
+        /**
+         * @return The underlying JDBC connection. It must not be closed directly.
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Marks the connection as unusable so it is closed instead of being returned to the pool.
+         * Call this after an error that may have left the connection in a bad state.
+         */
+        public void markBroken() {
+            broken = true;
+        }
+
+        /**
+         * Returns the connection to the pool. Calling this more than once has no effect.
+         */
+        @Override
+        public void close() {
+            if (!returned) {
+                returned = true;
+                release(this);
+            }
+        }
+    }
+}
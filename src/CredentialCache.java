@@ -0,0 +1,284 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The CredentialCache class keeps recently looked-up credentials in memory so repeated logins
+ * for the same user do not go to the database every time.
+ * Entries expire after a time-to-live, the number of entries is bounded (oldest entries are
+ * evicted first), and unknown usernames are cached as negative entries with a shorter TTL.
+ * Usernames are keyed the way the store compares them (see {@link Usernames#fold}), so
+ * invalidating "alice" also forgets what was cached for "Alice".
+ *
+ * Writers invalidate a username after changing its credential. A lookup that started before an
+ * invalidation is not cached, see {@link #startLoad()}, so a hash read just before a password
+ * change, or a "not found" read just before a registration, cannot be put back after it.
+ * The cache is safe to use from many threads at once.
+ *
+ * @param <V> The type of the cached credential.
+ */
+public class CredentialCache<V> {
+
+    // Default tuning values
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+    public static final long DEFAULT_TTL_MILLIS = 300_000;          // 5 minutes
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 10_000;  // 10 seconds
+
+    // Attributes
+    private final int maxSize;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry<V>> insertionOrder = new ConcurrentLinkedQueue<>(); // oldest first
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong generation = new AtomicLong(); // advanced by every invalidation
+
+    // Metrics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+
+    // Constructors
+
+    /**
+     * Creates a cache with the default size and TTLs.
+     */
+    public CredentialCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+    /**
+     * Creates a cache with explicit size and TTLs.
+     * @param maxSize The maximum number of cached usernames.
+     * @param ttlMillis How long a found credential stays cached.
+     * @param negativeTtlMillis How long an unknown username stays cached as not found.
+     */
+    public CredentialCache(int maxSize, long ttlMillis, long negativeTtlMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+
+    // Methods
+
+    /**
+     * Looks up a username in the cache.
+     * @param username The username to look up.
+     * @return The cached entry, or null if the username is not cached (or its entry has expired).
+     *         A returned entry with {@link Entry#isNegative()} means the user is known not to exist.
+     */
+    public Entry<V> get(String username) {
+        String key = Usernames.fold(username);
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            if (entries.remove(key, entry)) {
+                expirations.increment();
+            }
+            misses.increment();
+            return null;
+        }
+        if (entry.isNegative()) {
+            negativeHits.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Call before reading a credential from the store, and pass the result to {@link #put}.
+     * @return A stamp that tells whether anything was invalidated since.
+     */
+    public long startLoad() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the credential read for a username, unless a username was invalidated since the read started.
+     * @param username The username.
+     * @param credential The credential, or null to remember that the username does not exist.
+     * @param loadStarted The stamp from {@link #startLoad()} taken before the read.
+     * @return True if the credential was cached.
+     */
+    public boolean put(String username, V credential, long loadStarted) {
+        if (generation.get() != loadStarted) {
+            return false; // may be older than a write that has already invalidated it
+        }
+        String key = Usernames.fold(username);
+        long ttl = credential == null ? negativeTtlMillis : ttlMillis;
+        Entry<V> entry = new Entry<>(key, credential, System.currentTimeMillis() + ttl);
+        entries.put(key, entry);
+        if (generation.get() != loadStarted) {
+            entries.remove(key, entry); // an invalidation ran between the check and the put
+            return false;
+        }
+        insertionOrder.offer(entry);
+        queued.incrementAndGet();
+
+        // Keep the cache bounded. Queue nodes of replaced or invalidated entries are skipped,
+        // since remove(key, entry) only succeeds for the entry that is still live.
+        while (queued.get() > maxSize) {
+            Entry<V> oldest = insertionOrder.poll();
+            if (oldest == null) {
+                break;
+            }
+            queued.decrementAndGet();
+            if (entries.remove(oldest.username, oldest)) {
+                evictions.increment();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes a username from the cache. Call this whenever the user's credential changes,
+     * for example after registration or a password change.
+     * @param username The username to forget.
+     */
+    public void invalidate(String username) {
+        generation.incrementAndGet();
+        if (entries.remove(Usernames.fold(username)) != null) {
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Removes every entry from the cache.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+        insertionOrder.clear();
+        queued.set(0);
+    }
+
+
+    // Getters
+
+    /**
+     * @return The number of entries currently cached, including expired entries not yet removed.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The maximum number of cached usernames.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return The number of lookups answered with a cached credential.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of lookups answered with a cached "user not found".
+     */
+    public long getNegativeHitCount() {
+        return negativeHits.sum();
+    }
+
+    /**
+     * @return The number of lookups that had to go to the database.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of entries removed to keep the cache within its maximum size.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of entries removed because their TTL had passed.
+     */
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return The number of entries removed by {@link #invalidate(String)}.
+     */
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return The fraction of lookups answered from the cache, between 0 and 1.
+     */
+    public double getHitRatio() {
+        long found = hits.sum() + negativeHits.sum();
+        long lookups = found + misses.sum();
+        return lookups == 0 ? 0.0 : (double) found / lookups;
+    }
+
+    /**
+     * @return A one-line summary of the cache metrics.
+     */
+    @Override
+    public String toString() {
+        return String.format("CredentialCache[size=%d/%d, hits=%d, negativeHits=%d, misses=%d, evictions=%d, expirations=%d, hitRatio=%.2f]",
+                size(), maxSize, getHitCount(), getNegativeHitCount(), getMissCount(),
+                getEvictionCount(), getExpirationCount(), getHitRatio());
+    }
+
+
+    /**
+     * A cached credential, or a cached "user not found" when {@link #isNegative()} is true.
+     *
+     * @param <V> The type of the cached credential.
+     */
+    public static final class Entry<V> {
+        private final String username; // folded
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(String username, V value, long expiresAt) {
+            this.username = username;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return The cached credential, or null for a negative entry.
+         */
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * @return True if this entry records that the username does not exist.
+         */
+        public boolean isNegative() {
+            return value == null;
+        }
+    }
+}
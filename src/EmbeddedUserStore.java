@@ -0,0 +1,899 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+
+/**
+ * The EmbeddedUserStore class keeps users in a local file instead of a database server, for
+ * single-node installs and for running without MySQL.
+ *
+ * Every change is appended to "users.log" in the store's directory and never rewritten in place.
+ * All users are also held in memory, indexed by username, so a password lookup is a hash map read.
+ * Usernames are matched like MySQL's default collation (see {@link Usernames#fold}): "alice"
+ * and "Alice" are one user, so the caches in front of any store can key by the folded name.
+ * On startup the log is replayed to rebuild the index; a record torn by a crash is detected by its
+ * checksum and cut off. A log written when names were matched exactly may hold two users whose
+ * names differ only in case, accents or trailing spaces: the later one is renamed with a numeric
+ * suffix ("Alice-2"), the rename is printed, and the log is compacted so it is kept.
+ *
+ * Writes are fsynced in groups: a writer appends its record and then waits until the log has been
+ * forced to disk past it. Only one thread forces at a time, and every record appended meanwhile is
+ * made durable by the next force, so concurrent registrations share one fsync instead of paying for one each.
+ * A change becomes visible to lookups only once it is on disk; until then only later writers see
+ * it. If a force fails, no change after the last successful one is ever shown and the store
+ * refuses further writes until it is reopened, since what reached the disk is then unknown.
+ *
+ * Profile updates, password changes and deletions leave the old record in the log. A background task rewrites the log with only
+ * the current users once more than half of it is superseded.
+ *
+ * Login events go to a separate text file, "logins.log", one tab-separated line per attempt
+ * (time, username, SUCCESS or FAILURE, source), appended and fsynced once per batch.
+ */
+public class EmbeddedUserStore implements UserStore {
+
+    public static final String LOG_FILE = "users.log";
+    public static final String AUDIT_FILE = "logins.log";
+    private static final String COMPACT_FILE = "users.log.compact";
+    private static final String LOCK_FILE = "users.lock";
+
+    private static final byte OP_INSERT = 1;
+    private static final byte OP_UPDATE_HASH = 2;
+    private static final byte OP_DELETE = 3;
+    private static final byte OP_UPDATE_PROFILE = 4;
+    private static final int HEADER_BYTES = 8; // payload length and CRC32 of the payload
+    private static final int MAX_RECORD_BYTES = 1 << 20; // anything longer is a corrupt length
+
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+    private static final int COMPACTION_MIN_GARBAGE = 1000; // superseded records before compaction is worth it
+
+    /**
+     * A user as held in memory. Immutable; a profile update or password change replaces the entry.
+     */
+    private static final class Entry {
+        private final long userId;
+        private final UserRecord user;
+
+        private Entry(long userId, UserRecord user) {
+            this.userId = userId;
+            this.user = user;
+        }
+    }
+
+    /**
+     * A change appended to the log but not yet shown to lookups.
+     */
+    private static final class Change {
+        private final long position;  // the group commit position that makes it durable
+        private final String key;     // the folded username
+        private final Entry entry;    // the user's new entry, or null if the change deletes it
+        private final Entry replaced; // the entry it replaces, or null for a new user
+
+        private Change(long position, String key, Entry entry, Entry replaced) {
+            this.position = position;
+            this.key = key;
+            this.entry = entry;
+            this.replaced = replaced;
+        }
+    }
+
+    // Attributes
+    private final Path directory;
+    private final ConcurrentHashMap<String, Entry> byUsername = new ConcurrentHashMap<>(); // folded username -> entry
+    private final ConcurrentSkipListMap<Long, Entry> byUserId = new ConcurrentSkipListMap<>(); // registration order, for streaming
+    private final AtomicLong credentialStamp = new AtomicLong(); // XOR of every user's credential hash, see getCredentialStamp()
+    private final FileChannel lockChannel;
+    private final FileLock processLock; // keeps a second store from opening the same files
+    private final ScheduledExecutorService compactor;
+    private final FileChannel auditLog; // guarded by its own monitor
+
+    // Guarded by writeLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile FileChannel log;
+    private long nextUserId = 1;
+    private long logRecords; // records in the log, live or superseded
+    private final Map<String, String> renamedOnReplay = new HashMap<>(); // spelling in the log -> name given on replay
+    private final ArrayDeque<Change> unpublished = new ArrayDeque<>(); // in log order
+    private final HashMap<String, Change> pending = new HashMap<>(); // folded username -> its latest unpublished change
+
+    // Group commit: positions are counted in bytes ever appended, so they keep growing across compactions
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private volatile long appendedBytes;
+    private long syncedBytes;  // guarded by syncLock
+    private boolean syncing;   // guarded by syncLock
+    private volatile IOException syncFailure; // set once a force fails; no later write is published
+
+
+    // Constructor
+
+    /**
+     * Opens the store in a directory, creating it if needed, and replays the log into memory.
+     * @param directory The directory holding the store's files.
+     * @throws IOException if the directory cannot be used or the store is already open, in this or another process.
+     */
+    public EmbeddedUserStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null; // already open in this JVM
+        }
+        processLock = acquired;
+        if (processLock == null) {
+            lockChannel.close();
+            throw new IOException("User store " + directory + " is already open");
+        }
+
+        Files.deleteIfExists(directory.resolve(COMPACT_FILE)); // left over from a compaction that did not finish
+        Path logPath = directory.resolve(LOG_FILE);
+        long validBytes = replay(logPath);
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (log.size() > validBytes) {
+            System.out.println("Discarding " + (log.size() - validBytes) + " bytes of incomplete records at the end of " + logPath);
+            log.truncate(validBytes);
+            log.force(true);
+        }
+        log.position(validBytes);
+        if (!renamedOnReplay.isEmpty()) {
+            compact(); // keep the renames, so they are not made again on every start
+            renamedOnReplay.clear();
+        }
+        auditLog = FileChannel.open(directory.resolve(AUDIT_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "user-store-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfWorthwhile, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+
+    // Methods
+
+    @Override
+    public RegistrationResult insertUser(UserRecord user) throws UserStoreException {
+        long position;
+        writeLock.lock();
+        try {
+            checkWritable();
+            if (findLatest(user.getUserName()) != null) {
+                return RegistrationResult.DUPLICATE_USERNAME;
+            }
+            Entry entry = new Entry(nextUserId, user);
+            position = append(insertRecord(entry));
+            nextUserId++;
+            stage(position, entry, null);
+        } catch (IOException e) {
+            throw new UserStoreException("Could not insert user " + user.getUserName(), e);
+        } finally {
+            writeLock.unlock();
+        }
+        awaitPublished(position);
+        return RegistrationResult.SUCCESS;
+    }
+
+    /**
+     * Appends every user in one write and waits for a single fsync.
+     */
+    @Override
+    public void insertUsers(List<UserRecord> users) throws UserStoreException {
+        if (users.isEmpty()) {
+            return;
+        }
+        long position;
+        writeLock.lock();
+        try {
+            checkWritable();
+            // Check every username first, so a duplicate leaves nothing written
+            Set<String> batchNames = new HashSet<>();
+            for (UserRecord user : users) {
+                if (findLatest(user.getUserName()) != null || !batchNames.add(Usernames.fold(user.getUserName()))) {
+                    throw new UserStoreException("Username " + user.getUserName() + " is already registered; no users were inserted");
+                }
+            }
+
+            ByteArrayOutputStream records = new ByteArrayOutputStream(users.size() * 128);
+            Entry[] entries = new Entry[users.size()];
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = new Entry(nextUserId + i, users.get(i));
+                records.write(insertRecord(entries[i]));
+            }
+            position = append(records.toByteArray());
+            logRecords += entries.length - 1; // append counted one record
+            nextUserId += entries.length;
+            for (Entry entry : entries) {
+                stage(position, entry, null);
+            }
+        } catch (IOException e) {
+            throw new UserStoreException("Could not insert " + users.size() + " users", e);
+        } finally {
+            writeLock.unlock();
+        }
+        awaitPublished(position);
+    }
+
+    @Override
+    public String findPasswordHash(String username) {
+        Entry entry = find(username);
+        return entry == null ? null : entry.user.getPasswordHash();
+    }
+
+    @Override
+    public Map<String, String> findPasswordHashes(Collection<String> usernames) {
+        Map<String, String> found = new HashMap<>();
+        for (String username : usernames) {
+            Entry entry = find(username);
+            if (entry != null) {
+                found.put(username, entry.user.getPasswordHash());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads the in-memory entry; the last login time is not kept by this store, so it is always null.
+     */
+    @Override
+    public UserProfile findProfile(String username, Set<UserQuery.Column> columns) {
+        Entry entry = find(username);
+        return entry == null ? null : profile(entry.user, columns);
+    }
+
+    @Override
+    public ProfileUpdateResult updateProfile(UserProfile profile) throws UserStoreException {
+        String username = profile.getUserName();
+        long position;
+        writeLock.lock();
+        try {
+            checkWritable();
+            Entry current = findLatest(username);
+            if (current == null) {
+                return ProfileUpdateResult.NOT_FOUND;
+            }
+            UserRecord user = current.user;
+            if (user.getVersion() != profile.getVersion()) {
+                return ProfileUpdateResult.VERSION_CONFLICT;
+            }
+            // Details the profile did not load are kept as stored
+            UserRecord updated = new UserRecord(
+                    profile.getFirstName() != null ? profile.getFirstName() : user.getFirstName(),
+                    profile.getLastName() != null ? profile.getLastName() : user.getLastName(),
+                    user.getUserName(),
+                    profile.getDateOfBirthText() != null ? profile.getDateOfBirthText() : user.getDateOfBirth(),
+                    user.getPasswordHash(), user.getVersion() + 1);
+            position = append(profileRecord(updated));
+            stage(position, new Entry(current.userId, updated), current);
+        } catch (IOException e) {
+            throw new UserStoreException("Could not update the profile of user " + username, e);
+        } finally {
+            writeLock.unlock();
+        }
+        awaitPublished(position);
+        return ProfileUpdateResult.SUCCESS;
+    }
+
+    @Override
+    public boolean replacePasswordHash(String username, String expectedHash, String passwordHash) throws UserStoreException {
+        return setPasswordHash(username, expectedHash, passwordHash);
+    }
+
+    @Override
+    public boolean updatePasswordHash(String username, String passwordHash) throws UserStoreException {
+        return setPasswordHash(username, null, passwordHash);
+    }
+
+    /**
+     * Replaces a user's password hash, if it is the expected one or no hash is expected.
+     */
+    private boolean setPasswordHash(String username, String expectedHash, String passwordHash) throws UserStoreException {
+        long position;
+        writeLock.lock();
+        try {
+            checkWritable();
+            Entry current = findLatest(username);
+            if (current == null || (expectedHash != null && !expectedHash.equals(current.user.getPasswordHash()))) {
+                return false;
+            }
+            position = append(updateRecord(current.user.getUserName(), passwordHash));
+            stage(position, new Entry(current.userId, withPasswordHash(current.user, passwordHash)), current);
+        } catch (IOException e) {
+            throw new UserStoreException("Could not update the password of user " + username, e);
+        } finally {
+            writeLock.unlock();
+        }
+        awaitPublished(position);
+        return true;
+    }
+
+    private static UserRecord withPasswordHash(UserRecord user, String passwordHash) {
+        return new UserRecord(user.getFirstName(), user.getLastName(), user.getUserName(), user.getDateOfBirth(),
+                passwordHash, user.getVersion());
+    }
+
+    @Override
+    public boolean deleteUser(String username) throws UserStoreException {
+        long position;
+        writeLock.lock();
+        try {
+            checkWritable();
+            Entry current = findLatest(username);
+            if (current == null) {
+                return false;
+            }
+            position = append(deleteRecord(current.user.getUserName()));
+            stage(position, null, current);
+        } catch (IOException e) {
+            throw new UserStoreException("Could not delete user " + username, e);
+        } finally {
+            writeLock.unlock();
+        }
+        awaitPublished(position);
+        return true;
+    }
+
+    @Override
+    public void recordLogins(List<LoginEvent> events) throws UserStoreException {
+        StringBuilder lines = new StringBuilder(events.size() * 64);
+        for (LoginEvent event : events) {
+            lines.append(event.getOccurredAt()).append('\t')
+                    .append(auditField(event.getUserName())).append('\t')
+                    .append(event.isSuccess() ? "SUCCESS" : "FAILURE").append('\t')
+                    .append(auditField(event.getSource())).append('\n');
+        }
+        synchronized (auditLog) {
+            try {
+                writeFully(auditLog, lines.toString().getBytes(StandardCharsets.UTF_8));
+                auditLog.force(false);
+            } catch (IOException e) {
+                throw new UserStoreException("Could not record " + events.size() + " login events", e);
+            }
+        }
+    }
+
+    /**
+     * Keeps a field on its line and in its column, whatever the client sent.
+     */
+    private static String auditField(String value) {
+        return value == null ? "-" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * Streams straight from the in-memory index, in user id order. Users added while the stream is
+     * consumed may or may not be included.
+     */
+    @Override
+    public Stream<UserProfile> streamUsers(UserQuery query) {
+        String prefix = query.getUsernamePrefix();
+        LocalDate after = query.getBornOnOrAfter();
+        LocalDate before = query.getBornOnOrBefore();
+        Set<UserQuery.Column> columns = query.getColumns();
+
+        return byUserId.values().stream()
+                .map(entry -> entry.user)
+                .filter(user -> prefix == null || user.getUserName().startsWith(prefix))
+                .filter(user -> {
+                    if (after == null && before == null) {
+                        return true;
+                    }
+                    LocalDate dob = parseDate(user.getDateOfBirth());
+                    return dob != null && (after == null || !dob.isBefore(after)) && (before == null || !dob.isAfter(before));
+                })
+                .map(user -> profile(user, columns));
+    }
+
+    private static UserProfile profile(UserRecord user, Set<UserQuery.Column> columns) {
+        return new UserProfile(
+                columns.contains(UserQuery.Column.FIRST_NAME) ? user.getFirstName() : null,
+                columns.contains(UserQuery.Column.LAST_NAME) ? user.getLastName() : null,
+                columns.contains(UserQuery.Column.USERNAME) ? user.getUserName() : null,
+                columns.contains(UserQuery.Column.DOB) ? user.getDateOfBirth() : null,
+                null, user.getVersion());
+    }
+
+    private static LocalDate parseDate(String date) {
+        try {
+            return date == null ? null : LocalDate.parse(date);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lookups are memory reads and writes share fsyncs, so many requests can run at once.
+     */
+    @Override
+    public int getConcurrencyHint() {
+        return Runtime.getRuntime().availableProcessors() * 4;
+    }
+
+    /**
+     * Rewrites the log with one record per current user, dropping superseded records.
+     * Writers wait while the new log is written; lookups are not affected.
+     * @throws IOException if the new log cannot be written; the old one is kept.
+     */
+    public void compact() throws IOException {
+        writeLock.lock();
+        try {
+            if (syncFailure != null) {
+                throw new IOException("Not compacting " + directory.resolve(LOG_FILE) + " after a failed sync", syncFailure);
+            }
+            if (!unpublished.isEmpty()) {
+                // The new log is written from the published users, so every change must be published first
+                try {
+                    awaitDurable(appendedBytes);
+                } catch (UserStoreException e) {
+                    throw new IOException(e.getMessage(), e.getCause());
+                }
+                publish();
+            }
+            Path compactPath = directory.resolve(COMPACT_FILE);
+            long records = 0;
+            try (FileChannel out = FileChannel.open(compactPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Entry entry : byUserId.values()) {
+                    writeFully(out, insertRecord(entry));
+                    records++;
+                }
+                out.force(true);
+            }
+
+            // No force may be running on the old log while it is swapped out
+            syncLock.lock();
+            try {
+                while (syncing) {
+                    synced.awaitUninterruptibly();
+                }
+                Files.move(compactPath, directory.resolve(LOG_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                log.close();
+                log = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                log.position(log.size());
+                syncedBytes = appendedBytes; // everything appended so far is in the forced new log
+                synced.signalAll();
+            } finally {
+                syncLock.unlock();
+            }
+            System.out.println("Compacted " + directory.resolve(LOG_FILE) + " from " + logRecords + " to " + records + " records");
+            logRecords = records;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void compactIfWorthwhile() {
+        long garbage = logRecords - byUserId.size(); // a racy read is fine for a heuristic
+        if (garbage >= COMPACTION_MIN_GARBAGE && garbage > byUserId.size()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+
+    /**
+     * Stops background compaction, forces the log to disk and closes the store's files.
+     */
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        writeLock.lock();
+        try {
+            log.force(true);
+            log.close();
+            synchronized (auditLog) {
+                auditLog.close();
+            }
+            processLock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            System.out.println(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    // Log records
+
+    /**
+     * Appends records to the log. Must hold writeLock.
+     * @return The group commit position to wait for, see {@link #awaitDurable(long)}.
+     */
+    private long append(byte[] records) throws IOException {
+        long start = log.position();
+        try {
+            writeFully(log, records);
+        } catch (IOException e) {
+            log.truncate(start); // do not leave half a record for the next append to follow
+            throw e;
+        }
+        logRecords++;
+        appendedBytes += records.length;
+        return appendedBytes;
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Waits until the log is on disk up to a position. If no other thread is forcing the log, this
+     * thread does, covering every record appended so far; otherwise it waits for that force to end.
+     */
+    private void awaitDurable(long position) throws UserStoreException {
+        syncLock.lock();
+        try {
+            while (syncedBytes < position) {
+                if (syncFailure != null) {
+                    throw syncFailure; // the record may or may not have reached the disk
+                }
+                if (syncing) {
+                    synced.await();
+                    continue;
+                }
+                syncing = true;
+                long target = appendedBytes;
+                boolean forced = false;
+                syncLock.unlock();
+                try {
+                    log.force(false);
+                    forced = true;
+                } catch (IOException e) {
+                    syncFailure = e;
+                    throw e;
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (forced) {
+                        syncedBytes = Math.max(syncedBytes, target);
+                    }
+                    synced.signalAll();
+                }
+            }
+        } catch (IOException e) {
+            throw new UserStoreException("Could not sync " + directory.resolve(LOG_FILE), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserStoreException("Interrupted while waiting for the log to sync", new InterruptedIOException());
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private static byte[] insertRecord(Entry entry) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(payload);
+        UserRecord user = entry.user;
+        out.writeByte(OP_INSERT);
+        out.writeLong(entry.userId);
+        out.writeUTF(user.getFirstName());
+        out.writeUTF(user.getLastName());
+        out.writeUTF(user.getUserName());
+        out.writeUTF(user.getDateOfBirth());
+        out.writeUTF(user.getPasswordHash());
+        out.writeLong(user.getVersion());
+        return frame(payload.toByteArray());
+    }
+
+    private static byte[] profileRecord(UserRecord user) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(OP_UPDATE_PROFILE);
+        out.writeUTF(user.getUserName());
+        out.writeUTF(user.getFirstName());
+        out.writeUTF(user.getLastName());
+        out.writeUTF(user.getDateOfBirth());
+        out.writeLong(user.getVersion());
+        return frame(payload.toByteArray());
+    }
+
+    private static byte[] updateRecord(String username, String passwordHash) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(OP_UPDATE_HASH);
+        out.writeUTF(username);
+        out.writeUTF(passwordHash);
+        return frame(payload.toByteArray());
+    }
+
+    private static byte[] deleteRecord(String username) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(OP_DELETE);
+        out.writeUTF(username);
+        return frame(payload.toByteArray());
+    }
+
+    /**
+     * Prefixes a payload with its length and checksum.
+     */
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(HEADER_BYTES + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * Replays the log into the in-memory index.
+     * @return The length of the log up to the last complete, intact record.
+     */
+    private long replay(Path logPath) throws IOException {
+        if (!Files.exists(logPath)) {
+            return 0;
+        }
+        long validBytes = 0;
+        try (InputStream file = Files.newInputStream(logPath);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 64 * 1024))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_BYTES) {
+                        break;
+                    }
+                    payload = in.readNBytes(length);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (payload.length < length) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                validBytes += HEADER_BYTES + length;
+                logRecords++;
+            }
+        }
+        return validBytes;
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        if (op == OP_INSERT) {
+            long userId = in.readLong();
+            String firstName = in.readUTF(), lastName = in.readUTF(), userName = in.readUTF(), dateOfBirth = in.readUTF(), passwordHash = in.readUTF();
+            long version = in.available() >= Long.BYTES ? in.readLong() : 0; // written before profiles had versions
+            renamedOnReplay.remove(userName); // a new user with this spelling
+            Entry existing = find(userName);
+            if (existing != null && existing.userId != userId) {
+                String renamed = freeName(userName);
+                System.out.println("Usernames \"" + existing.user.getUserName() + "\" and \"" + userName + "\" in "
+                        + directory.resolve(LOG_FILE) + " differ only in case, accents or trailing spaces; user "
+                        + userId + " is renamed to \"" + renamed + "\"");
+                renamedOnReplay.put(userName, renamed);
+                userName = renamed;
+            }
+            index(new Entry(userId, new UserRecord(firstName, lastName, userName, dateOfBirth, passwordHash, version)));
+            nextUserId = Math.max(nextUserId, userId + 1);
+        } else if (op == OP_UPDATE_HASH) {
+            String username = replayedName(in.readUTF());
+            String passwordHash = in.readUTF();
+            Entry current = find(username);
+            if (current != null) {
+                index(new Entry(current.userId, withPasswordHash(current.user, passwordHash)));
+            }
+        } else if (op == OP_UPDATE_PROFILE) {
+            String username = replayedName(in.readUTF());
+            String firstName = in.readUTF(), lastName = in.readUTF(), dateOfBirth = in.readUTF();
+            long version = in.readLong();
+            Entry current = find(username);
+            if (current != null) {
+                index(new Entry(current.userId, new UserRecord(firstName, lastName, current.user.getUserName(), dateOfBirth,
+                        current.user.getPasswordHash(), version)));
+            }
+        } else if (op == OP_DELETE) {
+            Entry removed = find(replayedName(in.readUTF()));
+            if (removed != null) {
+                unindex(removed);
+            }
+        } else {
+            throw new IOException("Unknown record type " + op + " in " + directory.resolve(LOG_FILE));
+        }
+    }
+
+    /**
+     * The name a user is known by after replay: records written before names were folded name a
+     * renamed user by its old spelling.
+     */
+    private String replayedName(String username) {
+        return renamedOnReplay.getOrDefault(username, username);
+    }
+
+    /**
+     * Finds a name for a user renamed on replay that no other user has: the name without trailing
+     * spaces, with "-2", "-3", ... appended.
+     */
+    private String freeName(String username) {
+        String base = username.replaceAll(" +$", "");
+        for (int n = 2; ; n++) {
+            String candidate = base + "-" + n;
+            if (find(candidate) == null) {
+                return candidate;
+            }
+        }
+    }
+
+    private Entry find(String username) {
+        return byUsername.get(Usernames.fold(username));
+    }
+
+    /**
+     * Finds a user as writers see it, including changes not yet on disk. Must hold writeLock.
+     */
+    private Entry findLatest(String username) {
+        String key = Usernames.fold(username);
+        Change change = pending.get(key);
+        return change != null ? change.entry : byUsername.get(key);
+    }
+
+    /**
+     * Refuses writes after a failed sync. Must hold writeLock.
+     */
+    private void checkWritable() throws UserStoreException {
+        if (syncFailure != null) {
+            throw new UserStoreException("A sync of " + directory.resolve(LOG_FILE) + " failed; reopen the store to write again", syncFailure);
+        }
+    }
+
+    /**
+     * Queues an appended change to be shown to lookups once it is on disk. Must hold writeLock.
+     * @param entry The user's new entry, or null to delete the user.
+     * @param replaced The entry the change replaces, or null for a new user.
+     */
+    private void stage(long position, Entry entry, Entry replaced) {
+        String key = Usernames.fold((entry != null ? entry : replaced).user.getUserName());
+        Change change = new Change(position, key, entry, replaced);
+        unpublished.add(change);
+        pending.put(key, change);
+    }
+
+    /**
+     * Waits until the log is on disk up to a position, then shows lookups the changes up to it.
+     */
+    private void awaitPublished(long position) throws UserStoreException {
+        try {
+            awaitDurable(position);
+        } finally {
+            publish(); // whatever is durable, even if this wait was interrupted
+        }
+    }
+
+    /**
+     * Shows lookups every queued change that is now on disk, in log order.
+     */
+    private void publish() {
+        writeLock.lock();
+        try {
+            long durable = durableBytes();
+            Change change;
+            while ((change = unpublished.peek()) != null && change.position <= durable) {
+                unpublished.poll();
+                if (change.entry != null) {
+                    index(change.entry);
+                } else {
+                    unindex(change.replaced);
+                }
+                pending.remove(change.key, change); // unless a later change is queued
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private long durableBytes() {
+        syncLock.lock();
+        try {
+            return syncedBytes;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void index(Entry entry) {
+        Entry replaced = byUsername.put(Usernames.fold(entry.user.getUserName()), entry);
+        byUserId.put(entry.userId, entry);
+        credentialStamp.accumulateAndGet(credentialHash(entry) ^ (replaced == null ? 0 : credentialHash(replaced)), (a, b) -> a ^ b);
+    }
+
+    private void unindex(Entry entry) {
+        byUsername.remove(Usernames.fold(entry.user.getUserName()));
+        byUserId.remove(entry.userId);
+        credentialStamp.accumulateAndGet(credentialHash(entry), (a, b) -> a ^ b);
+    }
+
+    /**
+     * FNV-1a over the folded username and the encoded password hash.
+     */
+    private static long credentialHash(Entry entry) {
+        String credential = Usernames.fold(entry.user.getUserName()) + '\0' + entry.user.getPasswordHash();
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < credential.length(); i++) {
+            hash = (hash ^ credential.charAt(i)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+
+    // Getters
+
+    /**
+     * The XOR of a hash of every user's username and password hash. It is the same after a restart
+     * or a compaction as long as no credential changed, since only this process writes the log.
+     */
+    @Override
+    public long getCredentialStamp() {
+        return credentialStamp.get();
+    }
+
+    /**
+     * @return The number of registered users.
+     */
+    public int getUserCount() {
+        return byUsername.size();
+    }
+
+    /**
+     * @return The directory holding the store's files.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+}
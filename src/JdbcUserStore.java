@@ -0,0 +1,568 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.sql. *;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+
+/**
+ * The JdbcUserStore class keeps users in the "users" table of a MySQL database.
+ * Connections are borrowed from a {@link ConnectionPool}, so many threads can use the store at the same time,
+ * and the schema is brought up to date by {@link SchemaMigrator} when the shared store is created.
+ */
+public class JdbcUserStore implements UserStore {
+    // Connection settings (URL, username, password)
+    // useServerPrepStmts makes the driver prepare statements on the server, so a cached statement is only executed;
+    // rewriteBatchedStatements sends a JDBC batch of inserts as multi-row inserts
+    private static final String DB_URL = "jdbc:mysql://localhost:3306/userprofiledb?characterEncoding=latin1&useServerPrepStmts=true&rewriteBatchedStatements=true"; //utf8mb4
+    private static final String DB_USER = "newuser";
+    private static final String DB_PASSWORD = "";
+
+    private static final String USERNAME_INDEX = "ux_users_username"; // the unique index on Username, see SchemaMigrator
+
+    private static final String INSERT_SQL = "insert into users (firstName, lastName, userName, dob, passwordhash, Version) values (?, ?, ?, ?, ?, ?)"; // '?' are placeholders
+
+    private static JdbcUserStore sharedStore; // store over the default database, shared by all handlers
+
+    // Attributes
+    private final ConnectionPool pool;
+
+
+    // Constructor
+
+    /**
+     * Creates a store over a connection pool. The schema is expected to be migrated already.
+     * @param pool The pool to borrow database connections from.
+     */
+    public JdbcUserStore(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the store over the default database, creating its connection pool and migrating
+     * the schema on first use. Connections are opened lazily by the pool, the first time they are needed.
+     * @return The shared store.
+     * @throws UserStoreException if the schema cannot be migrated; the next call tries again.
+     */
+    public static synchronized JdbcUserStore getShared() throws UserStoreException {
+        if (sharedStore == null) {
+            sharedStore = open(DB_URL, true);
+        }
+        return sharedStore;
+    }
+
+    /**
+     * Creates a store over another database with the default credentials, such as a shard or a
+     * read replica. Connections are opened lazily by the pool, the first time they are needed.
+     * @param url The JDBC URL of the database.
+     * @param migrate True to bring the schema up to date first; false for a read-only replica.
+     * @return The store.
+     * @throws UserStoreException if the schema cannot be migrated, so no query runs against an old schema.
+     */
+    public static JdbcUserStore open(String url, boolean migrate) throws UserStoreException {
+        try {
+            // Load the MySQL JDBC driver class
+            Class.forName("com.mysql.jdbc.Driver");
+        }
+        catch (ClassNotFoundException e) {
+            System.out.println(e); // prints the exception
+        }
+        ConnectionPool pool = new ConnectionPool(url, DB_USER, DB_PASSWORD);
+
+        // Bring the schema up to date before the first query
+        if (migrate) {
+            try {
+                new SchemaMigrator(pool).migrate();
+            }
+            catch (SQLException e) {
+                pool.close();
+                throw new UserStoreException("Could not migrate the schema of " + url, e);
+            }
+        }
+        return new JdbcUserStore(pool);
+    }
+
+
+    // Methods
+
+    @Override
+    public RegistrationResult insertUser(UserRecord user) throws UserStoreException {
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+
+            // Get the prepared statement for the insert, reused from the connection's statement cache
+            PreparedStatement stmt = pc.prepareStatement(INSERT_SQL);
+            setUser(stmt, user);
+
+            stmt.execute(); // Execute the SQL statement to insert the user data into the database
+            return RegistrationResult.SUCCESS;
+        }
+
+        catch (SQLException e) {
+            if (isDuplicateKey(e)) {
+                return RegistrationResult.DUPLICATE_USERNAME; // rejected by the unique index on Username
+            }
+            throw new UserStoreException("Could not insert user " + user.getUserName(), e);
+        }
+    }
+
+    /**
+     * Writes the users as one JDBC batch inside a single transaction.
+     */
+    @Override
+    public void insertUsers(List<UserRecord> users) throws UserStoreException {
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            Connection con = pc.getConnection();
+            con.setAutoCommit(false);
+            try {
+                PreparedStatement stmt = pc.prepareStatement(INSERT_SQL);
+                for (UserRecord user : users) {
+                    setUser(stmt, user);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                con.commit();
+            }
+            catch (SQLException e) {
+                con.rollback();
+                throw e;
+            }
+            finally {
+                con.setAutoCommit(true);
+            }
+        }
+
+        catch (SQLException e) {
+            throw new UserStoreException("Could not insert " + users.size() + " users", e);
+        }
+    }
+
+    private static void setUser(PreparedStatement stmt, UserRecord user) throws SQLException {
+        stmt.setString(1, user.getFirstName());
+        stmt.setString(2, user.getLastName());
+        stmt.setString(3, user.getUserName());
+        stmt.setString(4, user.getDateOfBirth());
+        stmt.setString(5, user.getPasswordHash());
+        stmt.setLong(6, user.getVersion());
+    }
+
+    /**
+     * Checks whether an exception reports a duplicate entry in the unique index on Username (MySQL
+     * error 1062, or 1586 which also names the key). Other integrity violations, such as a NOT NULL
+     * column left empty, are real errors and are not reported as a taken username.
+     * @param e The exception thrown by an insert or update.
+     * @return True if the username clashed with a registered one.
+     */
+    static boolean isDuplicateKey(SQLException e) {
+        if (e.getErrorCode() != 1062 && e.getErrorCode() != 1586) {
+            return false;
+        }
+        // "Duplicate entry 'alice' for key 'Users.ux_users_username'" (the table is not named before MySQL 8.0.19)
+        String message = e.getMessage();
+        return message != null && message.toLowerCase(Locale.ROOT).contains(USERNAME_INDEX);
+    }
+
+    @Override
+    public String findPasswordHash(String username) throws UserStoreException {
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            // Define the SQL query to select the "PasswordHash" column from the "users" table where the username matches.
+            PreparedStatement stmt = pc.prepareStatement("Select PasswordHash from  users where Username = ?");
+
+            // Set the parameter in the prepared statement to the provided username.
+            stmt.setString(1, username);
+
+            // Execute the SQL query and store the result in a ResultSet, closed as soon as it is read.
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+
+        catch (SQLException e) {
+            throw new UserStoreException("Could not look up user " + username, e);
+        }
+    }
+
+    /**
+     * Sends one {@code where Username in (...)} query for all the usernames, served by the unique
+     * index on Username. The list is padded to a power of two by repeating the last username, so
+     * only a few distinct statements are prepared and each stays in the connection's statement cache.
+     *
+     * The column's collation ignores case and accents, so a row may come back under another spelling
+     * than the one asked for. Rows are matched to the usernames asked for exactly; a username left
+     * without an exact match that folds to the same spelling as a returned row is looked up on its own,
+     * letting the database decide which row it means.
+     */
+    @Override
+    public Map<String, String> findPasswordHashes(Collection<String> usernames) throws UserStoreException {
+        List<String> names = new ArrayList<>(new LinkedHashSet<>(usernames));
+        Map<String, String> found = new HashMap<>();
+        if (names.isEmpty()) {
+            return found;
+        }
+        int parameters = names.size() == 1 ? 1 : Integer.highestOneBit(names.size() - 1) << 1;
+        StringBuilder sql = new StringBuilder("select Username, PasswordHash from users where Username in (?");
+        for (int i = 1; i < parameters; i++) {
+            sql.append(", ?");
+        }
+        sql.append(")");
+
+        Map<String, String> rows = new HashMap<>();
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement stmt = pc.prepareStatement(sql.toString());
+            for (int i = 0; i < parameters; i++) {
+                stmt.setString(i + 1, names.get(Math.min(i, names.size() - 1)));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    rows.put(rs.getString(1), rs.getString(2));
+                }
+            }
+        }
+
+        catch (SQLException e) {
+            throw new UserStoreException("Could not look up " + names.size() + " users", e);
+        }
+
+        Set<String> returnedSpellings = null;
+        for (String name : names) {
+            String passwordHash = rows.get(name);
+            if (passwordHash != null) {
+                found.put(name, passwordHash);
+                continue;
+            }
+            if (returnedSpellings == null) {
+                returnedSpellings = new HashSet<>();
+                for (String row : rows.keySet()) {
+                    returnedSpellings.add(Usernames.fold(row));
+                }
+            }
+            if (returnedSpellings.contains(Usernames.fold(name))) {
+                passwordHash = findPasswordHash(name);
+                if (passwordHash != null) {
+                    found.put(name, passwordHash);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Selects only the requested columns and the version, by the unique index on Username.
+     */
+    @Override
+    public UserProfile findProfile(String username, Set<UserQuery.Column> columns) throws UserStoreException {
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement stmt = pc.prepareStatement("select Version" + columnList(columns) + " from users where Username = ?");
+            stmt.setString(1, username);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? readProfile(rs, columns, 1) : null;
+            }
+        }
+
+        catch (SQLException e) {
+            throw new UserStoreException("Could not load the profile of user " + username, e);
+        }
+    }
+
+    /**
+     * The version check and the increment are one conditional update, so two edits of the same version
+     * cannot both succeed. When no row is updated, a second query tells a conflict from a missing user.
+     * A null detail is bound as NULL and coalesced to the stored value, so the statement stays the same.
+     */
+    @Override
+    public ProfileUpdateResult updateProfile(UserProfile profile) throws UserStoreException {
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement stmt = pc.prepareStatement("update users set Firstname = coalesce(?, Firstname), Lastname = coalesce(?, Lastname), DOB = coalesce(?, DOB), Version = Version + 1 where Username = ? and Version = ?");
+            stmt.setString(1, profile.getFirstName());
+            stmt.setString(2, profile.getLastName());
+            stmt.setString(3, profile.getDateOfBirthText());
+            stmt.setString(4, profile.getUserName());
+            stmt.setLong(5, profile.getVersion());
+            if (stmt.executeUpdate() > 0) {
+                return ProfileUpdateResult.SUCCESS;
+            }
+
+            PreparedStatement exists = pc.prepareStatement("select 1 from users where Username = ?");
+            exists.setString(1, profile.getUserName());
+            try (ResultSet rs = exists.executeQuery()) {
+                return rs.next() ? ProfileUpdateResult.VERSION_CONFLICT : ProfileUpdateResult.NOT_FOUND;
+            }
+        }
+
+        catch (SQLException e) {
+            throw new UserStoreException("Could not update the profile of user " + profile.getUserName(), e);
+        }
+    }
+
+    @Override
+    public boolean replacePasswordHash(String username, String expectedHash, String passwordHash) throws UserStoreException {
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement stmt = pc.prepareStatement("update users set PasswordHash = ? where Username = ? and PasswordHash = ?");
+            stmt.setString(1, passwordHash);
+            stmt.setString(2, username);
+            stmt.setString(3, expectedHash);
+            return stmt.executeUpdate() > 0;
+        }
+
+        catch (SQLException e) {
+            throw new UserStoreException("Could not change the password of user " + username, e);
+        }
+    }
+
+    @Override
+    public boolean updatePasswordHash(String username, String passwordHash) throws UserStoreException {
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement stmt = pc.prepareStatement("update users set PasswordHash = ? where Username = ?");
+            stmt.setString(1, passwordHash);
+            stmt.setString(2, username);
+            return stmt.executeUpdate() > 0;
+        }
+
+        catch (SQLException e) {
+            throw new UserStoreException("Could not update the password of user " + username, e);
+        }
+    }
+
+    @Override
+    public boolean deleteUser(String username) throws UserStoreException {
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement stmt = pc.prepareStatement("delete from users where Username = ?");
+            stmt.setString(1, username);
+            return stmt.executeUpdate() > 0;
+        }
+
+        catch (SQLException e) {
+            throw new UserStoreException("Could not delete user " + username, e);
+        }
+    }
+
+    /**
+     * Inserts the events into "login_events" and moves each user's LastLogged forward, as two JDBC
+     * batches in one transaction.
+     */
+    @Override
+    public void recordLogins(List<LoginEvent> events) throws UserStoreException {
+        // Only the latest successful login per user needs an update
+        Map<String, Timestamp> lastLogins = new HashMap<>();
+        for (LoginEvent event : events) {
+            if (event.isSuccess()) {
+                lastLogins.put(event.getUserName(), Timestamp.from(event.getOccurredAt()));
+            }
+        }
+
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            Connection con = pc.getConnection();
+            con.setAutoCommit(false);
+            try {
+                PreparedStatement insert = pc.prepareStatement("insert into login_events (Username, occurred_at, success, source) values (?, ?, ?, ?)");
+                for (LoginEvent event : events) {
+                    insert.setString(1, truncate(event.getUserName(), 45));   // failed attempts may use any username
+                    insert.setTimestamp(2, Timestamp.from(event.getOccurredAt()));
+                    insert.setBoolean(3, event.isSuccess());
+                    insert.setString(4, truncate(event.getSource(), 45));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+
+                if (!lastLogins.isEmpty()) {
+                    PreparedStatement update = pc.prepareStatement("update users set LastLogged = ? where Username = ? and (LastLogged is null or LastLogged < ?)");
+                    for (Map.Entry<String, Timestamp> lastLogin : lastLogins.entrySet()) {
+                        update.setTimestamp(1, lastLogin.getValue());
+                        update.setString(2, lastLogin.getKey());
+                        update.setTimestamp(3, lastLogin.getValue());
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                }
+                con.commit();
+            }
+            catch (SQLException e) {
+                con.rollback();
+                throw e;
+            }
+            finally {
+                con.setAutoCommit(true);
+            }
+        }
+
+        catch (SQLException e) {
+            throw new UserStoreException("Could not record " + events.size() + " login events", e);
+        }
+    }
+
+    private static String truncate(String value, int length) {
+        return value == null || value.length() <= length ? value : value.substring(0, length);
+    }
+
+    /**
+     * Rows are fetched in pages using keyset pagination on user_id ({@code where user_id > last seen}),
+     * so each page is an index range scan and only one page is in memory at a time. A connection is
+     * borrowed per page and returned before the page is consumed, so a slow consumer never holds one.
+     */
+    @Override
+    public Stream<UserProfile> streamUsers(UserQuery query) {
+        Iterator<UserProfile> pages = new UserPageIterator(query);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Builds the page query for a UserQuery: only the requested columns, the filters, and the keyset condition.
+     */
+    private static String pageSql(UserQuery query) {
+        StringBuilder sql = new StringBuilder("select user_id, Version").append(columnList(query.getColumns()));
+        sql.append(" from users where user_id > ?");
+        if (query.getUsernamePrefix() != null) {
+            sql.append(" and Username like ? escape '!'");
+        }
+        if (query.getBornOnOrAfter() != null) {
+            sql.append(" and DOB >= ?");
+        }
+        if (query.getBornOnOrBefore() != null) {
+            sql.append(" and DOB <= ?");
+        }
+        return sql.append(" order by user_id limit ?").toString();
+    }
+
+    /**
+     * @return The requested columns' names, each preceded by a comma.
+     */
+    private static String columnList(Set<UserQuery.Column> columns) {
+        StringBuilder list = new StringBuilder();
+        for (UserQuery.Column column : columns) {
+            list.append(", ").append(column.getSqlName());
+        }
+        return list.toString();
+    }
+
+    /**
+     * Iterates over the users matching a query, fetching the next page when the current one is used up.
+     */
+    private class UserPageIterator implements Iterator<UserProfile> {
+        private final UserQuery query;
+        private final String sql;
+        private final ArrayDeque<UserProfile> page = new ArrayDeque<>();
+        private long lastUserId = 0;
+        private boolean lastPage = false;
+
+        private UserPageIterator(UserQuery query) {
+            this.query = query;
+            this.sql = pageSql(query);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (page.isEmpty() && !lastPage) {
+                fetchPage();
+            }
+            return !page.isEmpty();
+        }
+
+        @Override
+        public UserProfile next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.poll();
+        }
+
+        private void fetchPage() {
+            try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+                PreparedStatement stmt = pc.prepareStatement(sql);
+                int index = 1;
+                stmt.setLong(index++, lastUserId);
+                if (query.getUsernamePrefix() != null) {
+                    // Escape LIKE wildcards so the prefix is matched literally
+                    String prefix = query.getUsernamePrefix().replace("!", "!!").replace("%", "!%").replace("_", "!_");
+                    stmt.setString(index++, prefix + "%");
+                }
+                if (query.getBornOnOrAfter() != null) {
+                    stmt.setDate(index++, Date.valueOf(query.getBornOnOrAfter()));
+                }
+                if (query.getBornOnOrBefore() != null) {
+                    stmt.setDate(index++, Date.valueOf(query.getBornOnOrBefore()));
+                }
+                stmt.setInt(index, query.getPageSize());
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    int rows = 0;
+                    while (rs.next()) {
+                        rows++;
+                        lastUserId = rs.getLong(1);
+                        page.add(readProfile(rs, query.getColumns(), 2));
+                    }
+                    lastPage = rows < query.getPageSize();
+                }
+            }
+            catch (SQLException e) {
+                lastPage = true;
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads the version and the requested columns of the current row into a profile. The date of
+     * birth is read as text and only parsed if the profile's date is asked for.
+     * @param versionIndex The index of the Version column, which the requested columns follow.
+     */
+    private static UserProfile readProfile(ResultSet rs, Set<UserQuery.Column> columns, int versionIndex) throws SQLException {
+        String firstName = null, lastName = null, userName = null, dateOfBirth = null;
+        LocalDateTime lastLogged = null;
+        long version = rs.getLong(versionIndex);
+        int index = versionIndex + 1;
+        for (UserQuery.Column column : columns) {
+            switch (column) {
+                case FIRST_NAME: firstName = rs.getString(index); break;
+                case LAST_NAME: lastName = rs.getString(index); break;
+                case USERNAME: userName = rs.getString(index); break;
+                case DOB: dateOfBirth = rs.getString(index); break;
+                case LAST_LOGGED:
+                    Timestamp logged = rs.getTimestamp(index);
+                    lastLogged = logged == null ? null : logged.toLocalDateTime();
+                    break;
+            }
+            index++;
+        }
+        return new UserProfile(firstName, lastName, userName, dateOfBirth, lastLogged, version);
+    }
+
+    /**
+     * Sized to keep every pooled connection busy without letting waiters pile up.
+     */
+    @Override
+    public int getConcurrencyHint() {
+        return pool.getMaxSize() * 2;
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+
+    // Getters
+
+    /**
+     * @return The connection pool this store borrows connections from.
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The LatencyHistogram class records durations from many threads at once and reports their
+ * percentiles, in the manner of an HDR histogram. Buckets are log-linear: every power of two is
+ * split into the same number of equal buckets, so any recorded value is reported within a fixed
+ * relative error (under 1%) whether it is microseconds or minutes, using a few tens of kilobytes.
+ *
+ * Recording is lock-free and allocation-free: it finds the bucket with a few bit operations and
+ * increments a counter. Percentiles are computed from a {@link Snapshot}, which may be taken while
+ * other threads keep recording.
+ */
+public class LatencyHistogram {
+
+    private static final int PRECISION_BITS = 8;                     // 256 sub-buckets: under 0.8% error
+    private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final long MAX_VALUE = TimeUnit.HOURS.toNanos(1); // longer values count as one hour
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    // Attributes
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+
+    // Methods
+
+    /**
+     * Records one duration.
+     * @param nanos The duration in nanoseconds. Negative values count as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Records the time elapsed since a start time.
+     * @param startNanos The start, from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Forgets everything recorded. Values recorded while this runs may or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * Copies the current counts, so percentiles can be read consistently.
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum(), max.get());
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Finds a value's bucket. Values below SUB_BUCKETS have their own bucket; above that, each
+     * power of two is split into HALF buckets by the value's top PRECISION_BITS bits.
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - PRECISION_BITS; // at least 1
+        int top = (int) (value >>> shift);                                    // in [HALF, SUB_BUCKETS)
+        return SUB_BUCKETS + (shift - 1) * HALF + (top - HALF);
+    }
+
+    /**
+     * @return The largest value that falls in a bucket.
+     */
+    private static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long top = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+
+    /**
+     * The Snapshot class is a copy of a histogram's counts at one moment.
+     */
+    public static class Snapshot {
+
+        // Attributes
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+
+        // Constructor
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+
+        // Methods
+
+        /**
+         * Finds the value below which a share of the recorded values fall.
+         * @param percentile The share, from 0 to 100, such as 99.9.
+         * @return The value in nanoseconds, within the histogram's precision, or 0 if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueIn(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * @return The number of values recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The mean value in nanoseconds, or 0 if nothing was recorded.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return The largest value recorded, in nanoseconds.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return A summary with the count and the usual percentiles in milliseconds.
+         */
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+                    count, getMean() / 1e6, getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6,
+                    getValueAtPercentile(99) / 1e6, getValueAtPercentile(99.9) / 1e6, max / 1e6);
+        }
+    }
+}
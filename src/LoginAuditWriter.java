@@ -0,0 +1,224 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The LoginAuditWriter class records login attempts, and each user's last login time, without
+ * slowing the login down. {@link #record(LoginEvent)} only adds the event to a bounded lock-free
+ * queue; a background thread writes the queued events to the {@link UserStore} in batches, once
+ * a batch is full or a flush interval has passed, whichever comes first.
+ *
+ * When the store falls behind, the batch that failed is retried with a growing delay and no new
+ * events are taken meanwhile, so the queue fills up. Events arriving at a full queue are dropped
+ * and counted rather than making logins wait. On {@link #shutdown()} the queue is flushed, and
+ * once the writer has taken the last event the queue is closed, so every event counted as
+ * recorded is either written or counted as dropped.
+ */
+public class LoginAuditWriter {
+
+    public static final int DEFAULT_CAPACITY = 100_000;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30_000;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10_000;
+    private static final int CLOSED = Integer.MIN_VALUE / 2; // the queue count once the writer has exited, far below any count
+
+    // Attributes
+    private final UserStore store;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final ConcurrentLinkedQueue<LoginEvent> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger(); // size of the queue, which does not count itself cheaply; CLOSED once closed
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failedFlushes = new LongAdder();
+
+
+    // Constructors
+
+    /**
+     * Creates a writer with the default queue capacity, batch size and flush interval, and starts it.
+     * @param store The store the events are written to.
+     */
+    public LoginAuditWriter(UserStore store) {
+        this(store, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates a writer and starts it.
+     * @param store The store the events are written to.
+     * @param capacity The number of events that may wait to be written; more are dropped.
+     * @param batchSize The number of events written at once, and the queue length that triggers a write.
+     * @param flushIntervalMillis The longest an event waits before it is written.
+     */
+    public LoginAuditWriter(UserStore store, int capacity, int batchSize, long flushIntervalMillis) {
+        if (capacity <= 0 || batchSize <= 0 || flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("capacity, batchSize and flushIntervalMillis must be positive");
+        }
+        this.store = store;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        writer = new Thread(this::run, "login-audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    // Methods
+
+    /**
+     * Queues an event to be written. Never blocks.
+     * @param event The login attempt.
+     * @return True if it was queued; false if the queue is full or closed and the event was dropped.
+     */
+    public boolean record(LoginEvent event) {
+        int size = queued.incrementAndGet();
+        if (size <= 0 || size > capacity || !running) {
+            queued.decrementAndGet();
+            dropped.increment();
+            return false;
+        }
+        queue.add(event);
+        recorded.increment();
+        if (size == batchSize) {
+            LockSupport.unpark(writer); // a full batch is waiting
+        }
+        return true;
+    }
+
+    /**
+     * The background thread: waits for a full batch or the flush interval, then writes.
+     */
+    private void run() {
+        List<LoginEvent> batch = new ArrayList<>(batchSize);
+        long retryDelay = 0;
+        while (true) {
+            boolean stopping = !running;
+            if (batch.isEmpty()) {
+                if (queued.get() < batchSize && !stopping) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis));
+                    stopping = !running;
+                }
+                drain(batch);
+            }
+            if (batch.isEmpty()) {
+                // Close only once no accepted event is left; one still being added keeps the count above 0
+                if (stopping && queued.compareAndSet(0, CLOSED)) {
+                    return;
+                }
+                continue;
+            }
+
+            try {
+                store.recordLogins(batch);
+                written.add(batch.size());
+                batch.clear();
+                retryDelay = 0;
+            } catch (UserStoreException | RuntimeException e) {
+                failedFlushes.increment();
+                System.out.println("Could not write " + batch.size() + " login events: " + e);
+                if (stopping) {
+                    dropped.add(batch.size() + discardAndClose()); // the store is down and we are shutting down
+                    return;
+                }
+                // Keep the batch and retry later; meanwhile the queue absorbs new events, then drops them
+                retryDelay = retryDelay == 0 ? flushIntervalMillis : Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(retryDelay));
+            }
+        }
+    }
+
+    private void drain(List<LoginEvent> batch) {
+        LoginEvent event;
+        while (batch.size() < batchSize && (event = queue.poll()) != null) {
+            queued.decrementAndGet();
+            batch.add(event);
+        }
+    }
+
+    /**
+     * Empties the queue and closes it, waiting for events still being added.
+     * @return The number of events discarded.
+     */
+    private int discardAndClose() {
+        int discarded = 0;
+        do {
+            while (queue.poll() != null) {
+                queued.decrementAndGet();
+                discarded++;
+            }
+        } while (!queued.compareAndSet(0, CLOSED));
+        return discarded;
+    }
+
+    /**
+     * Stops taking events and waits for the queued ones to be written.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            System.out.println("Login audit writer did not finish; " + getQueuedCount() + " events were not written");
+        }
+    }
+
+
+    // Getters
+
+    /**
+     * @return The number of events waiting to be written.
+     */
+    public int getQueuedCount() {
+        return Math.max(queued.get(), 0);
+    }
+
+    /**
+     * @return The number of events accepted into the queue.
+     */
+    public long getRecordedCount() {
+        return recorded.sum();
+    }
+
+    /**
+     * @return The number of events written to the store.
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return The number of events dropped because the queue was full or the writer was stopping.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return The number of batch writes that failed and were retried.
+     */
+    public long getFailedFlushCount() {
+        return failedFlushes.sum();
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.time.Instant;
+
+
+/**
+ * The LoginEvent class is one login attempt as recorded in the audit trail: when it happened,
+ * for which username, from where, and whether the password matched.
+ */
+public class LoginEvent {
+
+    // Attributes
+    private final Instant occurredAt;
+    private final String userName;
+    private final boolean success;
+    private final String source;
+
+
+    // Constructor
+
+    /**
+     * Creates a login event.
+     * @param occurredAt When the attempt was made.
+     * @param userName The username that was tried.
+     * @param success True if the password matched.
+     * @param source Where the attempt came from, or null if unknown.
+     */
+    public LoginEvent(Instant occurredAt, String userName, boolean success, String source) {
+        this.occurredAt = occurredAt;
+        this.userName = userName;
+        this.success = success;
+        this.source = source;
+    }
+
+
+    // Getters
+
+    /**
+     * @return When the attempt was made.
+     */
+    public Instant getOccurredAt() {
+        return occurredAt;
+    }
+
+    /**
+     * @return The username that was tried.
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * @return True if the password matched.
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return Where the attempt came from, or null if unknown.
+     */
+    public String getSource() {
+        return source;
+    }
+}
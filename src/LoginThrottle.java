@@ -0,0 +1,349 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The LoginThrottle class limits login attempts per username and per source (for example a
+ * client IP address), so a credential-stuffing burst is refused before it costs any hashing or
+ * database work.
+ *
+ * Each username and each source has a sliding-window counter: attempts in the current window
+ * plus a share of the previous window's attempts, proportional to how much of it still overlaps.
+ * Consecutive failed logins also block the key for a time that doubles with every further
+ * failure, up to a maximum; a successful login clears the failures of its username and source.
+ * A source's failures also decay: one window without a failure clears them, since a source such
+ * as a proxy or a shared address is used by many users and must not be locked out for good.
+ * Loopback and unknown sources are not limited at all by default, because a server listening on
+ * 127.0.0.1 sees every client as the same loopback address; a reverse proxy in front of it must
+ * pass the client's address as the source (see {@link AuthServer}).
+ *
+ * Counters live in lock-striped tables: a key hashes to one of {@link #STRIPES} stripes, each a
+ * small LRU map behind its own lock, so threads working on different users rarely contend. When a
+ * stripe is full, a key idle for two windows, whose counts have decayed to zero, is evicted first,
+ * then the least recently used key without a recent failure. A key that is backing off or failed
+ * within the window is never evicted, so trying many new usernames cannot erase a lockout; a
+ * stripe holding only such keys grows until their backoff and failures expire.
+ */
+public class LoginThrottle {
+
+    public static final int STRIPES = 64;
+    public static final long DEFAULT_WINDOW_MILLIS = 60_000;
+    public static final int DEFAULT_USERNAME_LIMIT = 10;   // attempts per username per window
+    public static final int DEFAULT_SOURCE_LIMIT = 100;    // attempts per source per window
+    public static final int DEFAULT_MAX_KEYS = 100_000;    // tracked usernames, and tracked sources
+    private static final int USERNAME_FREE_FAILURES = 3;   // failures allowed before backing off
+    private static final int SOURCE_FREE_FAILURES = 20;
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 15 * 60_000;
+
+    /**
+     * Attempt and failure counts of one username or source.
+     */
+    private static final class Counter {
+        private long window;       // index of the current window
+        private int current;       // attempts in the current window
+        private int previous;      // attempts in the previous window
+        private int failures;      // consecutive failed logins
+        private long lastFailure;  // time of the latest failure, in milliseconds
+        private long blockedUntil; // backoff deadline, in milliseconds
+    }
+
+    /**
+     * Counters for one kind of key, split into independently locked stripes.
+     */
+    private final class Table {
+        private final String kind;
+        private final int limit;
+        private final int freeFailures;
+        private final boolean failuresDecay; // whether a window without failures clears them
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        private Table(String kind, int limit, int freeFailures, boolean failuresDecay, int maxKeys) {
+            this.kind = kind;
+            this.limit = limit;
+            this.freeFailures = freeFailures;
+            this.failuresDecay = failuresDecay;
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe(Math.max(1, maxKeys / STRIPES));
+            }
+        }
+
+        private Stripe stripe(String key) {
+            int h = key.hashCode();
+            return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+        }
+
+        /**
+         * Counts an attempt, or refuses it.
+         */
+        private void acquire(String key, long now) {
+            Stripe stripe = stripe(key);
+            long wait;
+            synchronized (stripe) {
+                Counter counter = stripe.getOrCreate(key, now);
+                wait = counter.blockedUntil - now;
+                if (wait <= 0) {
+                    rotate(counter, now);
+                    if (estimate(counter, now) >= limit) {
+                        wait = windowMillis - Math.floorMod(now, windowMillis);
+                    } else {
+                        counter.current++;
+                    }
+                }
+            }
+            if (wait > 0) {
+                rejected.increment();
+                throw new LoginThrottledException("Too many login attempts for this " + kind, wait);
+            }
+        }
+
+        private void failure(String key, long now) {
+            Stripe stripe = stripe(key);
+            synchronized (stripe) {
+                Counter counter = stripe.getOrCreate(key, now);
+                if (failuresDecay && now - counter.lastFailure > windowMillis) {
+                    counter.failures = 0;
+                }
+                counter.failures++;
+                counter.lastFailure = now;
+                int excess = counter.failures - freeFailures;
+                if (excess > 0) {
+                    long backoff = excess >= 31 ? MAX_BACKOFF_MILLIS : Math.min(BASE_BACKOFF_MILLIS << (excess - 1), MAX_BACKOFF_MILLIS);
+                    counter.blockedUntil = now + backoff;
+                }
+            }
+        }
+
+        private void success(String key) {
+            Stripe stripe = stripe(key);
+            synchronized (stripe) {
+                Counter counter = stripe.get(key);
+                if (counter != null) {
+                    counter.failures = 0;
+                    counter.blockedUntil = 0;
+                }
+            }
+        }
+
+        private int size() {
+            int size = 0;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    size += stripe.size();
+                }
+            }
+            return size;
+        }
+    }
+
+    /**
+     * An access-ordered map of counters that makes room for a new key by evicting a decayed one.
+     */
+    private final class Stripe {
+        private final LinkedHashMap<String, Counter> counters = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxKeys;
+
+        private Stripe(int maxKeys) {
+            this.maxKeys = maxKeys;
+        }
+
+        private Counter get(String key) {
+            return counters.get(key);
+        }
+
+        private Counter getOrCreate(String key, long now) {
+            Counter counter = counters.get(key);
+            if (counter == null) {
+                if (counters.size() >= maxKeys) {
+                    evict(now);
+                }
+                counter = new Counter();
+                counters.put(key, counter);
+            }
+            return counter;
+        }
+
+        /**
+         * Evicts the least recently used idle key, or else the least recently used key that is
+         * neither backing off nor failed within the window. Evicts nothing if every key is.
+         */
+        private void evict(long now) {
+            long window = Math.floorDiv(now, windowMillis);
+            String candidate = null;
+            for (Map.Entry<String, Counter> entry : counters.entrySet()) { // least recently used first
+                Counter counter = entry.getValue();
+                if (counter.blockedUntil > now || (counter.failures > 0 && now - counter.lastFailure <= windowMillis)) {
+                    continue;
+                }
+                if (window - counter.window >= 2) {
+                    candidate = entry.getKey(); // idle: its counts have decayed to zero
+                    break;
+                }
+                if (candidate == null) {
+                    candidate = entry.getKey();
+                }
+            }
+            if (candidate != null) {
+                counters.remove(candidate);
+            }
+        }
+
+        private int size() {
+            return counters.size();
+        }
+    }
+
+    // Attributes
+    private final long windowMillis;
+    private final Table usernames;
+    private final Table sources;
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean limitLoopbackSources; // false: loopback addresses are not counted as sources
+
+
+    // Constructors
+
+    /**
+     * Creates a throttle with the default limits: 10 attempts per username and 100 per source per minute.
+     */
+    public LoginThrottle() {
+        this(DEFAULT_USERNAME_LIMIT, DEFAULT_SOURCE_LIMIT, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * Creates a throttle with explicit limits.
+     * @param usernameLimit The attempts allowed per username per window.
+     * @param sourceLimit The attempts allowed per source per window.
+     * @param windowMillis The length of the sliding window.
+     * @param maxKeys The number of usernames, and of sources, tracked at most.
+     */
+    public LoginThrottle(int usernameLimit, int sourceLimit, long windowMillis, int maxKeys) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive");
+        }
+        this.windowMillis = windowMillis;
+        this.usernames = new Table("username", usernameLimit, USERNAME_FREE_FAILURES, false, maxKeys);
+        this.sources = new Table("source", sourceLimit, SOURCE_FREE_FAILURES, true, maxKeys);
+    }
+
+
+    // Methods
+
+    /**
+     * Counts a login attempt, or refuses it if the source or the username is over its limit or
+     * backing off. Call before any hashing or database work. Usernames are counted the way the
+     * store compares them, so "alice" and "ALICE" share one budget.
+     * @param username The username being logged in to.
+     * @param source Where the attempt comes from, or null if unknown.
+     * @throws LoginThrottledException if the attempt must not be processed.
+     */
+    public void acquire(String username, String source) {
+        long now = now();
+        if (isLimited(source)) {
+            sources.acquire(source, now);
+        }
+        usernames.acquire(Usernames.fold(username), now);
+    }
+
+    /**
+     * Records a failed login, extending the backoff of the username and the source.
+     * @param username The username that failed.
+     * @param source Where the attempt came from, or null if unknown.
+     */
+    public void recordFailure(String username, String source) {
+        long now = now();
+        usernames.failure(Usernames.fold(username), now);
+        if (isLimited(source)) {
+            sources.failure(source, now);
+        }
+    }
+
+    /**
+     * Records a successful login, clearing the failures of the username and the source.
+     * @param username The username that logged in.
+     * @param source Where the attempt came from, or null if unknown.
+     */
+    public void recordSuccess(String username, String source) {
+        usernames.success(Usernames.fold(username));
+        if (isLimited(source)) {
+            sources.success(source);
+        }
+    }
+
+    /**
+     * @return True if attempts from the source are counted against it.
+     */
+    private boolean isLimited(String source) {
+        if (source == null) {
+            return false;
+        }
+        return limitLoopbackSources || !(source.startsWith("127.") || source.equals("::1") || source.equals("0:0:0:0:0:0:0:1"));
+    }
+
+    /**
+     * Moves a counter's window forward to the current time.
+     */
+    private void rotate(Counter counter, long now) {
+        long window = Math.floorDiv(now, windowMillis);
+        if (window != counter.window) {
+            counter.previous = window == counter.window + 1 ? counter.current : 0;
+            counter.current = 0;
+            counter.window = window;
+        }
+    }
+
+    /**
+     * @return The attempts in the last windowMillis, assuming the previous window's were evenly spread.
+     */
+    private double estimate(Counter counter, long now) {
+        double previousShare = 1.0 - (double) Math.floorMod(now, windowMillis) / windowMillis;
+        return counter.previous * previousShare + counter.current;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+
+    // Setters
+
+    /**
+     * Set whether loopback sources (127.0.0.0/8 and ::1) are limited like other sources. Only turn
+     * this on when clients really connect from distinct loopback addresses, not through a local proxy.
+     *
+     * @param limitLoopbackSources True to limit them, false to count only their usernames.
+     */
+    public void setLimitLoopbackSources(boolean limitLoopbackSources) {
+        this.limitLoopbackSources = limitLoopbackSources;
+    }
+
+
+    // Getters
+
+    /**
+     * @return The number of attempts refused.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return The number of usernames currently tracked.
+     */
+    public int getTrackedUsernames() {
+        return usernames.size();
+    }
+
+    /**
+     * @return The number of sources currently tracked.
+     */
+    public int getTrackedSources() {
+        return sources.size();
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+
+/**
+ * The LoginThrottledException class reports that a login attempt was refused by the
+ * {@link LoginThrottle} before any password was checked, because the username or the source
+ * made too many attempts or failed too often.
+ */
+public class LoginThrottledException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+
+    /**
+     * @param message Why the attempt was refused.
+     * @param retryAfterMillis How long to wait before the next attempt can succeed.
+     */
+    public LoginThrottledException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return How long to wait, in milliseconds, before the next attempt can succeed.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * The LookupCoalescer class cuts the store round trips made by a burst of logins, in two ways:
+ * - Single flight: a lookup for a username that is already being looked up waits for that lookup's
+ *   result instead of sending its own query, as happens with retries or one user on several devices.
+ *   Spellings the store treats as equal share one lookup. A write to the user's credential must
+ *   call {@link #invalidate(String)}, so later lookups do not join a query that may predate it.
+ * - Micro-batching: lookups for different usernames that arrive while the store is busy are sent
+ *   together as one {@link UserStore#findPasswordHashes} query of at most maxBatchSize usernames.
+ *
+ * No thread is added. The first lookup of a batch leads it: it waits until the batch is full, until
+ * fewer than maxConcurrentQueries queries are running, or for at most maxWait, then sends the query
+ * from its own thread and hands every lookup in the batch its result. A lookup made while the store
+ * has capacity to spare is therefore sent at once, with no added delay; batches only form under
+ * load, when the lookups would have queued for a connection anyway.
+ */
+public class LookupCoalescer {
+
+    // Default tuning values
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final long DEFAULT_MAX_WAIT_MICROS = 2_000;
+
+    // Attributes
+    private final UserStore store;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final int maxConcurrentQueries;
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>(); // folded username -> its pending result
+
+    // Guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition(); // a batch was closed or a query finished
+    private Map<String, CompletableFuture<String>> open = new LinkedHashMap<>(); // the batch new lookups join
+    private int running; // queries being sent
+
+    // Metrics
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder batchedLookups = new LongAdder();
+
+
+    // Constructors
+
+    /**
+     * Creates a coalescer with the default batch size and wait, sending at most half as many
+     * queries at once as the store serves well (for MySQL, one per pooled connection).
+     * @param store The store to look users up in.
+     */
+    public LookupCoalescer(UserStore store) {
+        this(store, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_WAIT_MICROS);
+    }
+
+    /**
+     * Creates a coalescer with an explicit batch size and wait.
+     * @param store The store to look users up in.
+     * @param maxBatchSize The most usernames sent in one query; 1 turns batching off.
+     * @param maxWaitMicros The longest a lookup waits for others to join its batch; 0 turns batching off.
+     */
+    public LookupCoalescer(UserStore store, int maxBatchSize, long maxWaitMicros) {
+        this(store, maxBatchSize, maxWaitMicros, Math.max(1, store.getConcurrencyHint() / 2));
+    }
+
+    /**
+     * Creates a coalescer with explicit limits.
+     * @param store The store to look users up in.
+     * @param maxBatchSize The most usernames sent in one query; 1 turns batching off.
+     * @param maxWaitMicros The longest a lookup waits for others to join its batch; 0 turns batching off.
+     * @param maxConcurrentQueries How many queries may run before new lookups wait to be batched.
+     */
+    public LookupCoalescer(UserStore store, int maxBatchSize, long maxWaitMicros, int maxConcurrentQueries) {
+        if (maxBatchSize <= 0 || maxWaitMicros < 0 || maxConcurrentQueries <= 0) {
+            throw new IllegalArgumentException("maxBatchSize and maxConcurrentQueries must be positive, maxWaitMicros not negative");
+        }
+        this.store = store;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.maxConcurrentQueries = maxConcurrentQueries;
+    }
+
+
+    // Methods
+
+    /**
+     * Looks up a user's encoded password hash, sharing the query with concurrent lookups.
+     * @param username The username to look up.
+     * @return The encoded password hash, or null if the username is not registered.
+     * @throws UserStoreException if the store cannot be reached.
+     */
+    public String findPasswordHash(String username) throws UserStoreException {
+        lookups.increment();
+        CompletableFuture<String> result = new CompletableFuture<>();
+        String key = Usernames.fold(username);
+        CompletableFuture<String> pending = inFlight.putIfAbsent(key, result);
+        if (pending != null) {
+            coalesced.increment();
+            return await(pending);
+        }
+
+        Map<String, CompletableFuture<String>> batch;
+        CompletableFuture<String> queued;
+        boolean leader = false;
+        lock.lock();
+        try {
+            batch = open;
+            queued = batch.get(username);
+            if (queued == null) {
+                leader = batch.isEmpty();
+                batch.put(username, result);
+                if (batch.size() >= maxBatchSize) {
+                    open = new LinkedHashMap<>(); // full: its leader sends it now
+                    changed.signalAll();
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        if (queued != null) {
+            // An invalidated lookup of this username is still waiting to be sent, so its query
+            // reads the store after the write as well: share its result
+            coalesced.increment();
+            queued.whenComplete((passwordHash, error) -> {
+                inFlight.remove(key, result);
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(passwordHash);
+                }
+            });
+            return await(result);
+        }
+        if (leader) {
+            lead(batch);
+        }
+        return await(result);
+    }
+
+    /**
+     * Waits for the batch to be worth sending, closes it, and sends it.
+     */
+    private void lead(Map<String, CompletableFuture<String>> batch) {
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            long remaining = maxWaitNanos;
+            while (open == batch && running >= maxConcurrentQueries && remaining > 0) {
+                try {
+                    remaining = changed.awaitNanos(remaining);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true; // send the batch anyway, other lookups are waiting for it
+                    break;
+                }
+            }
+            if (open == batch) {
+                open = new LinkedHashMap<>();
+            }
+            running++;
+        }
+        finally {
+            lock.unlock();
+        }
+
+        try {
+            send(batch);
+        }
+        finally {
+            lock.lock();
+            try {
+                running--;
+                changed.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends one query for the batch and completes every lookup in it. A username stops being in
+     * flight before its result is published, so a lookup made after that sends a fresh query.
+     */
+    private void send(Map<String, CompletableFuture<String>> batch) {
+        queries.increment();
+        batchedLookups.add(batch.size());
+        try {
+            Map<String, String> found;
+            if (batch.size() == 1) {
+                String username = batch.keySet().iterator().next();
+                String passwordHash = store.findPasswordHash(username);
+                found = passwordHash == null ? Map.of() : Map.of(username, passwordHash);
+            } else {
+                found = store.findPasswordHashes(batch.keySet());
+            }
+            for (Map.Entry<String, CompletableFuture<String>> lookup : batch.entrySet()) {
+                inFlight.remove(Usernames.fold(lookup.getKey()), lookup.getValue());
+                lookup.getValue().complete(found.get(lookup.getKey()));
+            }
+        }
+        catch (UserStoreException | RuntimeException e) {
+            for (Map.Entry<String, CompletableFuture<String>> lookup : batch.entrySet()) {
+                inFlight.remove(Usernames.fold(lookup.getKey()), lookup.getValue());
+                lookup.getValue().completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Ends the single flight of a username, so lookups made from now on send a fresh query instead
+     * of joining one that may have read the store before a write. Call after every write to the
+     * user's credential, such as a registration or a password change. Lookups already waiting still
+     * get the result of their query.
+     * @param username The username written.
+     */
+    public void invalidate(String username) {
+        inFlight.remove(Usernames.fold(username));
+    }
+
+    private static String await(CompletableFuture<String> result) throws UserStoreException {
+        try {
+            return result.join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UserStoreException) {
+                throw new UserStoreException(cause.getMessage(), cause); // thrown again in this thread
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+
+    // Getters
+
+    /**
+     * @return The largest number of usernames sent in one query.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @return The longest a lookup waits for others to join its batch, in microseconds.
+     */
+    public long getMaxWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos);
+    }
+
+    /**
+     * @return The number of lookups made.
+     */
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    /**
+     * @return The number of lookups answered by another lookup's query for the same username.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return The number of queries sent to the store.
+     */
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    /**
+     * @return The average number of usernames per query sent, or 0 if none was sent.
+     */
+    public double getAverageBatchSize() {
+        long sent = queries.sum();
+        return sent == 0 ? 0.0 : (double) batchedLookups.sum() / sent;
+    }
+
+    /**
+     * @return The number of lookups per query sent, the factor by which round trips were cut.
+     */
+    public double getLookupsPerQuery() {
+        long sent = queries.sum();
+        return sent == 0 ? 0.0 : (double) lookups.sum() / sent;
+    }
+
+    /**
+     * @return A one-line summary of the coalescer metrics.
+     */
+    @Override
+    public String toString() {
+        return String.format("LookupCoalescer[lookups=%d, coalesced=%d, queries=%d, averageBatch=%.1f, lookupsPerQuery=%.1f]",
+                getLookupCount(), getCoalescedCount(), getQueryCount(), getAverageBatchSize(), getLookupsPerQuery());
+    }
+}
@@ -0,0 +1,728 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * The OffHeapCredentialIndex class keeps username -> password hash entries in a memory-mapped file
+ * instead of on the Java heap, so millions of users can stay hot without garbage collection cost,
+ * and a restarted process finds the index already filled.
+ *
+ * The file is one open-addressing hash table (linear probing) of fixed 88-byte slots after a
+ * 64-byte header. A slot holds:
+ * - a version number, odd while the slot is being written (a seqlock)
+ * - a 32-bit fingerprint of the username, 0 for an empty slot
+ * - the algorithm, iteration count, salt (up to 16 bytes) and raw hash (32 bytes)
+ * - the username, folded like the store's collation (see {@link Usernames#fold}), as up to 24 UTF-8 bytes
+ * - the epoch it was written in
+ * Usernames longer than 24 bytes and hashes of other algorithms are simply not indexed.
+ *
+ * Only entries of the header's current epoch are used. When the index is opened for writing, the
+ * store's credential stamp (see {@link UserStore#getCredentialStamp()}) is compared with the one
+ * recorded when the index was last closed: if they match, no password changed meanwhile and every
+ * entry is used at once; otherwise, or after a crash, a new epoch starts and the index refills.
+ * A new epoch empties the table. Entries marked "ask the store" are reused for new users, and
+ * once they take a twentieth of the table they are removed, so it never fills up with dead entries.
+ * A lookup that started before a write to the index is not stored, see {@link #startLoad()}, so a
+ * hash read just before a password change cannot overwrite the new one.
+ *
+ * One process opens the index for writing, and its writes are serialized. Any number of threads,
+ * in that process or in other processes mapping the same file read-only, read without locks: a
+ * reader copies a slot and retries if its version changed meanwhile. Finding the slot of an ASCII
+ * username allocates no memory; only the returned {@link StoredPassword} is allocated.
+ *
+ * Sized at about 1.1 slots per user, the file takes under 100 bytes per user.
+ *
+ * The index is a cache of the {@link UserStore}: a miss only means "ask the store".
+ */
+public class OffHeapCredentialIndex implements AutoCloseable {
+
+    public static final int SLOT_BYTES = 88;
+    public static final int MAX_USERNAME_BYTES = 24;
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    private static final int MAX_CAPACITY = 1 << 24; // 1.4 GB of slots, within one mapping
+    private static final double MAX_LOAD = 0.9;
+    private static final int PURGE_DEAD_FRACTION = 20; // remove dead entries once they take 1/20 of the slots
+    private static final int HEADER_BYTES = 64;
+    private static final long MAGIC = 0x5550494458303033L; // "UPIDX003"
+    private static final long OLD_MAGIC_PREFIX = 0x5550494458303000L; // "UPIDX00": earlier formats, emptied on open
+
+    // Header layout
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_SIZE = 12;        // entries of the current epoch
+    private static final int HEADER_USED = 16;        // slots ever filled, of any epoch
+    private static final int HEADER_EPOCH = 20;       // 1 to 255
+    private static final int HEADER_STORE_STAMP = 24; // the store's credential stamp at the last clean close
+
+    // Slot layout
+    private static final int VERSION = 0;
+    private static final int FINGERPRINT = 4;
+    private static final int ALGORITHM = 8;
+    private static final int NAME_LENGTH = 9;
+    private static final int SALT_LENGTH = 10;
+    private static final int ITERATIONS = 11;
+    private static final int SALT = 15;
+    private static final int HASH = 31;
+    private static final int NAME = 63;
+    private static final int EPOCH = 87;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+
+    // Algorithm codes; 0 marks a slot whose entry must be read from the store
+    private static final byte NOT_INDEXED = 0;
+    private static final byte SHA256 = 1;
+    private static final byte PBKDF2_SHA256 = 2;
+
+    private static final int MAX_READ_ATTEMPTS = 100_000; // a writer that died mid-update leaves an odd version
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final ThreadLocal<byte[]> NAME_BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_USERNAME_BYTES]);
+
+    // Attributes
+    private final Path file;
+    private final FileChannel channel;
+    private final FileLock writerLock; // null when read-only
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final boolean readOnly;
+    private long generation; // advanced by every write not stamped by startLoad(); guarded by this
+
+
+    // Constructor
+
+    private OffHeapCredentialIndex(Path file, FileChannel channel, FileLock writerLock, MappedByteBuffer buffer, int capacity, boolean readOnly) {
+        this.file = file;
+        this.channel = channel;
+        this.writerLock = writerLock;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Opens an index for reading and writing without a store stamp, so its entries are not trusted
+     * and it starts empty, creating the file if it does not exist.
+     * @see #openForWriting(Path, int, long)
+     */
+    public static OffHeapCredentialIndex openForWriting(Path file, int capacity) throws IOException {
+        return openForWriting(file, capacity, UserStore.UNKNOWN_CREDENTIAL_STAMP);
+    }
+
+    /**
+     * Opens an index for reading and writing, creating the file if it does not exist. Its entries
+     * are used only if the index was closed with the same store stamp; otherwise it starts empty.
+     * Only one process at a time can open an index for writing.
+     * @param file The index file.
+     * @param capacity The number of slots for a new file. An existing file keeps its capacity.
+     *                 About 90% of the slots can be used.
+     * @param storeStamp The store's current {@link UserStore#getCredentialStamp()}.
+     * @return The index.
+     * @throws IOException if the file cannot be mapped, is not an index, or another writer has it open.
+     */
+    public static OffHeapCredentialIndex openForWriting(Path file, int capacity, long storeStamp) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("Credential index " + file + " is already open for writing");
+            }
+
+            if (channel.size() >= HEADER_BYTES) {
+                long magic = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).getLong(HEADER_MAGIC);
+                if (magic != MAGIC && (magic & ~0xFFL) == OLD_MAGIC_PREFIX) {
+                    channel.truncate(0); // an index of an earlier format; it is only a cache, so start afresh
+                }
+            }
+            boolean created = channel.size() == 0;
+            int slots = created ? checkCapacity(capacity) : readCapacity(channel, file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) slots * SLOT_BYTES);
+            if (created) {
+                buffer.putLong(HEADER_MAGIC, MAGIC);
+                buffer.putInt(HEADER_CAPACITY, slots);
+                buffer.putInt(HEADER_SIZE, 0);
+                buffer.putInt(HEADER_USED, 0);
+                buffer.putInt(HEADER_EPOCH, 1);
+                buffer.putLong(HEADER_STORE_STAMP, UserStore.UNKNOWN_CREDENTIAL_STAMP);
+            }
+            OffHeapCredentialIndex index = new OffHeapCredentialIndex(file, channel, lock, buffer, slots, false);
+            index.repair();
+            long closedAt = buffer.getLong(HEADER_STORE_STAMP);
+            if (storeStamp == UserStore.UNKNOWN_CREDENTIAL_STAMP || closedAt != storeStamp) {
+                index.newEpoch(); // passwords may have changed since the entries were written
+            }
+            // Until a clean close records the stamp again, a crash leaves the entries untrusted
+            buffer.putLong(HEADER_STORE_STAMP, UserStore.UNKNOWN_CREDENTIAL_STAMP);
+            buffer.force();
+            return index;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing index read-only. Updates made by the writing process, including a new
+     * epoch started when it opens the index, are seen as they happen.
+     * @param file The index file.
+     * @return The index.
+     * @throws IOException if the file cannot be mapped or is not an index.
+     */
+    public static OffHeapCredentialIndex openReadOnly(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            int slots = readCapacity(channel, file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES + (long) slots * SLOT_BYTES);
+            return new OffHeapCredentialIndex(file, channel, null, buffer, slots, true);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static int checkCapacity(int capacity) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY);
+        }
+        return capacity;
+    }
+
+    private static int readCapacity(FileChannel channel, Path file) throws IOException {
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        int slots = header.getInt(HEADER_CAPACITY);
+        if (header.getLong(HEADER_MAGIC) != MAGIC || slots <= 0 || slots > MAX_CAPACITY
+                || channel.size() < HEADER_BYTES + (long) slots * SLOT_BYTES) {
+            throw new IOException(file + " is not a credential index");
+        }
+        return slots;
+    }
+
+
+    // Methods
+
+    /**
+     * Looks up a user's password hash.
+     * @param username The username, in any spelling the store treats as equal.
+     * @return The stored password, or null if the user is not in the index or the entry is of an earlier epoch.
+     */
+    public StoredPassword get(String username) {
+        byte[] name = NAME_BUFFER.get();
+        int nameLength = encode(username, name);
+        if (nameLength < 0) {
+            return null;
+        }
+        int fingerprint = fingerprint(name, nameLength);
+        byte epoch = (byte) (int) INT.getAcquire(buffer, HEADER_EPOCH);
+
+        int slot = home(fingerprint);
+        for (int probe = 0; probe < capacity; probe++, slot = next(slot)) {
+            int base = HEADER_BYTES + slot * SLOT_BYTES;
+            for (int attempt = 0; ; attempt++) {
+                if (attempt == MAX_READ_ATTEMPTS) {
+                    return null; // the slot is stuck mid-update; let the store answer
+                }
+                int before = (int) INT.getAcquire(buffer, base + VERSION);
+                if ((before & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                int slotFingerprint = buffer.getInt(base + FINGERPRINT);
+                boolean match = slotFingerprint == fingerprint && nameEquals(base, name, nameLength);
+                StoredPassword result = match && buffer.get(base + EPOCH) == epoch ? read(base) : null;
+                VarHandle.acquireFence();
+                if ((int) INT.getAcquire(buffer, base + VERSION) != before) {
+                    continue; // written while we read it
+                }
+                if (slotFingerprint == 0) {
+                    return null; // end of the probe chain
+                }
+                if (match) {
+                    return result;
+                }
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Call before reading a password hash from the store, and pass the result to {@link #put(String, StoredPassword, long)}.
+     * @return A stamp that tells whether the index was written since.
+     */
+    public synchronized long startLoad() {
+        return generation;
+    }
+
+    /**
+     * Adds a password hash read from the store, unless the index was written since the read started.
+     * @param username The username.
+     * @param password The stored password read.
+     * @param loadStarted The stamp from {@link #startLoad()} taken before the read.
+     * @return True if the entry is now in the index.
+     */
+    public synchronized boolean put(String username, StoredPassword password, long loadStarted) {
+        if (generation != loadStarted) {
+            return false; // may be older than a password change already written here
+        }
+        return write(username, password);
+    }
+
+    /**
+     * Adds or replaces a user's password hash after it was written to the store. Does nothing on a
+     * read-only index. A hash that cannot be indexed (another algorithm, an unexpected length) marks
+     * an existing entry as "ask the store", so an outdated hash is never returned.
+     * @param username The username.
+     * @param password The user's current stored password.
+     * @return True if the entry is now in the index; false if it could not be indexed or the index is full.
+     */
+    public synchronized boolean put(String username, StoredPassword password) {
+        generation++;
+        return write(username, password);
+    }
+
+    /**
+     * Writes a slot. Must hold the monitor.
+     */
+    private boolean write(String username, StoredPassword password) {
+        if (readOnly) {
+            return false;
+        }
+        byte[] name = NAME_BUFFER.get();
+        int nameLength = encode(username, name);
+        if (nameLength < 0) {
+            return false;
+        }
+        int fingerprint = fingerprint(name, nameLength);
+        byte algorithm = algorithmCode(password);
+        byte epoch = (byte) buffer.getInt(HEADER_EPOCH);
+
+        int slot = findSlot(name, nameLength, fingerprint);
+        boolean sameName = slot >= 0;
+        boolean wasLive = sameName && isLive(HEADER_BYTES + slot * SLOT_BYTES, epoch);
+        boolean isEmpty = false;
+        if (!sameName) {
+            if (algorithm == NOT_INDEXED) {
+                return false; // nothing to mark
+            }
+            slot = reusableSlot(fingerprint);
+            if (slot < 0) {
+                if (buffer.getInt(HEADER_USED) + 1 > capacity * MAX_LOAD
+                        && (long) (buffer.getInt(HEADER_USED) - size()) * PURGE_DEAD_FRACTION >= capacity) {
+                    purge();
+                }
+                slot = emptySlot(fingerprint);
+                if (slot < 0 || buffer.getInt(HEADER_USED) + 1 > capacity * MAX_LOAD) {
+                    return false; // full
+                }
+                isEmpty = true;
+            }
+        }
+        int base = HEADER_BYTES + slot * SLOT_BYTES;
+
+        int version = buffer.getInt(base + VERSION);
+        INT.setOpaque(buffer, base + VERSION, version + 1);
+        VarHandle.storeStoreFence();
+        buffer.put(base + ALGORITHM, algorithm);
+        if (algorithm != NOT_INDEXED) {
+            buffer.putInt(base + ITERATIONS, password.getIterations());
+            buffer.put(base + SALT_LENGTH, (byte) password.getSalt().length);
+            buffer.put(base + SALT, password.getSalt());
+            buffer.put(base + HASH, password.getHash());
+        }
+        buffer.put(base + EPOCH, epoch);
+        if (!sameName) {
+            buffer.put(base + NAME_LENGTH, (byte) nameLength);
+            buffer.put(base + NAME, name, 0, nameLength);
+            buffer.putInt(base + FINGERPRINT, fingerprint);
+        }
+        INT.setRelease(buffer, base + VERSION, version + 2);
+
+        boolean isLive = algorithm != NOT_INDEXED;
+        if (isLive != wasLive) {
+            buffer.putInt(HEADER_SIZE, size() + (isLive ? 1 : -1));
+        }
+        if (isEmpty) {
+            buffer.putInt(HEADER_USED, buffer.getInt(HEADER_USED) + 1);
+        }
+        return isLive;
+    }
+
+    /**
+     * @return True if the slot holds a usable entry of the epoch.
+     */
+    private boolean isLive(int base, byte epoch) {
+        return buffer.get(base + EPOCH) == epoch && buffer.get(base + ALGORITHM) != NOT_INDEXED;
+    }
+
+    /**
+     * Marks a user's entry as "ask the store", for example when a password update failed and the
+     * stored hash is uncertain. Does nothing on a read-only index.
+     * @param username The username.
+     */
+    public void invalidate(String username) {
+        put(username, StoredPassword.parse(null)); // an unparseable hash is never indexed
+    }
+
+    /**
+     * Finds the slot holding a username, of any epoch. Must hold the monitor.
+     * @return The slot, or -1 if the username is in no slot.
+     */
+    private int findSlot(byte[] name, int nameLength, int fingerprint) {
+        int slot = home(fingerprint);
+        for (int probe = 0; probe < capacity; probe++, slot = next(slot)) {
+            int base = HEADER_BYTES + slot * SLOT_BYTES;
+            int slotFingerprint = buffer.getInt(base + FINGERPRINT);
+            if (slotFingerprint == 0) {
+                return -1;
+            }
+            if (slotFingerprint == fingerprint && nameEquals(base, name, nameLength)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first slot on a username's probe chain whose entry is dead: of an earlier epoch, or
+     * marked "ask the store". Must hold the monitor, and the username must be in no slot.
+     * @return The slot, or -1 if the chain has none.
+     */
+    private int reusableSlot(int fingerprint) {
+        byte epoch = (byte) buffer.getInt(HEADER_EPOCH);
+        int slot = home(fingerprint);
+        for (int probe = 0; probe < capacity; probe++, slot = next(slot)) {
+            int base = HEADER_BYTES + slot * SLOT_BYTES;
+            if (buffer.getInt(base + FINGERPRINT) == 0) {
+                return -1;
+            }
+            if (!isLive(base, epoch)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the empty slot that ends a username's probe chain. Must hold the monitor.
+     * @return The slot, or -1 if the table has no empty slot left.
+     */
+    private int emptySlot(int fingerprint) {
+        int slot = home(fingerprint);
+        for (int probe = 0; probe < capacity; probe++, slot = next(slot)) {
+            if (buffer.getInt(HEADER_BYTES + slot * SLOT_BYTES + FINGERPRINT) == 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts a new epoch and empties the table. Readers ignore the old entries as soon as the
+     * epoch changes, before their slots are cleared.
+     */
+    private synchronized void newEpoch() {
+        generation++;
+        INT.setRelease(buffer, HEADER_EPOCH, buffer.getInt(HEADER_EPOCH) % 255 + 1);
+        for (int slot = 0; slot < capacity; slot++) {
+            if (buffer.getInt(HEADER_BYTES + slot * SLOT_BYTES + FINGERPRINT) != 0) {
+                clear(slot);
+            }
+        }
+        buffer.putInt(HEADER_SIZE, 0);
+        buffer.putInt(HEADER_USED, 0);
+    }
+
+    /**
+     * Removes the dead entries (of an earlier epoch, or marked "ask the store") from the table,
+     * moving later entries of each probe chain back so they stay reachable. A reader may miss an
+     * entry while it moves, and then asks the store. Must hold the monitor.
+     */
+    private void purge() {
+        byte epoch = (byte) buffer.getInt(HEADER_EPOCH);
+        int used = buffer.getInt(HEADER_USED);
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = HEADER_BYTES + slot * SLOT_BYTES;
+            while (buffer.getInt(base + FINGERPRINT) != 0 && !isLive(base, epoch)) {
+                remove(slot);
+                used--;
+            }
+        }
+        buffer.putInt(HEADER_USED, used);
+    }
+
+    /**
+     * Empties a slot by linear-probing deletion: later entries of its cluster that may not skip
+     * the hole are moved into it, and the last slot moved from is cleared.
+     */
+    private void remove(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = next(slot);
+            int base = HEADER_BYTES + slot * SLOT_BYTES;
+            int fingerprint = buffer.getInt(base + FINGERPRINT);
+            if (fingerprint == 0) {
+                break;
+            }
+            int home = home(fingerprint);
+            boolean reachable = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+            if (!reachable) {
+                move(slot, hole);
+                hole = slot;
+            }
+        }
+        clear(hole);
+    }
+
+    private void move(int from, int to) {
+        int fromBase = HEADER_BYTES + from * SLOT_BYTES;
+        int toBase = HEADER_BYTES + to * SLOT_BYTES;
+        int version = buffer.getInt(toBase + VERSION);
+        INT.setOpaque(buffer, toBase + VERSION, version + 1);
+        VarHandle.storeStoreFence();
+        for (int offset = FINGERPRINT; offset < SLOT_BYTES; offset++) {
+            buffer.put(toBase + offset, buffer.get(fromBase + offset));
+        }
+        INT.setRelease(buffer, toBase + VERSION, version + 2);
+    }
+
+    private void clear(int slot) {
+        int base = HEADER_BYTES + slot * SLOT_BYTES;
+        int version = buffer.getInt(base + VERSION);
+        INT.setOpaque(buffer, base + VERSION, version + 1);
+        VarHandle.storeStoreFence();
+        buffer.put(base + ALGORITHM, NOT_INDEXED);
+        buffer.putInt(base + FINGERPRINT, 0);
+        INT.setRelease(buffer, base + VERSION, version + 2);
+    }
+
+    /**
+     * Finishes slots left mid-update by a writer that crashed: their contents are not trusted.
+     * Also recounts the used slots, which a crash can leave one short.
+     */
+    private void repair() {
+        int repaired = 0;
+        int used = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = HEADER_BYTES + slot * SLOT_BYTES;
+            int version = buffer.getInt(base + VERSION);
+            if ((version & 1) != 0) {
+                buffer.put(base + ALGORITHM, NOT_INDEXED);
+                buffer.putInt(base + VERSION, version + 1);
+                repaired++;
+            }
+            if (buffer.getInt(base + FINGERPRINT) != 0) {
+                used++;
+            }
+        }
+        buffer.putInt(HEADER_USED, used);
+        if (repaired > 0) {
+            System.out.println("Credential index " + file + ": " + repaired + " interrupted updates discarded");
+        }
+    }
+
+    private StoredPassword read(int base) {
+        byte algorithm = buffer.get(base + ALGORITHM);
+        if (algorithm == NOT_INDEXED) {
+            return null;
+        }
+        int saltLength = Math.min(buffer.get(base + SALT_LENGTH) & 0xFF, SALT_BYTES);
+        byte[] salt = new byte[saltLength];
+        byte[] hash = new byte[HASH_BYTES];
+        buffer.get(base + SALT, salt);
+        buffer.get(base + HASH, hash);
+        return new StoredPassword(algorithm == SHA256 ? Sha256PasswordHasher.ALGORITHM : Pbkdf2PasswordHasher.ALGORITHM,
+                buffer.getInt(base + ITERATIONS), salt, hash);
+    }
+
+    private static byte algorithmCode(StoredPassword password) {
+        if (password.getHash().length != HASH_BYTES || password.getSalt().length > SALT_BYTES) {
+            return NOT_INDEXED;
+        }
+        if (Sha256PasswordHasher.ALGORITHM.equals(password.getAlgorithm())) {
+            return SHA256;
+        }
+        if (Pbkdf2PasswordHasher.ALGORITHM.equals(password.getAlgorithm())) {
+            return PBKDF2_SHA256;
+        }
+        return NOT_INDEXED;
+    }
+
+    private boolean nameEquals(int base, byte[] name, int nameLength) {
+        if ((buffer.get(base + NAME_LENGTH) & 0xFF) != nameLength) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (buffer.get(base + NAME + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps a fingerprint onto [0, capacity) with a multiply instead of a division.
+     */
+    private int home(int fingerprint) {
+        int mixed = fingerprint * 0x9E3779B9;
+        return (int) (((mixed & 0xFFFFFFFFL) * capacity) >>> 32);
+    }
+
+    private int next(int slot) {
+        return slot + 1 == capacity ? 0 : slot + 1;
+    }
+
+    /**
+     * FNV-1a over the username bytes, never 0 (0 marks an empty slot).
+     */
+    private static int fingerprint(byte[] name, int nameLength) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < nameLength; i++) {
+            hash = (hash ^ (name[i] & 0xFF)) * 0x01000193;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Folds a username (see {@link Usernames#fold}) and encodes it as UTF-8 into a reusable
+     * buffer. ASCII usernames, the common case, are folded while encoding, without allocating.
+     * @return The number of bytes, or -1 if the username is too long or not valid UTF-16.
+     */
+    private static int encode(String username, byte[] out) {
+        if (username == null) {
+            return -1;
+        }
+        int end = username.length();
+        while (end > 0 && username.charAt(end - 1) == ' ') {
+            end--;
+        }
+        for (int i = 0; i < end; i++) {
+            if (username.charAt(i) >= 128) {
+                return encodeUtf8(Usernames.fold(username), out);
+            }
+        }
+        if (end > MAX_USERNAME_BYTES) {
+            return -1;
+        }
+        for (int i = 0; i < end; i++) {
+            char c = username.charAt(i);
+            out[i] = (byte) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+        }
+        return end;
+    }
+
+    /**
+     * Encodes a folded username as UTF-8 into a reusable buffer.
+     * @return The number of bytes, or -1 if the username is too long or not valid UTF-16.
+     */
+    private static int encodeUtf8(String username, byte[] out) {
+        if (username.length() > MAX_USERNAME_BYTES) {
+            return -1;
+        }
+        int length = 0;
+        for (int i = 0; i < username.length(); i++) {
+            int c = username.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < username.length() && Character.isLowSurrogate(username.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, username.charAt(++i));
+            } else if (Character.isSurrogate((char) c)) {
+                return -1;
+            }
+            int bytes = c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+            if (length + bytes > MAX_USERNAME_BYTES) {
+                return -1;
+            }
+            if (bytes == 1) {
+                out[length++] = (byte) c;
+            } else if (bytes == 2) {
+                out[length++] = (byte) (0xC0 | (c >> 6));
+                out[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (bytes == 3) {
+                out[length++] = (byte) (0xE0 | (c >> 12));
+                out[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[length++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                out[length++] = (byte) (0xF0 | (c >> 18));
+                out[length++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+                out[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the index to disk (if writable) and closes the file without recording a store stamp,
+     * so the next process to open it for writing starts a new epoch.
+     */
+    @Override
+    public void close() {
+        close(UserStore.UNKNOWN_CREDENTIAL_STAMP);
+    }
+
+    /**
+     * Writes the index to disk (if writable), records the store stamp it matches, and closes the
+     * file. The mapping itself is released when it is garbage collected.
+     * @param storeStamp The store's {@link UserStore#getCredentialStamp()}, read after the last
+     *                   credential write was applied to this index.
+     */
+    public synchronized void close(long storeStamp) {
+        try {
+            if (!readOnly) {
+                buffer.force();
+                buffer.putLong(HEADER_STORE_STAMP, storeStamp); // only once every entry is on disk
+                buffer.force();
+                writerLock.release();
+            }
+            channel.close();
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+
+    // Getters
+
+    /**
+     * @return The number of users in the index, in the current epoch.
+     */
+    public int size() {
+        return buffer.getInt(HEADER_SIZE);
+    }
+
+    /**
+     * @return The number of slots.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return True if this index was opened read-only.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return Bytes of file per indexed user, the header and free slots included.
+     */
+    public double getBytesPerUser() {
+        return (HEADER_BYTES + (double) capacity * SLOT_BYTES) / Math.max(size(), 1);
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+
+/**
+ * The PasswordHasher interface is implemented by each supported password hashing algorithm.
+ * A hasher turns a password into an encoded hash string that records the algorithm, its cost
+ * parameters and its salt, so a stored hash can always be verified with the parameters it was
+ * created with, even after the defaults change.
+ */
+public interface PasswordHasher {
+
+    /**
+     * @return The algorithm identifier written into encoded hashes, for example "pbkdf2-sha256".
+     */
+    String getAlgorithm();
+
+    /**
+     * Hashes a password with this hasher's current parameters and a fresh salt.
+     * @param password The plain text password characters. The caller may clear them afterwards.
+     * @return The encoded hash, ready to be stored.
+     */
+    String hash(char[] password);
+
+    /**
+     * Checks a password against a stored hash created by this hasher.
+     * @param password The plain text password characters.
+     * @param stored The parsed stored hash.
+     * @return True if the password matches.
+     */
+    boolean verify(char[] password, StoredPassword stored);
+
+    /**
+     * Checks whether a stored hash was created with weaker parameters than this hasher's current ones.
+     * @param stored The parsed stored hash.
+     * @return True if the password should be hashed again on the next successful login.
+     */
+    boolean needsRehash(StoredPassword stored);
+
+
+    /**
+     * Compares two byte arrays in constant time. Every byte is always compared, and the result
+     * is accumulated without branching, so timing reveals nothing about where the arrays differ.
+     * @param a The first array.
+     * @param b The second array.
+     * @return True if both arrays have the same length and contents.
+     */
+    static boolean constantTimeEquals(byte[] a, byte[] b) {
+        int diff = a.length ^ b.length;
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            diff |= a[i] ^ b[i];
+        }
+        return diff == 0;
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The PasswordHashing class picks the right {@link PasswordHasher} for each stored hash and runs
+ * all hashing on a dedicated, bounded executor.
+ * New passwords are hashed with the current hasher; stored hashes are verified with the hasher
+ * named in their encoding, so old hashes keep working and can be upgraded on the next login.
+ * The executor has one thread per core and a bounded queue. When the queue is full, new work is
+ * rejected immediately with a {@link RejectedExecutionException}, so a login spike cannot pile up
+ * unbounded CPU work or memory.
+ */
+public class PasswordHashing {
+
+    public static final int DEFAULT_QUEUE_LIMIT = 256;
+
+    private static PasswordHashing defaultInstance;
+
+    // Attributes
+    private final PasswordHasher current;
+    private final Map<String, PasswordHasher> hashers = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected = new LongAdder();
+    private volatile StoredPassword dummyPassword;
+
+
+    // Constructors
+
+    /**
+     * Creates a hashing service.
+     * @param current The hasher used for new passwords.
+     * @param threads The number of hashing threads.
+     * @param queueLimit The maximum number of hashing requests waiting for a thread.
+     */
+    public PasswordHashing(PasswordHasher current, int threads, int queueLimit) {
+        this.current = current;
+        register(current);
+        register(new Sha256PasswordHasher());   // legacy hashes stored before salting was introduced
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueLimit),
+                r -> {
+                    Thread t = new Thread(r, "password-hashing-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                (r, e) -> {
+                    rejected.increment();
+                    throw new RejectedExecutionException("Password hashing queue is full");
+                });
+    }
+
+    /**
+     * Returns the hashing service shared by the application, creating it on first use.
+     * It uses PBKDF2, one thread per core, and a queue limit that can be set with the
+     * {@code auth.hashing.queue} system property.
+     * @return The shared hashing service.
+     */
+    public static synchronized PasswordHashing getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new PasswordHashing(new Pbkdf2PasswordHasher(),
+                    Runtime.getRuntime().availableProcessors(),
+                    Integer.getInteger("auth.hashing.queue", DEFAULT_QUEUE_LIMIT));
+        }
+        return defaultInstance;
+    }
+
+
+    // Methods
+
+    /**
+     * Makes a hasher available for verifying stored hashes of its algorithm.
+     * @param hasher The hasher to register.
+     */
+    public void register(PasswordHasher hasher) {
+        hashers.put(hasher.getAlgorithm(), hasher);
+    }
+
+    /**
+     * Hashes a new password with the current hasher on the hashing executor.
+     * @param password The plain text password characters. The caller may clear them once this is called.
+     * @return A future completed with the encoded hash.
+     * @throws RejectedExecutionException if the hashing queue is full.
+     */
+    public CompletableFuture<String> hashAsync(char[] password) {
+        char[] copy = password.clone();   // the caller may clear its array before the hash runs
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return current.hash(copy);
+            } finally {
+                Arrays.fill(copy, '\0');
+            }
+        }, executor);
+    }
+
+    /**
+     * Hashes a new password with the current hasher, waiting for the hashing executor.
+     * @param password The plain text password characters.
+     * @return The encoded hash.
+     * @throws RejectedExecutionException if the hashing queue is full.
+     */
+    public String hash(char[] password) {
+        return await(hashAsync(password));
+    }
+
+    /**
+     * Verifies a password against a stored hash on the hashing executor.
+     * @param password The plain text password characters. The caller may clear them once this is called.
+     * @param stored The parsed stored hash.
+     * @return A future completed with true if the password matches.
+     * @throws RejectedExecutionException if the hashing queue is full.
+     */
+    public CompletableFuture<Boolean> verifyAsync(char[] password, StoredPassword stored) {
+        PasswordHasher hasher = hashers.get(stored.getAlgorithm());
+        if (hasher == null) {
+            return CompletableFuture.completedFuture(false);   // unknown or unparseable hash never matches
+        }
+        char[] copy = password.clone();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return hasher.verify(copy, stored);
+            } finally {
+                Arrays.fill(copy, '\0');
+            }
+        }, executor);
+    }
+
+    /**
+     * Verifies a password against a stored hash, waiting for the hashing executor.
+     * @param password The plain text password characters.
+     * @param stored The parsed stored hash.
+     * @return True if the password matches.
+     * @throws RejectedExecutionException if the hashing queue is full.
+     */
+    public boolean verify(char[] password, StoredPassword stored) {
+        return await(verifyAsync(password, stored));
+    }
+
+    /**
+     * Checks whether a stored hash should be replaced by a hash from the current hasher.
+     * @param stored The parsed stored hash.
+     * @return True if it uses another algorithm or weaker parameters than the current hasher.
+     */
+    public boolean needsRehash(StoredPassword stored) {
+        return !current.getAlgorithm().equals(stored.getAlgorithm()) || current.needsRehash(stored);
+    }
+
+    /**
+     * Returns a hash of a random password made with the current hasher. Verifying against it
+     * costs the same as verifying a real user, so unknown usernames are not rejected faster.
+     * @return The dummy stored hash.
+     */
+    public StoredPassword getDummyPassword() {
+        StoredPassword dummy = dummyPassword;
+        if (dummy == null) {
+            dummy = StoredPassword.parse(current.hash(Long.toHexString(System.nanoTime()).toCharArray()));
+            dummyPassword = dummy;
+        }
+        return dummy;
+    }
+
+    /**
+     * Waits for a hashing future, unwrapping its failure.
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for password hashing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Stops the hashing threads once queued work is done.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+
+    // Getters
+
+    /**
+     * @return The hasher used for new passwords.
+     */
+    public PasswordHasher getCurrentHasher() {
+        return current;
+    }
+
+    /**
+     * @return The number of hashing requests waiting for a thread.
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return The number of hashing threads currently busy.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return The number of hashing requests rejected because the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
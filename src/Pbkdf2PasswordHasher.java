@@ -0,0 +1,135 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+
+/**
+ * The Pbkdf2PasswordHasher class hashes passwords with salted PBKDF2-HMAC-SHA256.
+ * The iteration count is the cost parameter: every doubling doubles the CPU time of a login,
+ * and of every guess an attacker makes against a leaked hash. Use {@link #calibrate(long)} to
+ * pick an iteration count that meets a latency target on the hardware at hand.
+ */
+public class Pbkdf2PasswordHasher implements PasswordHasher {
+
+    public static final String ALGORITHM = "pbkdf2-sha256";
+    public static final int DEFAULT_ITERATIONS = 600_000;   // OWASP recommendation for PBKDF2-HMAC-SHA256
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+    private static final String JCA_ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Attributes
+    private final int iterations;
+
+
+    // Constructors
+
+    /**
+     * Creates a hasher with the default iteration count, which can be overridden with the
+     * {@code auth.pbkdf2.iterations} system property.
+     */
+    public Pbkdf2PasswordHasher() {
+        this(Integer.getInteger("auth.pbkdf2.iterations", DEFAULT_ITERATIONS));
+    }
+
+    /**
+     * Creates a hasher with an explicit iteration count.
+     * @param iterations The number of PBKDF2 iterations for new hashes.
+     */
+    public Pbkdf2PasswordHasher(int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("iterations must be positive");
+        }
+        this.iterations = iterations;
+    }
+
+
+    // Methods
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public String hash(char[] password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        byte[] hash = derive(password, salt, iterations);
+        return new StoredPassword(ALGORITHM, iterations, salt, hash).encode();
+    }
+
+    @Override
+    public boolean verify(char[] password, StoredPassword stored) {
+        byte[] hash = derive(password, stored.getSalt(), stored.getIterations());
+        return PasswordHasher.constantTimeEquals(hash, stored.getHash());
+    }
+
+    /**
+     * Hashes created with fewer iterations than the current setting are upgraded.
+     */
+    @Override
+    public boolean needsRehash(StoredPassword stored) {
+        return stored.getIterations() < iterations;
+    }
+
+    /**
+     * Runs PBKDF2 over the password.
+     * @param password The password characters.
+     * @param salt The salt.
+     * @param iterations The iteration count.
+     * @return The 32-byte derived key.
+     */
+    private static byte[] derive(char[] password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(JCA_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new RuntimeException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Finds the iteration count whose hashing time is closest to, without exceeding, a latency target
+     * on this machine. The estimate scales a timed sample run, since PBKDF2 time grows linearly with
+     * the iteration count.
+     * @param targetMillis The hashing time wanted for one login, in milliseconds.
+     * @return The suggested iteration count (at least 1000).
+     */
+    public static int calibrate(long targetMillis) {
+        char[] password = "calibration-password".toCharArray();
+        byte[] salt = new byte[SALT_LENGTH];
+        int sample = 10_000;
+
+        derive(password, salt, sample);   // warm up the JIT before timing
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            derive(password, salt, sample);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        long perIteration = Math.max(1, best / sample);
+        long iterations = targetMillis * 1_000_000L / perIteration;
+        return (int) Math.max(1_000, Math.min(Integer.MAX_VALUE, iterations));
+    }
+
+
+    // Getters
+
+    /**
+     * @return The iteration count used for new hashes.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+}
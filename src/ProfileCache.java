@@ -0,0 +1,222 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The ProfileCache class keeps recently viewed user profiles in memory, so showing a profile again
+ * does not read the "users" table again. The least recently used profile is evicted first once the
+ * cache is full, and entries expire after a time-to-live, which bounds how stale the last login time
+ * (written in the background, without invalidation) can be.
+ *
+ * Writers invalidate a profile after changing it. A load that started before an invalidation is not
+ * cached, see {@link #startLoad()}, so a profile read just before an update cannot be put back after it.
+ * Profiles are copied in and out, so callers may change the profiles they get.
+ * The cache is safe to use from many threads at once.
+ */
+public class ProfileCache {
+
+    // Default tuning values
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+    public static final long DEFAULT_TTL_MILLIS = 60_000;   // 1 minute
+
+    /**
+     * A cached profile and when it expires.
+     */
+    private static final class Entry {
+        private final UserProfile profile;
+        private final long expiresAt;
+
+        private Entry(UserProfile profile, long expiresAt) {
+            this.profile = profile;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Attributes
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries; // least recently used first; guarded by this
+    private long generation; // advanced by every invalidation; guarded by this
+
+    // Metrics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+
+    // Constructors
+
+    /**
+     * Creates a cache with the default size and TTL.
+     */
+    public ProfileCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Creates a cache with an explicit size and TTL.
+     * @param maxSize The maximum number of cached profiles.
+     * @param ttlMillis How long a profile stays cached.
+     */
+    public ProfileCache(int maxSize, long ttlMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ProfileCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    // Methods
+
+    /**
+     * Looks up a cached profile and marks it as recently used.
+     * @param username The username, spelled as stored.
+     * @return A copy of the cached profile, or null if it is not cached or has expired.
+     */
+    public UserProfile get(String username) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(username);
+            if (entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+                entries.remove(username);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new UserProfile(entry.profile);
+    }
+
+    /**
+     * Call before reading a profile from the store, and pass the result to {@link #put}.
+     * @return A stamp that tells whether anything was invalidated since.
+     */
+    public synchronized long startLoad() {
+        return generation;
+    }
+
+    /**
+     * Caches a profile read from the store, unless a profile was invalidated since the read started.
+     * @param username The username, spelled as stored.
+     * @param profile The profile read. A copy is cached.
+     * @param loadStarted The stamp from {@link #startLoad()} taken before the read.
+     * @return True if the profile was cached.
+     */
+    public boolean put(String username, UserProfile profile, long loadStarted) {
+        Entry entry = new Entry(new UserProfile(profile), System.currentTimeMillis() + ttlMillis);
+        synchronized (this) {
+            if (generation != loadStarted) {
+                return false; // may be older than a write that has already invalidated it
+            }
+            entries.put(username, entry);
+            return true;
+        }
+    }
+
+    /**
+     * Removes a profile from the cache. Call this after every change to the user's profile.
+     * @param username The username, spelled as stored.
+     */
+    public void invalidate(String username) {
+        boolean removed;
+        synchronized (this) {
+            generation++;
+            removed = entries.remove(username) != null;
+        }
+        if (removed) {
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Removes every profile from the cache.
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+
+    // Getters
+
+    /**
+     * @return The number of profiles currently cached, including expired ones not yet removed.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The maximum number of cached profiles.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return The number of lookups answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of lookups that had to go to the store.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of least recently used profiles removed to keep the cache within its maximum size.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of profiles removed by {@link #invalidate(String)}.
+     */
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return The fraction of lookups answered from the cache, between 0 and 1.
+     */
+    public double getHitRatio() {
+        long found = hits.sum();
+        long lookups = found + misses.sum();
+        return lookups == 0 ? 0.0 : (double) found / lookups;
+    }
+
+    /**
+     * @return A one-line summary of the cache metrics.
+     */
+    @Override
+    public String toString() {
+        return String.format("ProfileCache[size=%d/%d, hits=%d, misses=%d, evictions=%d, invalidations=%d, hitRatio=%.2f]",
+                size(), maxSize, getHitCount(), getMissCount(), getEvictionCount(), getInvalidationCount(), getHitRatio());
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+
+/**
+ * The ProfileUpdateResult enum is the outcome of saving changes to a user's profile.
+ */
+public enum ProfileUpdateResult {
+    /** The profile was saved and its version advanced. */
+    SUCCESS,
+    /** The profile was changed by someone else since it was loaded; nothing was written. Reload it and try again. */
+    VERSION_CONFLICT,
+    /** No user has this username. */
+    NOT_FOUND,
+    /** The database could not be reached or rejected the change for another reason. */
+    ERROR
+}
@@ -0,0 +1,16 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+
+/**
+ * The RegistrationResult enum is the outcome of writing a new user to the database.
+ */
+public enum RegistrationResult {
+    /** The user was written. */
+    SUCCESS,
+    /** Another user already has this username; nothing was written. */
+    DUPLICATE_USERNAME,
+    /** The database could not be reached or rejected the row for another reason. */
+    ERROR
+}
@@ -0,0 +1,229 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The SchemaMigrator class brings the database schema up to date when the application starts.
+ * Each migration has a version number; the versions already applied are recorded in the
+ * "schema_version" table, and only newer migrations run, in order. A MySQL named lock makes
+ * sure that several application instances starting together do not migrate at the same time.
+ */
+public class SchemaMigrator {
+
+    private static final String LOCK_NAME = "userprofiledb_schema_migration";
+    private static final int LOCK_TIMEOUT_SECONDS = 60;
+
+    /**
+     * One migration step, run on a connection inside the migration lock.
+     */
+    @FunctionalInterface
+    public interface Step {
+        void apply(Connection con) throws SQLException;
+    }
+
+    /**
+     * A versioned migration.
+     */
+    private static final class Migration {
+        private final int version;
+        private final String description;
+        private final Step step;
+
+        private Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+
+    // Attributes
+    private final ConnectionPool pool;
+    private final List<Migration> migrations = new ArrayList<>();
+
+
+    // Constructor
+
+    /**
+     * Creates a migrator with every migration of the "users" schema.
+     * @param pool The pool to borrow a connection from.
+     */
+    public SchemaMigrator(ConnectionPool pool) {
+        this.pool = pool;
+
+        add(1, "Create Users table", con -> execute(con,
+                "CREATE TABLE IF NOT EXISTS Users ("
+                + " user_id INT AUTO_INCREMENT PRIMARY KEY,"
+                + " Firstname VARCHAR(45) NOT NULL,"
+                + " Lastname VARCHAR(45) NOT NULL,"
+                + " Username VARCHAR(45) NOT NULL,"
+                + " DOB DATE NOT NULL,"
+                + " PasswordHash VARCHAR(64) NOT NULL)"));
+
+        add(2, "Widen PasswordHash for salted hashes", con -> execute(con,
+                "ALTER TABLE Users MODIFY PasswordHash VARCHAR(255) NOT NULL"));
+
+        add(3, "Unique index on Username", con -> {
+            if (indexExists(con, "Users", "ux_users_username")) {
+                return;   // created by UserProfileDB.sql on a manual setup
+            }
+
+            // A unique index cannot be built over duplicates; refuse with a clear message instead of a driver error
+            try (Statement stmt = con.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM (SELECT Username FROM Users GROUP BY Username HAVING COUNT(*) > 1) d")) {
+                rs.next();
+                int duplicated = rs.getInt(1);
+                if (duplicated > 0) {
+                    throw new SQLException(duplicated + " usernames are registered more than once; "
+                            + "remove or rename the duplicates before the unique index on Username can be created");
+                }
+            }
+            execute(con, "CREATE UNIQUE INDEX ux_users_username ON Users (Username)");
+        });
+
+        add(4, "Last login time and login audit table", con -> {
+            if (!columnExists(con, "Users", "LastLogged")) {
+                execute(con, "ALTER TABLE Users ADD COLUMN LastLogged DATETIME(3) NULL");
+            }
+            execute(con, "CREATE TABLE IF NOT EXISTS login_events ("
+                    + " event_id BIGINT AUTO_INCREMENT PRIMARY KEY,"
+                    + " Username VARCHAR(45) NOT NULL,"
+                    + " occurred_at DATETIME(3) NOT NULL,"
+                    + " success BOOLEAN NOT NULL,"
+                    + " source VARCHAR(45) NULL,"
+                    + " INDEX ix_login_events_username (Username, occurred_at))");
+        });
+
+        add(5, "Profile version for optimistic updates", con -> {
+            if (!columnExists(con, "Users", "Version")) {
+                execute(con, "ALTER TABLE Users ADD COLUMN Version BIGINT NOT NULL DEFAULT 0");
+            }
+        });
+    }
+
+
+    // Methods
+
+    /**
+     * Registers a migration. Versions must be added in increasing order.
+     * @param version The schema version the migration brings the database to.
+     * @param description A short description recorded with the version.
+     * @param step The work to do.
+     */
+    public void add(int version, String description, Step step) {
+        if (!migrations.isEmpty() && migrations.get(migrations.size() - 1).version >= version) {
+            throw new IllegalArgumentException("migration versions must increase: " + version);
+        }
+        migrations.add(new Migration(version, description, step));
+    }
+
+    /**
+     * Applies every migration newer than the database's current version.
+     * @return The schema version after migrating.
+     * @throws SQLException if the lock cannot be taken or a migration fails; migrations applied
+     *         before the failure stay recorded.
+     */
+    public int migrate() throws SQLException {
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            Connection con = pc.getConnection();
+            lock(con);
+            try {
+                execute(con, "CREATE TABLE IF NOT EXISTS schema_version ("
+                        + " version INT PRIMARY KEY,"
+                        + " description VARCHAR(200) NOT NULL,"
+                        + " applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+
+                int current = currentVersion(con);
+                for (Migration migration : migrations) {
+                    if (migration.version <= current) {
+                        continue;
+                    }
+                    System.out.println("Applying schema migration " + migration.version + ": " + migration.description);
+                    migration.step.apply(con);
+                    try (PreparedStatement stmt = con.prepareStatement("INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+                        stmt.setInt(1, migration.version);
+                        stmt.setString(2, migration.description);
+                        stmt.executeUpdate();
+                    }
+                    current = migration.version;
+                }
+                return current;
+            } finally {
+                unlock(con);
+            }
+        }
+    }
+
+    /**
+     * @return The highest applied schema version, or 0 for a new database.
+     */
+    private static int currentVersion(Connection con) throws SQLException {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    /**
+     * @return True if the table in the current database already has an index with this name.
+     */
+    private static boolean indexExists(Connection con, String table, String index) throws SQLException {
+        try (PreparedStatement stmt = con.prepareStatement("SELECT COUNT(*) FROM information_schema.statistics"
+                + " WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?")) {
+            stmt.setString(1, table);
+            stmt.setString(2, index);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1) > 0;
+            }
+        }
+    }
+
+    /**
+     * @return True if the table in the current database already has a column with this name.
+     */
+    private static boolean columnExists(Connection con, String table, String column) throws SQLException {
+        try (PreparedStatement stmt = con.prepareStatement("SELECT COUNT(*) FROM information_schema.columns"
+                + " WHERE table_schema = DATABASE() AND table_name = ? AND column_name = ?")) {
+            stmt.setString(1, table);
+            stmt.setString(2, column);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1) > 0;
+            }
+        }
+    }
+
+    private static void lock(Connection con) throws SQLException {
+        try (PreparedStatement stmt = con.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            stmt.setString(1, LOCK_NAME);
+            stmt.setInt(2, LOCK_TIMEOUT_SECONDS);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) != 1) {
+                    throw new SQLException("Timed out waiting for the schema migration lock");
+                }
+            }
+        }
+    }
+
+    private static void unlock(Connection con) {
+        try (PreparedStatement stmt = con.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            stmt.setString(1, LOCK_NAME);
+            stmt.executeQuery().close();
+        } catch (SQLException e) {
+            System.out.println(e);
+        }
+    }
+
+    private static void execute(Connection con, String sql) throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * The SessionManager class issues a session token when a user logs in, so later requests prove
+ * who they are with the token instead of the password. Checking a token costs an HMAC and a hash
+ * map lookup, a few microseconds, against the hundreds of milliseconds of a password check.
+ *
+ * A token is 16 random bytes followed by the first 16 bytes of their HMAC-SHA256 under a key only
+ * this manager knows, Base64url-encoded. It carries no user data. A token that was not issued here
+ * fails the HMAC check before any lookup.
+ *
+ * Sessions expire after a period without use (sliding idle timeout) and, at the latest, a fixed
+ * time after login. Expired sessions are removed by a hashed timer wheel: each session sits in the
+ * wheel bucket of its deadline, and a background thread visits one bucket per tick. Using a session
+ * only updates its last access time; when its bucket comes round, a session that was used since
+ * is simply moved to the bucket of its new deadline.
+ *
+ * Sessions can optionally be saved to a file, with the signing key, so they survive a restart.
+ */
+public class SessionManager {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 60_000;
+    public static final long DEFAULT_MAX_LIFETIME_MILLIS = 12 * 60 * 60_000;
+    private static final int ID_BYTES = 16;
+    private static final int MAC_BYTES = 16;
+    private static final int TOKEN_LENGTH = 43; // Base64url of 32 bytes, without padding
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_BUCKETS = 512;
+    private static final long SAVE_INTERVAL_TICKS = 60;
+    private static final int FILE_VERSION = 1;
+
+    private static final Base64.Encoder TOKEN_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder TOKEN_DECODER = Base64.getUrlDecoder();
+
+    /**
+     * A logged-in user's session.
+     */
+    public static final class Session {
+        private final String token;
+        private final String username;
+        private final long createdAt;
+        private volatile long lastAccess;
+
+        private Session(String token, String username, long createdAt, long lastAccess) {
+            this.token = token;
+            this.username = username;
+            this.createdAt = createdAt;
+            this.lastAccess = lastAccess;
+        }
+
+        /**
+         * @return The user the session belongs to.
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * @return When the user logged in, in epoch milliseconds.
+         */
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        /**
+         * @return When the session was last used, in epoch milliseconds.
+         */
+        public long getLastAccess() {
+            return lastAccess;
+        }
+    }
+
+    /**
+     * A session waiting in a wheel bucket, with the tick it is due at.
+     */
+    private static final class Timeout {
+        private final Session session;
+        private final long tick;
+
+        private Timeout(Session session, long tick) {
+            this.session = session;
+            this.tick = tick;
+        }
+    }
+
+    private static SessionManager defaultManager;
+
+    // Attributes
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final SecureRandom random = new SecureRandom();
+    private final long idleTimeoutMillis;
+    private final long maxLifetimeMillis;
+    private final Path file; // null when sessions are kept in memory only
+    private final List<ConcurrentLinkedQueue<Timeout>> wheel;
+    private final ScheduledExecutorService ticker;
+    private long processedTick; // only touched by the ticker thread
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder validated = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder revoked = new LongAdder();
+
+
+    // Constructors
+
+    /**
+     * Creates an in-memory manager with the default timeouts: 30 minutes idle, 12 hours at most.
+     */
+    public SessionManager() {
+        this(DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_MAX_LIFETIME_MILLIS, null);
+    }
+
+    /**
+     * Creates a manager, restoring the sessions saved in a file if there is one.
+     * @param idleTimeoutMillis How long a session stays valid without being used.
+     * @param maxLifetimeMillis How long a session stays valid after login, however much it is used.
+     * @param file The file sessions are saved to and restored from, or null to keep them in memory only.
+     */
+    public SessionManager(long idleTimeoutMillis, long maxLifetimeMillis, Path file) {
+        if (idleTimeoutMillis <= 0 || maxLifetimeMillis <= 0) {
+            throw new IllegalArgumentException("timeouts must be positive");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.file = file;
+
+        wheel = new ArrayList<>(WHEEL_BUCKETS);
+        for (int i = 0; i < WHEEL_BUCKETS; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+        processedTick = System.currentTimeMillis() / TICK_MILLIS;
+
+        byte[] keyBytes = file != null ? load(file) : null;
+        if (keyBytes == null) {
+            keyBytes = new byte[32];
+            random.nextBytes(keyBytes);
+        }
+        key = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+            }
+        });
+
+        ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the manager shared by services created without one, creating it on first use.
+     * Setting the "auth.sessions.file" system property saves its sessions to that file.
+     * @return The shared session manager.
+     */
+    public static synchronized SessionManager getDefault() {
+        if (defaultManager == null) {
+            String file = System.getProperty("auth.sessions.file");
+            defaultManager = new SessionManager(DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_MAX_LIFETIME_MILLIS,
+                    file == null ? null : Paths.get(file));
+        }
+        return defaultManager;
+    }
+
+
+    // Methods
+
+    /**
+     * Starts a session for a user who has just been authenticated.
+     * @param username The authenticated user.
+     * @return The session token to present on later requests.
+     */
+    public String create(String username) {
+        byte[] tokenBytes = new byte[ID_BYTES + MAC_BYTES];
+        byte[] id = new byte[ID_BYTES];
+        random.nextBytes(id);
+        System.arraycopy(id, 0, tokenBytes, 0, ID_BYTES);
+        System.arraycopy(sign(id), 0, tokenBytes, ID_BYTES, MAC_BYTES);
+        String token = TOKEN_ENCODER.encodeToString(tokenBytes);
+
+        long now = System.currentTimeMillis();
+        Session session = new Session(token, username, now, now);
+        sessions.put(token, session);
+        schedule(session, deadline(session));
+        created.increment();
+        return token;
+    }
+
+    /**
+     * Checks a session token and, if it is valid, extends the session's idle timeout.
+     * @param token The token presented by the client.
+     * @return The session, or null if the token is forged, unknown, expired or revoked.
+     */
+    public Session validate(String token) {
+        if (token == null || token.length() != TOKEN_LENGTH || !isSigned(token)) {
+            invalid.increment();
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            invalid.increment();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= deadline(session)) {
+            expire(session);
+            invalid.increment();
+            return null;
+        }
+        session.lastAccess = now; // the wheel picks up the new deadline when the old one comes round
+        validated.increment();
+        return session;
+    }
+
+    /**
+     * Ends a session, for example when the user logs out.
+     * @param token The session token.
+     * @return True if the session existed.
+     */
+    public boolean revoke(String token) {
+        if (token != null && sessions.remove(token) != null) {
+            revoked.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends every session of a user, for example after a password change. Sessions started with any
+     * spelling of the username the store treats as the same user are ended (see {@link Usernames#fold}).
+     * @param username The user.
+     * @return The number of sessions ended.
+     */
+    public int revokeAll(String username) {
+        String folded = Usernames.fold(username);
+        int count = 0;
+        for (Session session : sessions.values()) {
+            if (Usernames.fold(session.username).equals(folded) && sessions.remove(session.token, session)) {
+                count++;
+            }
+        }
+        revoked.add(count);
+        return count;
+    }
+
+    /**
+     * Stops the expiry thread and, if sessions are persisted, saves them.
+     */
+    public void shutdown() {
+        ticker.shutdownNow();
+        if (file != null) {
+            save();
+        }
+    }
+
+    private long deadline(Session session) {
+        return Math.min(session.lastAccess + idleTimeoutMillis, session.createdAt + maxLifetimeMillis);
+    }
+
+    private void schedule(Session session, long deadline) {
+        long tick = (deadline + TICK_MILLIS - 1) / TICK_MILLIS;
+        wheel.get((int) (tick % WHEEL_BUCKETS)).add(new Timeout(session, tick));
+    }
+
+    private void expire(Session session) {
+        if (sessions.remove(session.token, session)) {
+            expired.increment();
+        }
+    }
+
+    /**
+     * Runs on the ticker thread: visits every bucket whose tick has passed since the last run.
+     */
+    private void advance() {
+        try {
+            long now = System.currentTimeMillis();
+            long currentTick = now / TICK_MILLIS;
+            // After a long pause one pass over the whole wheel covers every bucket
+            long from = Math.max(processedTick + 1, currentTick - WHEEL_BUCKETS + 1);
+            for (long tick = from; tick <= currentTick; tick++) {
+                Iterator<Timeout> bucket = wheel.get((int) (tick % WHEEL_BUCKETS)).iterator();
+                while (bucket.hasNext()) {
+                    Timeout timeout = bucket.next();
+                    if (timeout.tick > currentTick) {
+                        continue; // due in a later turn of the wheel
+                    }
+                    bucket.remove();
+                    Session session = timeout.session;
+                    if (sessions.get(session.token) != session) {
+                        continue; // revoked or already expired
+                    }
+                    long deadline = deadline(session);
+                    if (now >= deadline) {
+                        expire(session);
+                    } else {
+                        schedule(session, deadline); // used since it was scheduled
+                    }
+                }
+            }
+            processedTick = currentTick;
+
+            if (file != null && currentTick % SAVE_INTERVAL_TICKS == 0) {
+                save();
+            }
+        } catch (RuntimeException e) {
+            System.out.println(e); // keep ticking
+        }
+    }
+
+    private byte[] sign(byte[] id) {
+        return macs.get().doFinal(id);
+    }
+
+    private boolean isSigned(String token) {
+        byte[] tokenBytes;
+        try {
+            tokenBytes = TOKEN_DECODER.decode(token);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (tokenBytes.length != ID_BYTES + MAC_BYTES) {
+            return false;
+        }
+        Mac mac = macs.get();
+        mac.update(tokenBytes, 0, ID_BYTES);
+        byte[] expected = mac.doFinal();
+        int diff = 0;
+        for (int i = 0; i < MAC_BYTES; i++) {
+            diff |= expected[i] ^ tokenBytes[ID_BYTES + i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Saves the signing key and the live sessions, replacing the file atomically. The key signs
+     * tokens, so the new file is created readable by its owner only, before anything is written.
+     */
+    private synchronized void save() {
+        Path temp = null;
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            String prefix = file.getFileName() + ".";
+            try {
+                temp = Files.createTempFile(directory, prefix, ".tmp",
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                temp = Files.createTempFile(directory, prefix, ".tmp"); // not a POSIX file system
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                byte[] keyBytes = key.getEncoded();
+                out.writeInt(FILE_VERSION);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                for (Session session : sessions.values()) {
+                    out.writeBoolean(true);
+                    out.writeUTF(session.token);
+                    out.writeUTF(session.username);
+                    out.writeLong(session.createdAt);
+                    out.writeLong(session.lastAccess);
+                }
+                out.writeBoolean(false);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println(e);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // the next save uses a new file
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the saved sessions that have not expired meanwhile.
+     * @return The saved signing key, or null if there is no usable file.
+     */
+    private byte[] load(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION) {
+                return null;
+            }
+            byte[] keyBytes = in.readNBytes(in.readInt());
+            long now = System.currentTimeMillis();
+            while (in.readBoolean()) {
+                Session session = new Session(in.readUTF(), in.readUTF(), in.readLong(), in.readLong());
+                long deadline = deadline(session);
+                if (now < deadline) {
+                    sessions.put(session.token, session);
+                    schedule(session, deadline);
+                }
+            }
+            return keyBytes;
+        } catch (IOException e) {
+            System.out.println(e); // start with no sessions and a new key
+            sessions.clear();
+            return null;
+        }
+    }
+
+
+    // Getters
+
+    /**
+     * @return The number of live sessions.
+     */
+    public int getActiveCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return The number of sessions started.
+     */
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    /**
+     * @return The number of tokens accepted.
+     */
+    public long getValidatedCount() {
+        return validated.sum();
+    }
+
+    /**
+     * @return The number of tokens refused as forged, unknown or expired.
+     */
+    public long getInvalidCount() {
+        return invalid.sum();
+    }
+
+    /**
+     * @return The number of sessions that timed out.
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * @return The number of sessions ended by logout or revocation.
+     */
+    public long getRevokedCount() {
+        return revoked.sum();
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+
+/**
+ * The Sha256PasswordHasher class is the original unsalted SHA-256 password hash, stored as 64 hex
+ * characters. It is kept so passwords stored before salted hashing was introduced can still be
+ * verified; such hashes always need rehashing, and new passwords are never hashed with it.
+ */
+public class Sha256PasswordHasher implements PasswordHasher {
+
+    public static final String ALGORITHM = "sha256";
+
+    // Hashing state
+    private static final int HASH_LENGTH = 32;                                  // SHA-256 digest size in bytes
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();  // lookup table for hex encoding
+    private static final ThreadLocal<HashState> HASH_STATE = ThreadLocal.withInitial(HashState::new); // one reusable digest per thread
+
+
+    // Methods
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    /**
+     * Hash the input characters using SHA-256 algorithm.
+     * The characters are encoded as UTF-8 and hashed with this thread's reusable digest, so the only
+     * allocation is the returned String.
+     * @param password The characters to be hashed.
+     * @return The hashed text as a hexadecimal string.
+     */
+    @Override
+    public String hash(char[] password) {
+        HashState state = HASH_STATE.get();
+        int length = state.encode(password);   // UTF-8 bytes of the text, in the thread's buffer
+        return state.hashToHex(length);
+    }
+
+    /**
+     * Hash the input text using SHA-256 algorithm.
+     * @param password The text to be hashed.
+     * @return The hashed text as a hexadecimal string.
+     */
+    public String hash(String password) {
+        HashState state = HASH_STATE.get();
+        return state.hashToHex(state.encode(password));
+    }
+
+    /**
+     * Checks a password against a stored SHA-256 hash.
+     * The password is hashed into this thread's reusable buffer and compared in constant time,
+     * so a check allocates nothing and its duration does not depend on where the hashes differ.
+     * @param password The plain text password characters to check.
+     * @param stored The stored hash.
+     * @return True if the password's hash equals the stored hash.
+     */
+    @Override
+    public boolean verify(char[] password, StoredPassword stored) {
+        HashState state = HASH_STATE.get();
+        state.hash(state.encode(password));
+        return PasswordHasher.constantTimeEquals(state.hash, stored.getHash());
+    }
+
+    /**
+     * Unsalted SHA-256 hashes are always upgraded.
+     */
+    @Override
+    public boolean needsRehash(StoredPassword stored) {
+        return true;
+    }
+
+
+    /**
+     * Decodes a 64-character hex hash, as stored in the database, into its 32 raw bytes.
+     * @param hex The hex-encoded hash (upper or lower case).
+     * @return The 32-byte hash, or an empty array if the text is not a valid SHA-256 hex hash,
+     *         so it can never match a computed hash.
+     */
+    static byte[] decodeHex(String hex) {
+        if (hex == null || hex.length() != HASH_LENGTH * 2) {
+            return new byte[0];
+        }
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return new byte[0];
+            }
+            hash[i] = (byte) ((high << 4) | low);
+        }
+        return hash;
+    }
+
+    /**
+     * Encodes a raw hash as a lowercase hex string, the legacy format stored in the database.
+     * @param hash The raw hash bytes.
+     * @return The hex-encoded hash.
+     */
+    static String encodeHex(byte[] hash) {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            int b = hash[i] & 0xFF;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(hex);
+    }
+
+
+
+    /**
+     * Per-thread hashing state: a SHA-256 digest, a growable buffer for the UTF-8 bytes of the
+     * input, and preallocated arrays for the digest and its hex encoding. Reusing them keeps the
+     * hashing hot path free of allocations, and keeping them per thread makes it safe to hash
+     * from many threads at once.
+     */
+    private static final class HashState {
+        private final MessageDigest digest;
+        private final byte[] hash = new byte[HASH_LENGTH];
+        private final char[] hex = new char[HASH_LENGTH * 2];
+        private byte[] input = new byte[64];
+
+        private HashState() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256"); // Get an instance of the MessageDigest class with the SHA-256 algorithm
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e); // Throw a RuntimeException if the specified algorithm (SHA-256) is not available
+            }
+        }
+
+        /**
+         * Encodes a String as UTF-8 into the input buffer.
+         * @return The number of bytes written.
+         */
+        private int encode(String text) {
+            ensureCapacity(text.length() * 3);   // a UTF-16 char never needs more than 3 UTF-8 bytes
+            int pos = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    pos = putCodePoint(Character.toCodePoint(c, text.charAt(++i)), pos);
+                } else {
+                    pos = putCodePoint(c, pos);
+                }
+            }
+            return pos;
+        }
+
+        /**
+         * Encodes characters as UTF-8 into the input buffer.
+         * @return The number of bytes written.
+         */
+        private int encode(char[] text) {
+            ensureCapacity(text.length * 3);
+            int pos = 0;
+            for (int i = 0; i < text.length; i++) {
+                char c = text[i];
+                if (Character.isHighSurrogate(c) && i + 1 < text.length && Character.isLowSurrogate(text[i + 1])) {
+                    pos = putCodePoint(Character.toCodePoint(c, text[++i]), pos);
+                } else {
+                    pos = putCodePoint(c, pos);
+                }
+            }
+            return pos;
+        }
+
+        /**
+         * Writes one code point as UTF-8. Unpaired surrogates are written as '?', like String.getBytes.
+         */
+        private int putCodePoint(int cp, int pos) {
+            if (cp < 0x80) {
+                input[pos++] = (byte) cp;
+            } else if (cp < 0x800) {
+                input[pos++] = (byte) (0xC0 | (cp >> 6));
+                input[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate((char) cp) && cp <= 0xFFFF) {
+                input[pos++] = '?';
+            } else if (cp < 0x10000) {
+                input[pos++] = (byte) (0xE0 | (cp >> 12));
+                input[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                input[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                input[pos++] = (byte) (0xF0 | (cp >> 18));
+                input[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                input[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                input[pos++] = (byte) (0x80 | (cp & 0x3F));
+            }
+            return pos;
+        }
+
+        private void ensureCapacity(int size) {
+            if (input.length < size) {
+                input = new byte[Math.max(size, input.length * 2)];
+            }
+        }
+
+        /**
+         * Hashes the first {@code length} bytes of the input buffer into the hash array.
+         */
+        private void hash(int length) {
+            digest.update(input, 0, length);
+            Arrays.fill(input, 0, length, (byte) 0);   // don't leave password bytes in the buffer
+            try {
+                digest.digest(hash, 0, HASH_LENGTH);
+            } catch (DigestException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Hashes the input buffer and returns the digest as a 64-character lowercase hex string.
+         */
+        private String hashToHex(int length) {
+            hash(length);
+            for (int i = 0; i < HASH_LENGTH; i++) {
+                int b = hash[i] & 0xFF;
+                hex[i * 2] = HEX_DIGITS[b >>> 4];
+                hex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+            }
+            return new String(hex);
+        }
+    }
+}
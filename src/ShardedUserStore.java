@@ -0,0 +1,771 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+
+/**
+ * The ShardedUserStore class spreads users over several stores, so registration and login load is
+ * not limited by one database. Each user belongs to one shard, chosen by a consistent hash of the
+ * username: every shard owns many points on a hash ring, and a username belongs to the shard owning
+ * the next point after its hash. Adding a shard then moves only the users whose points it takes
+ * over, about 1/N of them, instead of reshuffling everyone.
+ *
+ * Each shard has a primary store, which takes every write, and optional read replicas. Password
+ * lookups go to a replica, taken in turn, and fall back to the primary if the replica fails or does
+ * not have the user yet (replication lag after a registration). A replica that lags may still hold
+ * a user's old password hash, or a deleted user, so for replicaLagMillis after this store writes a
+ * user's credential, that user's lookups go to the primary.
+ *
+ * {@link #addShard(Shard)} can be called while the store serves requests. The new ring is used at
+ * once; users it moves are copied to their new shard and then removed from the old one, one at a
+ * time. Until every user is moved, lookups that miss on the new shard ask the old one, and a
+ * registration is refused if the username is still on the old shard, so no user is lost or
+ * duplicated while rebalancing. A moved user keeps their profile version; the last login time is not copied.
+ *
+ * Usernames are hashed ignoring case and accents, like the "users" table's collation, so spellings
+ * the database treats as equal land on the same shard and the unique index still applies.
+ */
+public class ShardedUserStore implements UserStore {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    public static final long DEFAULT_REPLICA_LAG_MILLIS = 30_000;
+    private static final int MOVE_LOCK_STRIPES = 64;
+    private static final int PRUNE_EVERY_WRITES = 1024;
+
+    /**
+     * One shard: a primary store and its read replicas.
+     */
+    public static class Shard {
+
+        // Attributes
+        private final String name;
+        private final UserStore primary;
+        private final List<UserStore> replicas;
+        private final AtomicInteger nextReplica = new AtomicInteger();
+
+
+        // Constructor
+
+        /**
+         * Creates a shard.
+         * @param name A stable name, such as the primary's URL; it decides which users the shard owns.
+         * @param primary The store that takes the shard's writes.
+         * @param replicas Read-only copies of the primary, or an empty list.
+         */
+        public Shard(String name, UserStore primary, List<UserStore> replicas) {
+            this.name = name;
+            this.primary = primary;
+            this.replicas = List.copyOf(replicas);
+        }
+
+        /**
+         * @return The next replica in turn, or the primary if there are none.
+         */
+        private UserStore readStore() {
+            if (replicas.isEmpty()) {
+                return primary;
+            }
+            return replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size()));
+        }
+
+
+        // Getters
+
+        /**
+         * @return The shard's name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The store that takes the shard's writes.
+         */
+        public UserStore getPrimary() {
+            return primary;
+        }
+
+        /**
+         * @return The shard's read replicas.
+         */
+        public List<UserStore> getReplicas() {
+            return replicas;
+        }
+    }
+
+    /**
+     * An immutable hash ring: sorted points and the shard owning each.
+     */
+    private static final class Ring {
+        private final long[] points;
+        private final Shard[] owners;
+
+        private Ring(List<Shard> shards, int virtualNodes) {
+            long[][] entries = new long[shards.size() * virtualNodes][];
+            int n = 0;
+            for (int s = 0; s < shards.size(); s++) {
+                for (int v = 0; v < virtualNodes; v++) {
+                    entries[n++] = new long[] {Usernames.hash(shards.get(s).name + "#" + v), s};
+                }
+            }
+            Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+            points = new long[n];
+            owners = new Shard[n];
+            for (int i = 0; i < n; i++) {
+                points[i] = entries[i][0];
+                owners[i] = shards.get((int) entries[i][1]);
+            }
+        }
+
+        /**
+         * @return The shard owning the first point at or after the hash, wrapping around.
+         */
+        private Shard owner(long hash) {
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[i == points.length ? 0 : i];
+        }
+    }
+
+    // Attributes
+    private final int virtualNodes;
+    private final long replicaLagMillis;
+    private final ConcurrentHashMap<String, Long> recentWrites = new ConcurrentHashMap<>(); // folded username -> when its credential was last written
+    private final AtomicInteger writesSincePrune = new AtomicInteger();
+    private final List<Shard> shards = new CopyOnWriteArrayList<>();
+    private volatile Ring ring;
+    private volatile Ring previousRing; // the ring before the last addShard, until its users are moved
+    private final ReentrantReadWriteLock ringChange = new ReentrantReadWriteLock(); // read: a write in progress, write: switching rings
+    private final ReentrantLock[] moveLocks = new ReentrantLock[MOVE_LOCK_STRIPES]; // a user is not written while it moves
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder primaryFallbacks = new LongAdder();
+    private final LongAdder movedUsers = new LongAdder();
+
+
+    // Constructors
+
+    /**
+     * Creates a store over some shards, with the default number of points per shard.
+     * @param shards The shards; at least one.
+     */
+    public ShardedUserStore(List<Shard> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Creates a store over some shards.
+     * @param shards The shards; at least one.
+     * @param virtualNodes The points each shard owns on the ring; more spread users more evenly.
+     */
+    public ShardedUserStore(List<Shard> shards, int virtualNodes) {
+        this(shards, virtualNodes, DEFAULT_REPLICA_LAG_MILLIS);
+    }
+
+    /**
+     * Creates a store over some shards, reading a user from the primary for a while after it is written.
+     * @param shards The shards; at least one.
+     * @param virtualNodes The points each shard owns on the ring; more spread users more evenly.
+     * @param replicaLagMillis How long after a credential write the user's lookups skip the replicas;
+     *                         at least the longest replication lag expected.
+     */
+    public ShardedUserStore(List<Shard> shards, int virtualNodes, long replicaLagMillis) {
+        if (shards.isEmpty() || virtualNodes <= 0 || replicaLagMillis < 0) {
+            throw new IllegalArgumentException("At least one shard and one virtual node are needed, and replicaLagMillis must not be negative");
+        }
+        this.virtualNodes = virtualNodes;
+        this.replicaLagMillis = replicaLagMillis;
+        this.shards.addAll(shards);
+        this.ring = new Ring(this.shards, virtualNodes);
+        for (int i = 0; i < MOVE_LOCK_STRIPES; i++) {
+            moveLocks[i] = new ReentrantLock();
+        }
+    }
+
+
+    // Routing
+
+    /**
+     * @param username The username.
+     * @return The shard the username belongs to.
+     */
+    public Shard shardFor(String username) {
+        return ring.owner(Usernames.hash(username));
+    }
+
+    /**
+     * @return The shard a username belonged to before the rebalance in progress, or null if none is
+     *         in progress or the username stays on the same shard.
+     */
+    private Shard previousShardFor(long hash, Shard current) {
+        Ring previous = previousRing;
+        if (previous == null) {
+            return null;
+        }
+        Shard owner = previous.owner(hash);
+        return owner == current ? null : owner;
+    }
+
+    private ReentrantLock moveLock(long hash) {
+        return moveLocks[(int) (hash >>> 58) & (MOVE_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Sends the user's lookups to the primary for the next replicaLagMillis. Called before and after
+     * each credential write, so a lookup during the write does not read a replica either.
+     */
+    private void wrote(String username) {
+        long now = System.currentTimeMillis();
+        recentWrites.put(Usernames.fold(username), now);
+        if (writesSincePrune.incrementAndGet() >= PRUNE_EVERY_WRITES) {
+            writesSincePrune.set(0);
+            recentWrites.values().removeIf(writtenAt -> now - writtenAt >= replicaLagMillis);
+        }
+    }
+
+    /**
+     * @return True if the user's credential was written too recently for a replica to be trusted.
+     */
+    private boolean recentlyWritten(String username) {
+        Long writtenAt = recentWrites.get(Usernames.fold(username));
+        return writtenAt != null && System.currentTimeMillis() - writtenAt < replicaLagMillis;
+    }
+
+
+    // UserStore
+
+    @Override
+    public RegistrationResult insertUser(UserRecord user) throws UserStoreException {
+        long hash = Usernames.hash(user.getUserName());
+        wrote(user.getUserName());
+        ringChange.readLock().lock();
+        try {
+            Shard shard = ring.owner(hash);
+            Shard previous = previousShardFor(hash, shard);
+            if (previous == null) {
+                return shard.primary.insertUser(user);
+            }
+            ReentrantLock lock = moveLock(hash);
+            lock.lock();
+            try {
+                // The username is unique on its new shard; it must not still be waiting on the old one
+                if (previous.primary.findPasswordHash(user.getUserName()) != null) {
+                    return RegistrationResult.DUPLICATE_USERNAME;
+                }
+                return shard.primary.insertUser(user);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        finally {
+            ringChange.readLock().unlock();
+            wrote(user.getUserName());
+        }
+    }
+
+    /**
+     * Inserts each shard's users as one batch on that shard. If a shard's batch fails, the users
+     * already inserted on other shards are deleted again, so none of the users are left inserted.
+     */
+    @Override
+    public void insertUsers(List<UserRecord> users) throws UserStoreException {
+        ringChange.readLock().lock();
+        try {
+            Map<Shard, List<UserRecord>> byShard = new LinkedHashMap<>();
+            for (UserRecord user : users) {
+                long hash = Usernames.hash(user.getUserName());
+                wrote(user.getUserName());
+                Shard shard = ring.owner(hash);
+                Shard previous = previousShardFor(hash, shard);
+                if (previous != null && previous.primary.findPasswordHash(user.getUserName()) != null) {
+                    throw new UserStoreException("Username " + user.getUserName() + " is already registered; no users were inserted");
+                }
+                byShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(user);
+            }
+
+            List<UserRecord> inserted = new ArrayList<>(users.size());
+            for (Map.Entry<Shard, List<UserRecord>> batch : byShard.entrySet()) {
+                try {
+                    batch.getKey().primary.insertUsers(batch.getValue());
+                    inserted.addAll(batch.getValue());
+                }
+                catch (UserStoreException e) {
+                    for (UserRecord user : inserted) {
+                        try {
+                            shardFor(user.getUserName()).primary.deleteUser(user.getUserName());
+                        }
+                        catch (UserStoreException undo) {
+                            System.out.println(undo); // left inserted, reported with the original failure
+                        }
+                    }
+                    throw e;
+                }
+            }
+        }
+        finally {
+            ringChange.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String findPasswordHash(String username) throws UserStoreException {
+        long hash = Usernames.hash(username);
+        while (true) {
+            Ring used = ring;
+            Shard shard = used.owner(hash);
+            String passwordHash = readPasswordHash(shard, username);
+            if (passwordHash == null) {
+                Shard previous = previousShardFor(hash, shard);
+                if (previous != null) {
+                    passwordHash = previous.primary.findPasswordHash(username); // not moved yet
+                    if (passwordHash == null) {
+                        // Moved between the two reads: it is copied before it is deleted, so it is there now
+                        passwordHash = shard.primary.findPasswordHash(username);
+                    }
+                }
+            }
+            if (passwordHash != null || ring == used) {
+                return passwordHash;
+            }
+            // A shard was added meanwhile and the user may have moved: look again with the new ring
+        }
+    }
+
+    /**
+     * Profiles are read from the primary, so the version is current when the profile is updated.
+     * Looks up the previous shard while rebalancing, like {@link #findPasswordHash(String)}.
+     */
+    @Override
+    public UserProfile findProfile(String username, Set<UserQuery.Column> columns) throws UserStoreException {
+        long hash = Usernames.hash(username);
+        while (true) {
+            Ring used = ring;
+            Shard shard = used.owner(hash);
+            UserProfile profile = shard.primary.findProfile(username, columns);
+            if (profile == null) {
+                Shard previous = previousShardFor(hash, shard);
+                if (previous != null) {
+                    profile = previous.primary.findProfile(username, columns);
+                    if (profile == null) {
+                        profile = shard.primary.findProfile(username, columns); // moved between the two reads
+                    }
+                }
+            }
+            if (profile != null || ring == used) {
+                return profile;
+            }
+        }
+    }
+
+    /**
+     * Sends one batch lookup per shard, to a replica with the primary asked for the usernames it
+     * lacks. While rebalancing, usernames not found that way are looked up one by one, as
+     * {@link #findPasswordHash(String)} does.
+     */
+    @Override
+    public Map<String, String> findPasswordHashes(Collection<String> usernames) throws UserStoreException {
+        Ring used = ring;
+        Map<Shard, List<String>> byShard = new LinkedHashMap<>();
+        for (String username : usernames) {
+            byShard.computeIfAbsent(used.owner(Usernames.hash(username)), s -> new ArrayList<>()).add(username);
+        }
+        Map<String, String> found = new HashMap<>();
+        for (Map.Entry<Shard, List<String>> batch : byShard.entrySet()) {
+            found.putAll(readPasswordHashes(batch.getKey(), batch.getValue()));
+        }
+
+        if (found.size() < usernames.size() && (previousRing != null || ring != used)) {
+            for (String username : usernames) {
+                if (!found.containsKey(username)) {
+                    String passwordHash = findPasswordHash(username);
+                    if (passwordHash != null) {
+                        found.put(username, passwordHash);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Batch variant of {@link #readPasswordHash(Shard, String)}.
+     */
+    private Map<String, String> readPasswordHashes(Shard shard, List<String> usernames) throws UserStoreException {
+        UserStore store = shard.readStore();
+        if (store != shard.primary) {
+            List<String> fromReplica = new ArrayList<>(usernames.size());
+            for (String username : usernames) {
+                if (!recentlyWritten(username)) {
+                    fromReplica.add(username);
+                }
+            }
+            if (fromReplica.isEmpty()) {
+                return shard.primary.findPasswordHashes(usernames);
+            }
+            replicaReads.increment();
+            try {
+                Map<String, String> found = store.findPasswordHashes(fromReplica);
+                if (found.size() == usernames.size()) {
+                    return found;
+                }
+                List<String> missing = new ArrayList<>();
+                for (String username : usernames) {
+                    if (!found.containsKey(username)) {
+                        missing.add(username);
+                    }
+                }
+                primaryFallbacks.increment();
+                found.putAll(shard.primary.findPasswordHashes(missing));
+                return found;
+            }
+            catch (UserStoreException e) {
+                System.out.println(e);
+            }
+            primaryFallbacks.increment();
+        }
+        return shard.primary.findPasswordHashes(usernames);
+    }
+
+    /**
+     * Reads from a replica, falling back to the primary if the replica fails or lacks the user.
+     * A user whose credential was written recently is read from the primary.
+     */
+    private String readPasswordHash(Shard shard, String username) throws UserStoreException {
+        UserStore store = recentlyWritten(username) ? shard.primary : shard.readStore();
+        if (store != shard.primary) {
+            replicaReads.increment();
+            try {
+                String passwordHash = store.findPasswordHash(username);
+                if (passwordHash != null) {
+                    return passwordHash;
+                }
+            }
+            catch (UserStoreException e) {
+                System.out.println(e);
+            }
+            primaryFallbacks.increment();
+        }
+        return shard.primary.findPasswordHash(username);
+    }
+
+    @Override
+    public boolean updatePasswordHash(String username, String passwordHash) throws UserStoreException {
+        long hash = Usernames.hash(username);
+        wrote(username);
+        ringChange.readLock().lock();
+        try {
+            Shard shard = ring.owner(hash);
+            Shard previous = previousShardFor(hash, shard);
+            if (previous == null) {
+                return shard.primary.updatePasswordHash(username, passwordHash);
+            }
+            ReentrantLock lock = moveLock(hash);
+            lock.lock();
+            try {
+                return shard.primary.updatePasswordHash(username, passwordHash)
+                        || previous.primary.updatePasswordHash(username, passwordHash);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        finally {
+            ringChange.readLock().unlock();
+            wrote(username);
+        }
+    }
+
+    @Override
+    public ProfileUpdateResult updateProfile(UserProfile profile) throws UserStoreException {
+        long hash = Usernames.hash(profile.getUserName());
+        ringChange.readLock().lock();
+        try {
+            Shard shard = ring.owner(hash);
+            Shard previous = previousShardFor(hash, shard);
+            if (previous == null) {
+                return shard.primary.updateProfile(profile);
+            }
+            ReentrantLock lock = moveLock(hash);
+            lock.lock();
+            try {
+                ProfileUpdateResult result = shard.primary.updateProfile(profile);
+                return result != ProfileUpdateResult.NOT_FOUND ? result : previous.primary.updateProfile(profile);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        finally {
+            ringChange.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean replacePasswordHash(String username, String expectedHash, String passwordHash) throws UserStoreException {
+        long hash = Usernames.hash(username);
+        wrote(username);
+        ringChange.readLock().lock();
+        try {
+            Shard shard = ring.owner(hash);
+            Shard previous = previousShardFor(hash, shard);
+            if (previous == null) {
+                return shard.primary.replacePasswordHash(username, expectedHash, passwordHash);
+            }
+            ReentrantLock lock = moveLock(hash);
+            lock.lock();
+            try {
+                return shard.primary.replacePasswordHash(username, expectedHash, passwordHash)
+                        || previous.primary.replacePasswordHash(username, expectedHash, passwordHash);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        finally {
+            ringChange.readLock().unlock();
+            wrote(username);
+        }
+    }
+
+    @Override
+    public boolean deleteUser(String username) throws UserStoreException {
+        long hash = Usernames.hash(username);
+        wrote(username);
+        ringChange.readLock().lock();
+        try {
+            Shard shard = ring.owner(hash);
+            Shard previous = previousShardFor(hash, shard);
+            if (previous == null) {
+                return shard.primary.deleteUser(username);
+            }
+            ReentrantLock lock = moveLock(hash);
+            lock.lock();
+            try {
+                return shard.primary.deleteUser(username) | previous.primary.deleteUser(username);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        finally {
+            ringChange.readLock().unlock();
+            wrote(username);
+        }
+    }
+
+    /**
+     * Records each shard's events on that shard's primary.
+     */
+    @Override
+    public void recordLogins(List<LoginEvent> events) throws UserStoreException {
+        Ring used = ring;
+        Map<Shard, List<LoginEvent>> byShard = new LinkedHashMap<>();
+        for (LoginEvent event : events) {
+            byShard.computeIfAbsent(used.owner(Usernames.hash(event.getUserName())), s -> new ArrayList<>()).add(event);
+        }
+        for (Map.Entry<Shard, List<LoginEvent>> batch : byShard.entrySet()) {
+            batch.getKey().primary.recordLogins(batch.getValue());
+        }
+    }
+
+    /**
+     * Streams each shard's users in turn, in registration order within a shard. While a shard is
+     * being added, a user that moves meanwhile may be listed twice or not at all.
+     */
+    @Override
+    public Stream<UserProfile> streamUsers(UserQuery query) {
+        List<Shard> snapshot = new ArrayList<>(shards);
+        return snapshot.stream().flatMap(shard -> shard.primary.streamUsers(query));
+    }
+
+    /**
+     * @return The sum of the primaries' hints, as requests for different users go to different shards.
+     */
+    @Override
+    public int getConcurrencyHint() {
+        int hint = 0;
+        for (Shard shard : shards) {
+            hint += shard.primary.getConcurrencyHint();
+        }
+        return hint;
+    }
+
+    /**
+     * Combines the primaries' stamps, or is unknown if any primary's is.
+     */
+    @Override
+    public long getCredentialStamp() {
+        long stamp = 0;
+        for (Shard shard : shards) {
+            long shardStamp = shard.primary.getCredentialStamp();
+            if (shardStamp == UNKNOWN_CREDENTIAL_STAMP) {
+                return UNKNOWN_CREDENTIAL_STAMP;
+            }
+            stamp = stamp * 31 + shardStamp;
+        }
+        return stamp == UNKNOWN_CREDENTIAL_STAMP ? 0 : stamp;
+    }
+
+    /**
+     * Closes every shard's primary and replicas.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.primary.close();
+            for (UserStore replica : shard.replicas) {
+                replica.close();
+            }
+        }
+    }
+
+
+    // Rebalancing
+
+    /**
+     * Adds a shard and moves the users it now owns to it. Requests keep being served meanwhile.
+     * @param shard The new shard, with an empty primary.
+     * @return The number of users moved.
+     * @throws UserStoreException if a user cannot be moved; call {@link #rebalance()} to finish later.
+     */
+    public synchronized int addShard(Shard shard) throws UserStoreException {
+        if (previousRing != null) {
+            rebalance(); // finish the previous move first, so at most two rings are ever in use
+        }
+        ringChange.writeLock().lock(); // waits for writes routed with the old ring
+        try {
+            previousRing = ring;
+            shards.add(shard);
+            ring = new Ring(shards, virtualNodes);
+        }
+        finally {
+            ringChange.writeLock().unlock();
+        }
+        return rebalance();
+    }
+
+    /**
+     * Moves every user that is not on the shard the ring gives it, then stops consulting the previous ring.
+     * @return The number of users moved.
+     * @throws UserStoreException if a user cannot be moved; the rebalance can be run again.
+     */
+    public synchronized int rebalance() throws UserStoreException {
+        int moved = 0;
+        for (Shard shard : shards) {
+            // Collect the usernames first, so the shard is not written while its stream is open; each user is read in full when moved
+            UserQuery usernames = new UserQuery();
+            usernames.setColumns(EnumSet.of(UserQuery.Column.USERNAME));
+            List<UserProfile> leaving = new ArrayList<>();
+            try (Stream<UserProfile> users = shard.primary.streamUsers(usernames)) {
+                users.filter(user -> shardFor(user.getUserName()) != shard).forEach(leaving::add);
+            }
+            catch (RuntimeException e) {
+                throw new UserStoreException("Could not list the users of shard " + shard.name, e);
+            }
+            for (UserProfile user : leaving) {
+                if (moveUser(user, shard, shardFor(user.getUserName()))) {
+                    moved++;
+                }
+            }
+        }
+        previousRing = null;
+        return moved;
+    }
+
+    /**
+     * Copies a user to its new shard, then deletes it from the old one. The user is read again under
+     * the move lock, so changes made since the shard was listed are copied too. The old copy is only
+     * deleted once the new shard holds the user.
+     * @return True if the user was moved; false if it was deleted meanwhile.
+     * @throws UserStoreException if the user could not be copied; it is left on the old shard.
+     */
+    private boolean moveUser(UserProfile user, Shard from, Shard to) throws UserStoreException {
+        String username = user.getUserName();
+        ReentrantLock lock = moveLock(Usernames.hash(username));
+        lock.lock();
+        try {
+            UserProfile current = from.primary.findProfile(username, EnumSet.allOf(UserQuery.Column.class));
+            String passwordHash = from.primary.findPasswordHash(username);
+            if (current == null || passwordHash == null) {
+                return false;
+            }
+            UserRecord record = new UserRecord(current.getFirstName(), current.getLastName(), username,
+                    current.getDateOfBirthText(), passwordHash, current.getVersion());
+            RegistrationResult copied = to.primary.insertUser(record);
+            if (copied == RegistrationResult.DUPLICATE_USERNAME) {
+                // An earlier, interrupted move may have copied it already; delete the old copy only if it is this user
+                if (!passwordHash.equals(to.primary.findPasswordHash(username))) {
+                    throw new UserStoreException("User " + username + " is on shard " + to.name
+                            + " with another password hash; left on shard " + from.name);
+                }
+            } else if (copied != RegistrationResult.SUCCESS) {
+                throw new UserStoreException("Could not copy user " + username + " to shard " + to.name + "; left on shard " + from.name);
+            }
+            from.primary.deleteUser(username);
+            movedUsers.increment();
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Getters
+
+    /**
+     * @return The shards, in the order they were added.
+     */
+    public List<Shard> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * @return True while users are being moved to an added shard.
+     */
+    public boolean isRebalancing() {
+        return previousRing != null;
+    }
+
+    /**
+     * @return The number of password lookups sent to a replica.
+     */
+    public long getReplicaReadCount() {
+        return replicaReads.sum();
+    }
+
+    /**
+     * @return The number of replica lookups that were repeated on the primary.
+     */
+    public long getPrimaryFallbackCount() {
+        return primaryFallbacks.sum();
+    }
+
+    /**
+     * @return The number of users moved between shards.
+     */
+    public long getMovedUserCount() {
+        return movedUsers.sum();
+    }
+}
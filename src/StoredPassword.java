@@ -0,0 +1,120 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.Base64;
+
+
+/**
+ * The StoredPassword class is a parsed password hash as stored in the "PasswordHash" column.
+ * Two formats are understood:
+ * - Legacy unsalted SHA-256: 64 hex characters.
+ * - Modular format: {@code $<algorithm>$i=<iterations>$<base64 salt>$<base64 hash>}.
+ * Parsing happens once, when the hash is read from the database, and the parsed form is what
+ * gets cached and compared.
+ */
+public final class StoredPassword {
+
+    private static final Base64.Encoder BASE64_ENCODER = Base64.getEncoder().withoutPadding();
+    private static final Base64.Decoder BASE64_DECODER = Base64.getDecoder();
+
+    // Attributes
+    private final String algorithm;
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+
+    // Constructor
+
+    /**
+     * Creates a stored password from its parts.
+     * @param algorithm The algorithm identifier of the hasher that created it.
+     * @param iterations The cost parameter, or 0 for algorithms without one.
+     * @param salt The salt, empty for unsalted algorithms.
+     * @param hash The raw hash bytes.
+     */
+    public StoredPassword(String algorithm, int iterations, byte[] salt, byte[] hash) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+
+    // Methods
+
+    /**
+     * Parses an encoded hash read from the database.
+     * @param encoded The encoded hash.
+     * @return The parsed hash. Text that cannot be parsed yields a hash with an empty
+     *         algorithm, which no hasher will ever verify.
+     */
+    public static StoredPassword parse(String encoded) {
+        if (encoded == null) {
+            return invalid();
+        }
+        if (!encoded.startsWith("$")) {
+            return new StoredPassword(Sha256PasswordHasher.ALGORITHM, 0, new byte[0], Sha256PasswordHasher.decodeHex(encoded));
+        }
+
+        // $algorithm$i=iterations$salt$hash
+        String[] parts = encoded.split("\\$");
+        if (parts.length != 5 || !parts[2].startsWith("i=")) {
+            return invalid();
+        }
+        try {
+            int iterations = Integer.parseInt(parts[2].substring(2));
+            return new StoredPassword(parts[1], iterations, BASE64_DECODER.decode(parts[3]), BASE64_DECODER.decode(parts[4]));
+        } catch (IllegalArgumentException e) {   // also covers NumberFormatException
+            return invalid();
+        }
+    }
+
+    private static StoredPassword invalid() {
+        return new StoredPassword("", 0, new byte[0], new byte[0]);
+    }
+
+    /**
+     * Encodes this hash in the format stored in the database.
+     * @return The encoded hash.
+     */
+    public String encode() {
+        if (Sha256PasswordHasher.ALGORITHM.equals(algorithm)) {
+            return Sha256PasswordHasher.encodeHex(hash);
+        }
+        return "$" + algorithm + "$i=" + iterations + "$" + BASE64_ENCODER.encodeToString(salt) + "$" + BASE64_ENCODER.encodeToString(hash);
+    }
+
+
+    // Getters
+
+    /**
+     * @return The algorithm identifier of the hasher that created this hash.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return The cost parameter the hash was created with, or 0 for algorithms without one.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return The salt bytes. The array must not be modified.
+     */
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    /**
+     * @return The raw hash bytes. The array must not be modified.
+     */
+    public byte[] getHash() {
+        return hash;
+    }
+}
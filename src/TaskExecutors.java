@@ -0,0 +1,54 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The TaskExecutors class creates executors for blocking request work such as database calls.
+ * On Java 21 and later each task runs on its own virtual thread, so thousands of requests can
+ * wait on the database at once without tying up platform threads. On older runtimes it falls
+ * back to a cached pool of daemon platform threads.
+ */
+public final class TaskExecutors {
+
+    private TaskExecutors() {
+    }
+
+    /**
+     * Creates an executor that starts a new (virtual, when available) thread per task.
+     * @param namePrefix The name prefix of the fallback platform threads.
+     * @return The executor.
+     */
+    public static ExecutorService newPerTaskExecutor(String namePrefix) {
+        try {
+            // Looked up reflectively so the code still compiles and runs on Java 17
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, namePrefix + "-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * @return True if this runtime supports virtual threads.
+     */
+    public static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
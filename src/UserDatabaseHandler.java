@@ -3,155 +3,1023 @@
  */
 
 // Imports
-import java.sql. *;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * The DatabaseHandler class manages database connections and provides methods
- * for reading and writing user data to a MySQL database.
+ * The DatabaseHandler class provides methods for reading and writing user data and for
+ * authenticating users. The users themselves are kept by a {@link UserStore}: the MySQL database
+ * by default, or a local embedded store when the "auth.store" system property is "embedded".
+ * This class adds a credential cache and a profile cache in front of the store and the password
+ * hashing around it, and can be shared by many threads.
  */
 public class UserDatabaseHandler {
-    Connection con;
-    UserProfile userProfile; // create object of profile, using methods from profile class
+
+    private static UserStore sharedStore; // store shared by all handlers created with the default constructor
+    private static OffHeapCredentialIndex sharedIndex; // optional, opened when "auth.index.file" is set
+    private static boolean sharedIndexOpened;
+    private static final CredentialCache<StoredPassword> sharedCredentialCache = new CredentialCache<>();
+    private static final ProfileCache sharedProfileCache = new ProfileCache();
+    private static final Set<UserQuery.Column> ALL_COLUMNS = EnumSet.allOf(UserQuery.Column.class);
+    private static final LoginThrottle sharedThrottle = newSharedThrottle();
+    private static LoginAuditWriter sharedAuditWriter; // writes login events to the shared store
+    private static UsernameFilter sharedUsernameFilter; // registered usernames of the shared store
+    private static UsernameIndex sharedUsernameIndex; // sorted registered usernames of the shared store
+    private static LookupCoalescer sharedLookupCoalescer; // merges concurrent lookups in the shared store
+    private static boolean sharedLookupCoalescerCreated;
+    private static final ExecutorService asyncExecutor = TaskExecutors.newPerTaskExecutor("db-request"); // runs the *Async methods
+
+    private final UserStore store;
+    private final CredentialCache<StoredPassword> credentialCache; // username -> stored password hash, parsed once
+    private final PasswordHashing hashing; // hashes and verifies passwords on the bounded hashing executor
+    private ProfileCache profileCache = new ProfileCache(); // username -> full profile, invalidated by profile updates
+    private OffHeapCredentialIndex credentialIndex; // consulted before the cache when set
+    private LoginThrottle throttle; // refuses excess login attempts before any work is done
+    private LoginAuditWriter auditWriter; // records login attempts in the background, when set
+    private UsernameFilter usernameFilter; // refuses logins for unregistered usernames without any work, when set
+    private UsernameIndex usernameIndex; // answers username availability during sign-up, when set
+    private LookupCoalescer lookupCoalescer; // shares and batches password hash lookups in the store, when set
+    private AuthMetrics metrics = AuthMetrics.getDefault(); // login and registration counters and timings
 
     /**
-     * Initializes the DatabaseHandler and establishes a connection to the MySQL database.
-     * @throws ClassNotFoundException if the MySQL JDBC driver class is not found.
-     * @throws SQLException if there is an error connecting to the database.
+     * Initializes the DatabaseHandler with the user store shared by all handlers, and the shared
+     * off-heap credential index if one is configured.
      */
-    public UserDatabaseHandler(){  
-        try{  
-        // Load the MySQL JDBC driver class
-        Class.forName("com.mysql.jdbc.Driver");  
+    public UserDatabaseHandler(){
+        this(getSharedStore(), sharedCredentialCache, PasswordHashing.getDefault());
+        this.credentialIndex = getSharedIndex();
+        this.profileCache = sharedProfileCache;
+        this.throttle = sharedThrottle;
+        this.auditWriter = getSharedAuditWriter();
+        this.usernameFilter = getSharedUsernameFilter();
+        this.usernameIndex = getSharedUsernameIndex();
+        this.lookupCoalescer = getSharedLookupCoalescer();
+    }
 
-        // Connect to database (URL, username, password)
-        con=DriverManager.getConnection("jdbc:mysql://localhost:3306/userprofiledb?characterEncoding=latin1","newuser","");  
-        //utf8mb4
+    /**
+     * Initializes the DatabaseHandler with a specific user store, credential cache and hashing service.
+     * @param store The store that keeps the users.
+     * @param credentialCache The cache of stored password hashes consulted before the store.
+     * @param hashing The service used to verify and rehash passwords.
+     */
+    public UserDatabaseHandler(UserStore store, CredentialCache<StoredPassword> credentialCache, PasswordHashing hashing) {
+        this.store = store;
+        this.credentialCache = credentialCache;
+        this.hashing = hashing;
+        this.throttle = new LoginThrottle();
+        registerGauges();
+    }
 
-        // Initialize the userProfile object
-        userProfile = new UserProfile();
+    /**
+     * Publishes the state of this handler's components as gauges. They read the current fields, so
+     * components set later are picked up; the latest handler created replaces an earlier one's gauges.
+     */
+    private void registerGauges() {
+        metrics.gauge("auth_credential_cache_entries", "Usernames in the credential cache.", credentialCache::size);
+        metrics.gauge("auth_credential_cache_hit_ratio", "Share of credential cache lookups that hit.", credentialCache::getHitRatio);
+        metrics.gauge("auth_profile_cache_entries", "Profiles in the profile cache.", () -> profileCache.size());
+        metrics.gauge("auth_profile_cache_hit_ratio", "Share of profile cache lookups that hit.", () -> profileCache.getHitRatio());
+        metrics.gauge("auth_credential_index_entries", "Usernames in the off-heap credential index.",
+                () -> credentialIndex == null ? 0 : credentialIndex.size());
+        metrics.gauge("auth_username_filter_bytes", "Memory used by the username filter.",
+                () -> usernameFilter == null ? 0 : usernameFilter.getMemoryBytes());
+        metrics.gauge("auth_username_filter_false_positive_rate", "Expected share of unknown usernames the filter lets through.",
+                () -> usernameFilter == null ? 1 : usernameFilter.getExpectedFalsePositiveRate());
+        metrics.gauge("auth_username_filter_rejected", "Logins refused by the username filter.",
+                () -> usernameFilter == null ? 0 : usernameFilter.getRejectedCount());
+        metrics.gauge("auth_username_index_entries", "Usernames in the username index.",
+                () -> usernameIndex == null ? 0 : usernameIndex.size());
+        metrics.gauge("auth_username_index_bytes", "Memory used by the username index.",
+                () -> usernameIndex == null ? 0 : usernameIndex.getMemoryBytes());
+        metrics.gauge("auth_lookup_coalesced", "Password hash lookups that joined one in flight for the same username.",
+                () -> lookupCoalescer == null ? 0 : lookupCoalescer.getCoalescedCount());
+        metrics.gauge("auth_lookup_queries", "Password hash queries sent by the lookup coalescer.",
+                () -> lookupCoalescer == null ? 0 : lookupCoalescer.getQueryCount());
+        metrics.gauge("auth_lookup_average_batch", "Average usernames per password hash query.",
+                () -> lookupCoalescer == null ? 0 : lookupCoalescer.getAverageBatchSize());
+        metrics.gauge("auth_hashing_queued", "Password hashing requests waiting for a thread.", hashing::getQueuedCount);
+        metrics.gauge("auth_throttle_tracked_usernames", "Usernames tracked by the login throttle.", () -> throttle.getTrackedUsernames());
+        metrics.gauge("auth_throttle_tracked_sources", "Sources tracked by the login throttle.", () -> throttle.getTrackedSources());
+        metrics.gauge("auth_audit_queued", "Login events waiting to be written.", () -> auditWriter == null ? 0 : auditWriter.getQueuedCount());
+        metrics.gauge("auth_audit_dropped", "Login events dropped because the queue was full.", () -> auditWriter == null ? 0 : auditWriter.getDroppedCount());
+        if (store instanceof JdbcUserStore) {
+            ConnectionPool pool = ((JdbcUserStore) store).getPool();
+            metrics.gauge("auth_pool_active_connections", "Database connections in use.", pool::getActiveConnections);
+            metrics.gauge("auth_pool_idle_connections", "Open database connections not in use.", pool::getIdleConnections);
+            metrics.gauge("auth_pool_waiting_threads", "Threads waiting for a database connection.", pool::getWaitingThreads);
+            metrics.gauge("auth_pool_average_wait_milliseconds", "Average wait for a database connection.", pool::getAverageWaitMillis);
+            metrics.gauge("auth_pool_timeouts", "Connection requests that timed out.", pool::getTimeoutCount);
+        }
+        else if (store instanceof EmbeddedUserStore) {
+            metrics.gauge("auth_embedded_users", "Users in the embedded store.", ((EmbeddedUserStore) store)::getUserCount);
         }
-        catch(Exception e){ 
-            // Handles all exceptions that occur during database operations
-            System.out.println(e); // prints the exception
-        }  
-    }  
+        else if (store instanceof ShardedUserStore) {
+            ShardedUserStore sharded = (ShardedUserStore) store;
+            metrics.gauge("auth_shards", "Shards users are spread over.", () -> sharded.getShards().size());
+            metrics.gauge("auth_shard_replica_reads", "Password lookups sent to a read replica.", sharded::getReplicaReadCount);
+            metrics.gauge("auth_shard_primary_fallbacks", "Replica lookups repeated on the primary.", sharded::getPrimaryFallbackCount);
+            metrics.gauge("auth_shard_moved_users", "Users moved to an added shard.", sharded::getMovedUserCount);
+        }
+    }
 
+    /**
+     * Returns the store shared by handlers created with the default constructor, opening it on first use.
+     * The "auth.store" system property picks it: "embedded" for an {@link EmbeddedUserStore} in the
+     * directory named by "auth.store.dir" (default "userdata"), "sharded" for a {@link ShardedUserStore}
+     * over the shards listed in "auth.shards", anything else for the MySQL database.
+     * @return The shared user store.
+     * @throws UncheckedIOException if an embedded store cannot be opened.
+     * @throws IllegalStateException if a MySQL schema cannot be migrated.
+     */
+    public static synchronized UserStore getSharedStore() {
+        if (sharedStore == null) {
+            if ("embedded".equalsIgnoreCase(System.getProperty("auth.store"))) {
+                try {
+                    sharedStore = new EmbeddedUserStore(Paths.get(System.getProperty("auth.store.dir", "userdata")));
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            else if ("sharded".equalsIgnoreCase(System.getProperty("auth.store"))) {
+                sharedStore = openShards(System.getProperty("auth.shards", ""));
+            }
+            else {
+                try {
+                    sharedStore = JdbcUserStore.getShared();
+                }
+                catch (UserStoreException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            }
+        }
+        return sharedStore;
+    }
 
     /**
-     * Reads user data from the "users" table in the database and prints the results.
+     * Opens a sharded store from a list of shards separated by ";". Each shard is its primary
+     * followed by its read replicas, separated by ",". A JDBC URL opens a MySQL database; anything
+     * else is the directory of an embedded store. A shard is named after its primary. Replicas must be
+     * MySQL databases replicated from the primary: nothing copies writes to an embedded store.
+     * "auth.shards.replicaLagSeconds" sets how long after a credential write the user is read from the primary.
+     * For example: "jdbc:mysql://db1/userprofiledb,jdbc:mysql://db1-replica/userprofiledb;jdbc:mysql://db2/userprofiledb".
      */
-    public void readUserData() {
+    private static ShardedUserStore openShards(String spec) {
+        List<ShardedUserStore.Shard> shards = new ArrayList<>();
+        for (String shardSpec : spec.split(";")) {
+            if (shardSpec.isBlank()) {
+                continue;
+            }
+            String[] locations = shardSpec.trim().split(",");
+            List<UserStore> replicas = new ArrayList<>();
+            for (int i = 1; i < locations.length; i++) {
+                if (!locations[i].trim().startsWith("jdbc:")) {
+                    throw new IllegalArgumentException("Replica " + locations[i].trim() + " of shard " + locations[0].trim()
+                            + " is not a JDBC URL; an embedded store cannot be a read replica, nothing copies writes to it");
+                }
+                replicas.add(openStore(locations[i].trim(), false));
+            }
+            shards.add(new ShardedUserStore.Shard(locations[0].trim(), openStore(locations[0].trim(), true), replicas));
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("auth.store=sharded needs auth.shards to list at least one shard");
+        }
+        return new ShardedUserStore(shards, ShardedUserStore.DEFAULT_VIRTUAL_NODES, TimeUnit.SECONDS.toMillis(
+                Long.getLong("auth.shards.replicaLagSeconds", TimeUnit.MILLISECONDS.toSeconds(ShardedUserStore.DEFAULT_REPLICA_LAG_MILLIS))));
+    }
+
+    private static UserStore openStore(String location, boolean primary) {
+        if (location.startsWith("jdbc:")) {
+            try {
+                return JdbcUserStore.open(location, primary);
+            }
+            catch (UserStoreException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
         try {
-            // Create a statement object to execute SQL queries
-            Statement stmt=con.createStatement();  
-
-            // Execute SQL query to select all records from the __ table, result is stored in the ResultSet
-            ResultSet rs = stmt.executeQuery("select * from users");  
-
-            // Iterates through the ResultSet and prints the values of columns 1-3, for each row
-            while(rs.next())  
-            System.out.println(rs.getInt(1)+"  "+rs.getString(2)+"  "+rs.getString(3)+" "+rs.getString(4)+"  "+rs.getString(5)+"  "+rs.getString(6));  
-            //con.close();  // Close the database connection
-        } 
-        
-        catch (SQLException e) {
+            return new EmbeddedUserStore(Paths.get(location));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates the login throttle shared by handlers created with the default constructor.
+     * "auth.throttle.limitLoopbackSources=true" also limits attempts from loopback addresses,
+     * which are otherwise counted only against their usernames.
+     */
+    private static LoginThrottle newSharedThrottle() {
+        LoginThrottle throttle = new LoginThrottle();
+        throttle.setLimitLoopbackSources(Boolean.getBoolean("auth.throttle.limitLoopbackSources"));
+        return throttle;
+    }
+
+    /**
+     * Returns the off-heap credential index shared by handlers created with the default constructor,
+     * opening it on first use. It is configured with system properties:
+     * "auth.index.file" names the index file (no index when unset), "auth.index.capacity" sets the
+     * number of slots of a new file, and "auth.index.readOnly=true" maps a file written by another
+     * process. A writable index keeps its entries across restarts only while the shared store's
+     * credential stamp matches the one it was closed with.
+     * @return The shared index, or null if none is configured or it cannot be opened.
+     */
+    public static synchronized OffHeapCredentialIndex getSharedIndex() {
+        if (!sharedIndexOpened) {
+            sharedIndexOpened = true;
+            String file = System.getProperty("auth.index.file");
+            if (file != null) {
+                try {
+                    sharedIndex = Boolean.getBoolean("auth.index.readOnly")
+                            ? OffHeapCredentialIndex.openReadOnly(Paths.get(file))
+                            : OffHeapCredentialIndex.openForWriting(Paths.get(file),
+                                    Integer.getInteger("auth.index.capacity", OffHeapCredentialIndex.DEFAULT_CAPACITY),
+                                    getSharedStore().getCredentialStamp());
+                }
+                catch (IOException e) {
+                    System.out.println(e); // run without the index
+                }
+            }
+        }
+        return sharedIndex;
+    }
+
+    /**
+     * Returns the login audit writer over the shared store, starting it on first use.
+     * @return The shared audit writer.
+     */
+    public static synchronized LoginAuditWriter getSharedAuditWriter() {
+        if (sharedAuditWriter == null) {
+            sharedAuditWriter = new LoginAuditWriter(getSharedStore());
+        }
+        return sharedAuditWriter;
+    }
+
+    /**
+     * Returns the username filter over the shared store, starting to build it on first use. The filter
+     * only learns at once the users registered through this process, so it is on by default only for
+     * an embedded store, which no other process can write to. Over a MySQL or sharded store, which
+     * other instances, imports and tools may write to, it must be turned on with "auth.usernameFilter=true"
+     * and is rebuilt every minute by default; users written elsewhere are refused login until then.
+     * It is configured with system properties: "auth.usernameFilter" turns it on or off,
+     * "auth.usernameFilter.expectedUsers" and "auth.usernameFilter.falsePositiveRate" size it, and
+     * "auth.usernameFilter.rebuildMinutes" sets how often it is rebuilt from the store.
+     * @return The shared filter, or null if it is turned off.
+     */
+    public static synchronized UsernameFilter getSharedUsernameFilter() {
+        if (sharedUsernameFilter == null) {
+            UserStore store = getSharedStore();
+            boolean soleWriter = store instanceof EmbeddedUserStore;
+            String enabled = System.getProperty("auth.usernameFilter", Boolean.toString(soleWriter));
+            if (!Boolean.parseBoolean(enabled)) {
+                return null;
+            }
+            long rebuildMillis = soleWriter ? UsernameFilter.DEFAULT_REBUILD_INTERVAL_MILLIS : UsernameFilter.SHARED_STORE_REBUILD_INTERVAL_MILLIS;
+            sharedUsernameFilter = new UsernameFilter(store,
+                    Long.getLong("auth.usernameFilter.expectedUsers", UsernameFilter.DEFAULT_EXPECTED_USERS),
+                    Double.parseDouble(System.getProperty("auth.usernameFilter.falsePositiveRate",
+                            Double.toString(UsernameFilter.DEFAULT_FALSE_POSITIVE_RATE))),
+                    TimeUnit.MINUTES.toMillis(Long.getLong("auth.usernameFilter.rebuildMinutes",
+                            TimeUnit.MILLISECONDS.toMinutes(rebuildMillis))));
+        }
+        return sharedUsernameFilter;
+    }
+
+    /**
+     * Returns the username index over the shared store, starting to load it on first use. It is
+     * configured with system properties: "auth.usernameIndex=false" turns it off, and
+     * "auth.usernameIndex.reloadMinutes" sets how often it is reloaded from the store.
+     * @return The shared index, or null if it is turned off.
+     */
+    public static synchronized UsernameIndex getSharedUsernameIndex() {
+        if (sharedUsernameIndex == null && !"false".equalsIgnoreCase(System.getProperty("auth.usernameIndex"))) {
+            sharedUsernameIndex = new UsernameIndex(getSharedStore(),
+                    TimeUnit.MINUTES.toMillis(Long.getLong("auth.usernameIndex.reloadMinutes",
+                            TimeUnit.MILLISECONDS.toMinutes(UsernameIndex.DEFAULT_RELOAD_INTERVAL_MILLIS))));
+        }
+        return sharedUsernameIndex;
+    }
+
+    /**
+     * Returns the lookup coalescer over the shared store, creating it on first use. It is configured
+     * with system properties: "auth.lookup.coalesce=false" turns it off, "auth.lookup.maxBatch" sets
+     * the most usernames per query and "auth.lookup.maxWaitMicros" how long a lookup waits for others.
+     * An embedded store answers from memory, so it gets no coalescer.
+     * @return The shared coalescer, or null if it is turned off or not useful.
+     */
+    public static synchronized LookupCoalescer getSharedLookupCoalescer() {
+        if (!sharedLookupCoalescerCreated) {
+            sharedLookupCoalescerCreated = true;
+            UserStore store = getSharedStore();
+            if (!(store instanceof EmbeddedUserStore) && !"false".equalsIgnoreCase(System.getProperty("auth.lookup.coalesce"))) {
+                sharedLookupCoalescer = new LookupCoalescer(store,
+                        Integer.getInteger("auth.lookup.maxBatch", LookupCoalescer.DEFAULT_MAX_BATCH_SIZE),
+                        Long.getLong("auth.lookup.maxWaitMicros", LookupCoalescer.DEFAULT_MAX_WAIT_MICROS));
+            }
+        }
+        return sharedLookupCoalescer;
+    }
+
+    /**
+     * @return The store this handler reads and writes users through.
+     */
+    public UserStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return The off-heap credential index consulted before the cache, or null if there is none.
+     */
+    public OffHeapCredentialIndex getCredentialIndex() {
+        return credentialIndex;
+    }
+
+    /**
+     * Set the off-heap credential index. Lookups consult it first, and stored hashes are written
+     * through to it, so it must only be shared by handlers over the same store.
+     *
+     * @param credentialIndex The index, or null for none.
+     */
+    public void setCredentialIndex(OffHeapCredentialIndex credentialIndex) {
+        this.credentialIndex = credentialIndex;
+    }
+
+    /**
+     * @return The throttle that limits login attempts.
+     */
+    public LoginThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Set the throttle that limits login attempts.
+     *
+     * @param throttle The throttle; must not be null.
+     */
+    public void setThrottle(LoginThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @return The writer that records login attempts, or null if they are not recorded.
+     */
+    public LoginAuditWriter getAuditWriter() {
+        return auditWriter;
+    }
+
+    /**
+     * Set the writer that records login attempts and last login times.
+     *
+     * @param auditWriter The writer, or null to not record them.
+     */
+    public void setAuditWriter(LoginAuditWriter auditWriter) {
+        this.auditWriter = auditWriter;
+    }
+
+    /**
+     * @return The filter of registered usernames consulted before each login, or null if there is none.
+     */
+    public UsernameFilter getUsernameFilter() {
+        return usernameFilter;
+    }
+
+    /**
+     * Set the filter of registered usernames consulted before each login. It must cover every
+     * user of this handler's store, or those users cannot log in.
+     *
+     * @param usernameFilter The filter, or null to look up every username.
+     */
+    public void setUsernameFilter(UsernameFilter usernameFilter) {
+        this.usernameFilter = usernameFilter;
+    }
+
+    /**
+     * @return The index of registered usernames used for availability checks, or null if there is none.
+     */
+    public UsernameIndex getUsernameIndex() {
+        return usernameIndex;
+    }
+
+    /**
+     * Set the index of registered usernames used for availability checks. Registrations through
+     * this handler are added to it, so it must only be shared by handlers over the same store.
+     *
+     * @param usernameIndex The index, or null to not check availability before registering.
+     */
+    public void setUsernameIndex(UsernameIndex usernameIndex) {
+        this.usernameIndex = usernameIndex;
+    }
+
+    /**
+     * @return The coalescer that shares and batches password hash lookups, or null if there is none.
+     */
+    public LookupCoalescer getLookupCoalescer() {
+        return lookupCoalescer;
+    }
+
+    /**
+     * Set the coalescer that shares and batches password hash lookups. It must wrap this handler's store.
+     *
+     * @param lookupCoalescer The coalescer, or null to send every lookup to the store on its own.
+     */
+    public void setLookupCoalescer(LookupCoalescer lookupCoalescer) {
+        this.lookupCoalescer = lookupCoalescer;
+    }
+
+    /**
+     * @return The metrics this handler records logins and registrations in.
+     */
+    public AuthMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the metrics this handler records logins and registrations in, and publish its gauges there.
+     *
+     * @param metrics The metrics; must not be null.
+     */
+    public void setMetrics(AuthMetrics metrics) {
+        this.metrics = metrics;
+        registerGauges();
+    }
+
+    /**
+     * @return The cache of stored password hashes, exposing its hit, miss and eviction counters.
+     */
+    public CredentialCache<StoredPassword> getCredentialCache() {
+        return credentialCache;
+    }
+
+    /**
+     * @return The cache of recently loaded profiles, exposing its hit, miss and eviction counters.
+     */
+    public ProfileCache getProfileCache() {
+        return profileCache;
+    }
+
+    /**
+     * Set the cache of recently loaded profiles.
+     *
+     * @param profileCache The cache; must not be null.
+     */
+    public void setProfileCache(ProfileCache profileCache) {
+        this.profileCache = profileCache;
+    }
+
+    /**
+     * @return The service this handler uses to hash and verify passwords.
+     */
+    public PasswordHashing getHashing() {
+        return hashing;
+    }
+
+    /**
+     * Removes a user's cached password hash and ends its in-flight lookup. Call this whenever the user's password changes.
+     * @param username The user whose cached credential is no longer valid.
+     */
+    public void invalidateCredentials(String username) {
+        if (lookupCoalescer != null) {
+            lookupCoalescer.invalidate(username); // later lookups must not join a query that predates the change
+        }
+        credentialCache.invalidate(username);
+    }
+
+
+    /**
+     * Tells whether a username can be registered, from the username index, without the store.
+     * @param username The username, as typed.
+     * @return AVAILABLE or TAKEN, or UNKNOWN if there is no index or it is not loaded yet.
+     */
+    public UsernameAvailability checkUsername(String username) {
+        return usernameIndex == null ? UsernameAvailability.UNKNOWN : usernameIndex.check(username);
+    }
+
+    /**
+     * Suggests free usernames close to a taken one, from the username index.
+     * @param username The username, as typed.
+     * @param count The number of suggestions wanted.
+     * @return Up to count free usernames; empty if there is no index or it is not loaded yet.
+     */
+    public List<String> suggestUsernames(String username, int count) {
+        return usernameIndex == null ? List.of() : usernameIndex.suggest(username, count);
+    }
+
+    /**
+     * Reads user data from the store and prints the results.
+     * Users are streamed, so memory use stays constant however many there are.
+     */
+    public void readUserData() {
+        try (Stream<UserProfile> users = streamUsers(new UserQuery())) {
+            // Prints the profile columns of each row
+            users.forEach(user -> System.out.println(user.getUserName() + "  " + user.getFirstName() + "  "
+                    + user.getLastName() + "  " + user.getDateOfBirth()));
+        }
+
+        catch (RuntimeException e) {
             System.out.println(e);
-        } 
+        }
+    }
+
+    /**
+     * Streams the users matching a query, in registration order.
+     * @param query The columns to load and the filters to apply.
+     * @return A lazy stream of profiles. Columns that were not requested are null.
+     * @throws RuntimeException wrapping the store's exception if the users cannot be read.
+     */
+    public Stream<UserProfile> streamUsers(UserQuery query) {
+        return store.streamUsers(query);
     }
 
 
     /**
-     * Writes user data to the "users" table in the database.
+     * Writes user data to the store.
      * @param firstName The user's first name.
      * @param lastName The user's last name.
      * @param userName The user's username.
      * @param dateOfBirth The user's date of birth.
      * @param password The user's password.
+     * @return SUCCESS, DUPLICATE_USERNAME if the username is already registered, or ERROR.
      */
-    public void writeUserData(String firstName, String lastName, String userName, String dateOfBirth, String password) {
+    public RegistrationResult writeUserData(String firstName, String lastName, String userName, String dateOfBirth, String password) {
+        long start = System.nanoTime();
+        UsernameFilter filter = usernameFilter;
+        if (filter != null) {
+            filter.beginAdd(userName);
+        }
         try {
+            RegistrationResult result = store.insertUser(new UserRecord(firstName, lastName, userName, dateOfBirth, password));
+            metrics.recordRegistration(userName, result, System.nanoTime() - start);
 
-            // Define the SQL query for inserting user data into the "users" table
-            String sql = "insert into users (firstName, lastName, userName, dob, passwordhash) values (?, ?, ?, ?, ?)"; // '?' are placeholders
+            // Forget any cached "user not found" for this username
+            invalidateCredentials(userName);
+            if (result == RegistrationResult.SUCCESS) {
+                indexCredential(userName, password);
+            }
+            if (result != RegistrationResult.ERROR && usernameIndex != null) {
+                usernameIndex.add(userName); // a duplicate is registered too, perhaps by another instance
+            }
+            return result;
+        }
 
-            // Create a prepared statement with the SQL query
-            PreparedStatement stmt = con.prepareStatement(sql); 
+        catch (UserStoreException e) {
+            System.out.println(e);
+            metrics.recordStoreError();
+            metrics.recordRegistration(userName, RegistrationResult.ERROR, System.nanoTime() - start);
+            return RegistrationResult.ERROR;
+        }
 
-            // Set the parameter values for the prepared statement
-            stmt.setString(1, firstName);
-            stmt.setString(2, lastName);
-            stmt.setString(3, userName);
-            stmt.setString(4, dateOfBirth);
-            stmt.setString(5, password);
+        finally {
+            if (filter != null) {
+                filter.endAdd();
+            }
+        }
+    }
 
-            stmt.execute(); // Execute the SQL statement to insert the user data into the database
-           // con.close(); // Close the database connection
-        } 
-        
-        catch(SQLException e) {
-            System.out.println(e);
+    /**
+     * Writes many users to the store at once. Either every user is written or, on failure, none is.
+     * @param users The users to insert, with already hashed passwords.
+     * @throws UserStoreException if the batch fails.
+     */
+    public void writeUserDataBatch(List<UserRecord> users) throws UserStoreException {
+        UsernameFilter filter = usernameFilter;
+        if (filter != null) {
+            filter.beginAdd(users.stream().map(UserRecord::getUserName).collect(Collectors.toList()));
+        }
+        try {
+            store.insertUsers(users);
+            for (UserRecord user : users) {
+                indexCredential(user.getUserName(), user.getPasswordHash());
+            }
+            if (usernameIndex != null) {
+                usernameIndex.addAll(users.stream().map(UserRecord::getUserName).collect(Collectors.toList()));
+            }
+        }
+        catch (UserStoreException e) {
+            metrics.recordStoreError();
+            throw e;
+        }
+        finally {
+            if (filter != null) {
+                filter.endAdd();
+            }
+            // Forget any cached "user not found" for these usernames
+            for (UserRecord user : users) {
+                invalidateCredentials(user.getUserName());
+            }
         }
     }
 
 
     /**
-     * Retrieves the password hash for a given username from the database.
+     * Retrieves the password hash for a given username.
      * @param username The username for which to retrieve the password hash.
      * @return The password hash as a String, or null if the username is not found.
      */
     public String getPasswordbyUsername(String username) {
-        try { 
-            // Define the SQL query to select the "PasswordHash" column from the "users" table where the username matches.
-            String sql = "Select PasswordHash from  users where Username = ?";
+        StoredPassword passwordHash = getStoredPassword(username);
+        return passwordHash == null ? null : passwordHash.encode();
+    }
 
-            // Create a prepared statement for executing the SQL query
-            PreparedStatement stmt = con.prepareStatement(sql);
+    /**
+     * Retrieves the parsed password hash for a given username, from the credential index or cache when
+     * possible and from the store otherwise, through the lookup coalescer when there is one. The stored
+     * hash is decoded once and cached in that form; store results, including "not found", are cached,
+     * unless a credential was invalidated while the store was read (the result may predate that change).
+     * @param username The username for which to retrieve the password hash.
+     * @return The parsed password hash, or null if the username is not found.
+     */
+    public StoredPassword getStoredPassword(String username) {
+        if (credentialIndex != null) {
+            StoredPassword indexed = credentialIndex.get(username);
+            if (indexed != null) {
+                return indexed;
+            }
+        }
 
-            // Set the parameter in the prepared statement to the provided username.
-            stmt.setString(1, username);
+        CredentialCache.Entry<StoredPassword> cached = credentialCache.get(username);
+        if (cached != null) {
+            return cached.getValue(); // null for a cached unknown username
+        }
 
-            // Execute the SQL query and store the result in a ResultSet.
-            ResultSet rs = stmt.executeQuery();
+        try {
+            long loadStarted = credentialCache.startLoad();
+            long indexLoadStarted = credentialIndex != null ? credentialIndex.startLoad() : 0;
+            String encoded = lookupCoalescer != null ? lookupCoalescer.findPasswordHash(username) : store.findPasswordHash(username);
+            StoredPassword passwordHash = encoded == null ? null : StoredPassword.parse(encoded);
 
-            // Check if there is a result (user found).
-            if (rs.next()) {
-                return rs.getString("PasswordHash"); // Return the "PasswordHash" column value from the ResultSet.
-            } 
-            
-            // If there is no result (user not found)
-            else {
-                return null;
+            // Cache the result, a null hash is cached as "user not found"
+            credentialCache.put(username, passwordHash, loadStarted);
+            if (passwordHash != null && credentialIndex != null) {
+                credentialIndex.put(username, passwordHash, indexLoadStarted);
+            }
+            return passwordHash;
+        }
+
+        catch (UserStoreException e) {
+            System.out.println(e);
+            metrics.recordStoreError();
+            return null; // not cached, the next attempt asks the store again
+        }
+    }
+
+
+    /**
+     * Replaces a user's stored password hash.
+     * @param username The user whose password hash changes.
+     * @param passwordHash The new encoded password hash.
+     * @return True if the user was updated.
+     */
+    public boolean updatePasswordHash(String username, String passwordHash) {
+        try {
+            boolean updated = store.updatePasswordHash(username, passwordHash);
+            if (updated) {
+                indexCredential(username, passwordHash);
             }
+            return updated;
         }
 
-        catch(SQLException e) {
+        catch (UserStoreException e) {
             System.out.println(e);
+            metrics.recordStoreError();
+            if (credentialIndex != null) {
+                credentialIndex.invalidate(username); // the stored hash is uncertain now
+            }
+            return false;
+        }
+
+        finally {
+            // The cached hash may no longer be the stored one
+            invalidateCredentials(username);
+        }
+    }
+
+
+    /**
+     * Loads a user's full profile, from the profile cache when possible.
+     * @param username The user to load.
+     * @return A profile the caller may change, or null if the username is not registered or the store cannot be reached.
+     */
+    public UserProfile loadProfile(String username) {
+        return loadProfile(username, ALL_COLUMNS);
+    }
+
+    /**
+     * Loads some columns of a user's profile. A cached full profile answers any set of columns;
+     * otherwise only the requested columns are read from the store. Only full profiles are cached,
+     * under the username as stored, so a later update of that profile invalidates the entry.
+     * @param username The user to load.
+     * @param columns The columns to load. Columns that were not requested may be null.
+     * @return A profile the caller may change, or null if the username is not registered or the store cannot be reached.
+     */
+    public UserProfile loadProfile(String username, Set<UserQuery.Column> columns) {
+        UserProfile cached = profileCache.get(username);
+        if (cached != null) {
+            return cached;
+        }
+
+        long loadStarted = profileCache.startLoad();
+        try {
+            UserProfile profile = store.findProfile(username, columns);
+            if (profile != null && columns.containsAll(ALL_COLUMNS) && username.equals(profile.getUserName())) {
+                profileCache.put(username, profile, loadStarted);
+            }
+            return profile;
+        }
+
+        catch (UserStoreException e) {
+            System.out.println(e);
+            metrics.recordStoreError();
             return null;
         }
     }
-    
+
+    /**
+     * Saves a user's names and date of birth, unless someone else changed the profile since it was
+     * loaded. On success the profile's version is advanced, so it can be changed and saved again.
+     * The profile is removed from the profile cache in any case. A profile loaded with only some
+     * columns may be saved too: the details it did not load are left as stored.
+     * @param profile A profile from {@link #loadProfile(String)}, with the changes made.
+     * @return SUCCESS, VERSION_CONFLICT if the profile must be loaded again, NOT_FOUND, or ERROR.
+     * @throws IllegalArgumentException if the profile was loaded without its username.
+     */
+    public ProfileUpdateResult updateProfile(UserProfile profile) {
+        if (profile.getUserName() == null) {
+            throw new IllegalArgumentException("Only a profile loaded with the USERNAME column can be saved");
+        }
+        try {
+            ProfileUpdateResult result = store.updateProfile(profile);
+            if (result == ProfileUpdateResult.SUCCESS) {
+                profile.setVersion(profile.getVersion() + 1);
+            }
+            return result;
+        }
+
+        catch (UserStoreException e) {
+            System.out.println(e);
+            metrics.recordStoreError();
+            return ProfileUpdateResult.ERROR;
+        }
+
+        finally {
+            profileCache.invalidate(profile.getUserName());
+        }
+    }
+
+    /**
+     * Changes a user's password after checking the current one. The attempt goes through the login
+     * throttle like a login, so it cannot be used to guess passwords faster. The current hash is read
+     * from the store rather than the caches, and is only replaced if it is still the one checked, so
+     * two concurrent changes cannot both succeed.
+     * @param username The user whose password changes.
+     * @param currentPassword The user's current password characters.
+     * @param newPassword The new password characters. The caller may clear both arrays once this returns.
+     * @param source Where the request comes from, such as the client address, or null if unknown.
+     * @return True if the current password matched and the new one is stored; false if it did not
+     *         match, the password was changed meanwhile, or the store could not be reached.
+     * @throws LoginThrottledException if the attempt is refused by the throttle.
+     * @throws java.util.concurrent.RejectedExecutionException if the hashing executor is saturated.
+     */
+    public boolean changePassword(String username, char[] currentPassword, char[] newPassword, String source) {
+        throttle.acquire(username, source);
+        try {
+            String current = store.findPasswordHash(username);
+            boolean matches = hashing.verify(currentPassword, current != null ? StoredPassword.parse(current) : hashing.getDummyPassword());
+            if (current == null || !matches) {
+                throttle.recordFailure(username, source);
+                return false;
+            }
+            throttle.recordSuccess(username, source);
+
+            String passwordHash = hashing.hash(newPassword);
+            boolean changed = store.replacePasswordHash(username, current, passwordHash);
+            if (changed) {
+                indexCredential(username, passwordHash);
+            }
+            return changed;
+        }
+
+        catch (UserStoreException e) {
+            System.out.println(e);
+            metrics.recordStoreError();
+            if (credentialIndex != null) {
+                credentialIndex.invalidate(username); // the stored hash is uncertain now
+            }
+            return false;
+        }
+
+        finally {
+            // The cached hash may no longer be the stored one
+            invalidateCredentials(username);
+        }
+    }
+
+
+    /**
+     * Writes a user's new encoded hash through to the credential index, if there is one.
+     */
+    private void indexCredential(String username, String passwordHash) {
+        if (credentialIndex != null) {
+            credentialIndex.put(username, StoredPassword.parse(passwordHash));
+        }
+    }
+
 
     /**
      * Authenticates a user by comparing the entered password with the stored password hash in the database.
      * @param username The username of the user to authenticate.
      * @param enteredpassword The password entered by the user for authentication.
      * @return True if the entered password matches the stored password hash; false otherwise.
+     * @throws LoginThrottledException if the attempt is refused by the login throttle.
+     * @throws java.util.concurrent.RejectedExecutionException if the hashing executor is saturated.
      */
     public boolean authenticateUser(String username, String enteredpassword) {
+        char[] password = enteredpassword.toCharArray();
+        try {
+            return authenticateUser(username, password);
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    /**
+     * Authenticates a user by comparing the entered password with the stored password hash in the database.
+     * Takes the password characters directly, for example from a {@code JPasswordField}, so no String
+     * holding the password is created.
+     * @see #authenticateUser(String, char[], String)
+     */
+    public boolean authenticateUser(String username, char[] enteredpassword) {
+        return authenticateUser(username, enteredpassword, null);
+    }
+
+    /**
+     * Authenticates a user by comparing the entered password with the stored password hash in the database.
+     * The attempt is first counted by the login throttle, which refuses it before any hashing or
+     * database work if the username or source has made too many attempts. A username the username
+     * filter knows is not registered is then refused without that work as well.
+     * If the password matches but was stored with an older algorithm or weaker parameters, it is
+     * hashed again with the current ones and the stored hash is replaced.
+     * @param username The username of the user to authenticate.
+     * @param enteredpassword The password characters entered by the user for authentication.
+     * @param source Where the attempt comes from, such as the client address, or null if unknown.
+     * @return True if the entered password matches the stored password hash; false otherwise.
+     * @throws LoginThrottledException if the attempt is refused by the throttle.
+     * @throws java.util.concurrent.RejectedExecutionException if the hashing executor is saturated.
+     */
+    public boolean authenticateUser(String username, char[] enteredpassword, String source) {
+        long start = System.nanoTime();
+        try {
+            throttle.acquire(username, source);
+        }
+        catch (LoginThrottledException e) {
+            metrics.recordLogin(username, AuthMetrics.LoginOutcome.THROTTLED, -1, -1, System.nanoTime() - start);
+            throw e;
+        }
 
-        // Hash the entered password using userProfile's password hashing algorithm.
-        String hashedPassword = userProfile.hashPassword(enteredpassword);
+        // A username the filter has never seen is certainly not registered: no lookup, no hashing
+        if (usernameFilter != null && !usernameFilter.mightContain(username)) {
+            throttle.recordFailure(username, source);
+            audit(username, false, source);
+            metrics.recordLogin(username, AuthMetrics.LoginOutcome.UNKNOWN_USER, -1, -1, System.nanoTime() - start);
+            return false;
+        }
 
         // Retrieve the stored password hash from the DB based on the username.
-        String storedPassword = getPasswordbyUsername(username);
+        StoredPassword storedPassword = getStoredPassword(username);
+        long lookedUp = System.nanoTime();
 
-        if (storedPassword != null && storedPassword.equals(hashedPassword)) {
-            return true;
+        // Verify the entered password with the algorithm the stored hash was made with.
+        // Unknown users are verified against a dummy hash, so they are not faster to reject.
+        boolean matches;
+        try {
+            matches = hashing.verify(enteredpassword, storedPassword != null ? storedPassword : hashing.getDummyPassword());
         }
+        catch (RejectedExecutionException e) {
+            metrics.recordLogin(username, AuthMetrics.LoginOutcome.BUSY, lookedUp - start, -1, System.nanoTime() - start);
+            throw e;
+        }
+        long verified = System.nanoTime();
 
-        else {
+        if (storedPassword == null || !matches) {
+            throttle.recordFailure(username, source);
+            audit(username, false, source);
+            metrics.recordLogin(username, storedPassword == null ? AuthMetrics.LoginOutcome.UNKNOWN_USER : AuthMetrics.LoginOutcome.WRONG_PASSWORD,
+                    lookedUp - start, verified - lookedUp, System.nanoTime() - start);
             return false;
         }
+        throttle.recordSuccess(username, source);
+        audit(username, true, source);
+
+        // Upgrade legacy or weaker hashes while the plain password is at hand
+        if (hashing.needsRehash(storedPassword)) {
+            updatePasswordHash(username, hashing.hash(enteredpassword));
+        }
+        metrics.recordLogin(username, AuthMetrics.LoginOutcome.SUCCESS, lookedUp - start, verified - lookedUp, System.nanoTime() - start);
+        return true;
+    }
+
+
+    /**
+     * Queues a login event for the audit writer; never waits on the store.
+     */
+    private void audit(String username, boolean success, String source) {
+        if (auditWriter != null) {
+            auditWriter.record(new LoginEvent(Instant.now(), username, success, source));
+        }
+    }
+
+    /**
+     * Writes out the queued login events, stops the username filter's rebuilds and the username
+     * index's reloads, closes a writable credential index with the store's credential stamp (so
+     * the next start can use its entries), then closes the user store.
+     */
+    public void close() {
+        if (auditWriter != null) {
+            auditWriter.shutdown();
+        }
+        if (usernameFilter != null) {
+            usernameFilter.shutdown();
+        }
+        if (usernameIndex != null) {
+            usernameIndex.shutdown();
+        }
+        if (credentialIndex != null && !credentialIndex.isReadOnly()) {
+            credentialIndex.close(store.getCredentialStamp());
+        }
+        store.close();
+    }
+
+
+    // Asynchronous variants
+    // Each runs the blocking database and hashing work on a background (virtual) thread, so callers such
+    // as the Swing Event Dispatch Thread never wait on it. Failures complete the future exceptionally.
+
+    /**
+     * Hashes a new user's password and writes the user to the database, in the background.
+     * @param firstName The user's first name.
+     * @param lastName The user's last name.
+     * @param userName The user's username.
+     * @param dateOfBirth The user's date of birth.
+     * @param password The user's plain text password characters. The caller may clear them once this returns.
+     * @return A future completed with the outcome once the user is written.
+     */
+    public CompletableFuture<RegistrationResult> registerUserAsync(String firstName, String lastName, String userName, String dateOfBirth, char[] password) {
+        try {
+            return hashing.hashAsync(password)
+                    .thenApplyAsync(passwordHash -> writeUserData(firstName, lastName, userName, dateOfBirth, passwordHash), asyncExecutor);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);   // hashing queue full
+        }
+    }
+
+    /**
+     * Writes user data to the "users" table in the background.
+     * @see #writeUserData(String, String, String, String, String)
+     * @return A future completed with the outcome once the user is written.
+     */
+    public CompletableFuture<RegistrationResult> writeUserDataAsync(String firstName, String lastName, String userName, String dateOfBirth, String password) {
+        return CompletableFuture.supplyAsync(() -> writeUserData(firstName, lastName, userName, dateOfBirth, password), asyncExecutor);
+    }
+
+    /**
+     * Retrieves the password hash for a given username in the background.
+     * @see #getPasswordbyUsername(String)
+     * @return A future completed with the password hash, or with null if the username is not found.
+     */
+    public CompletableFuture<String> getPasswordbyUsernameAsync(String username) {
+        return CompletableFuture.supplyAsync(() -> getPasswordbyUsername(username), asyncExecutor);
+    }
+
+    /**
+     * Authenticates a user in the background.
+     * @see #authenticateUser(String, char[])
+     * @param username The username of the user to authenticate.
+     * @param enteredpassword The password characters entered by the user. The caller may clear them once this returns.
+     * @return A future completed with true if the password matches, or exceptionally if the attempt is
+     *         throttled or the hashing executor is saturated.
+     */
+    public CompletableFuture<Boolean> authenticateUserAsync(String username, char[] enteredpassword) {
+        char[] password = enteredpassword.clone();   // the caller may clear its array before the task runs
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return authenticateUser(username, password);
+            } finally {
+                Arrays.fill(password, '\0');
+            }
+        }, asyncExecutor);
     }
 } 
     
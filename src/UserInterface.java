@@ -4,282 +4,470 @@
 
 
 // Imports
+import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 
 
 /**
  * The `UserInterface` class implements a graphical user interface for user authentication and registration.
  * It provides options for user login and registration.
+ *
+ * The window is shown before anything slow is done. The user store is opened and the logo is
+ * decoded on background threads, in parallel, while the pages are built; the logo appears when it
+ * is ready, and a request confirmed before the store is open waits for it without blocking the window.
+ * Each page is built once and shown again whenever it is chosen. While a username is typed on the
+ * sign-up page, its availability is checked once typing pauses, and free alternatives are offered.
+ * The time from JVM start to the first painted frame is printed. With "auth.ui.exitAfterStartup=true"
+ * the application exits once startup is complete, for recording a class data sharing archive.
  */
 public class UserInterface {
+    private static final int LOGO_SIZE = 300;
+    private static final int USERNAME_CHECK_DELAY_MILLIS = 250; // typing pause before the username is checked
+    private static final String WELCOME_PAGE = "welcome", SIGN_UP_PAGE = "signUp", LOG_IN_PAGE = "logIn";
+    private static final ExecutorService startupExecutor = TaskExecutors.newPerTaskExecutor("ui-startup"); // opens the store and loads the logo
+
+    private final long startNanos; // when main started
     private JFrame landing_page;
-    private String savedPassword;
+    private JPanel panel;     // the logo on the left, the current page on the right
+    private JPanel pages;     // every page, built once, one shown at a time
     private String savedFirstName, savedLastName, savedDateOfBirth, savedUserName; //respective variables for text-fields
-    private String pageState;
-    UserDatabaseHandler dbHandler;
-    UserProfile profile;
-    
+    CompletableFuture<AuthService> authService; // register/login core, shared with the headless mode; opened in the background
+    private volatile String sessionToken; // session of the logged-in user, set by a background thread
+
     // Constructor
 
     /**
      * Initializes the `UserInterface` class, creating the main application window and setting up the user interface.
+     * Must be called on the Event Dispatch Thread.
+     * @param startNanos When the application started, from {@link System#nanoTime()}, for the startup time report.
      */
-    UserInterface() {
-        dbHandler   = new UserDatabaseHandler();
-        profile = new UserProfile();
+    UserInterface(long startNanos) {
+        this.startNanos = startNanos;
+
+        // Start the slow work first, so it runs while the window is being built
+        authService = CompletableFuture.supplyAsync(() -> new AuthService(new UserDatabaseHandler()), startupExecutor);
+        CompletableFuture<BufferedImage> logo = CompletableFuture.supplyAsync(UserInterface::loadLogo, startupExecutor);
+
+        // Closing the window exits the JVM; save sessions, flush login events and close the store first
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (authService.isDone() && !authService.isCompletedExceptionally()) {
+                authService.join().shutdown();
+            }
+        }, "auth-ui-shutdown"));
+
         landing_page = new JFrame();
         landing_page.setTitle("Main Page");
         landing_page.setSize(600, 400);
         landing_page.setLocationRelativeTo(null);
         landing_page.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
 
-        // Set the application icon
-        ImageIcon backImageIcon = new ImageIcon(getClass().getResource("/login.png"));
-        Image image = backImageIcon.getImage().getScaledInstance(300, 300, Image.SCALE_SMOOTH);
-        ImageIcon resizedImageIcon = new ImageIcon(image);
-        landing_page.setIconImage(resizedImageIcon.getImage());
+        // Create the main panel; its first paint is the first frame the user sees
+        panel = new JPanel() {
+            private boolean painted;
 
-        // Create the main panel
-        JPanel panel = new JPanel();
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                if (!painted) {
+                    painted = true;
+                    firstFramePainted();
+                }
+            }
+        };
         panel.setLayout(new GridLayout(1, 2));
         landing_page.add(panel, BorderLayout.CENTER);
-        
-        // Create the image label
-        JLabel label = new JLabel(resizedImageIcon);
+
+        // Create the image label, empty until the logo is loaded
+        JLabel label = new JLabel();
         label.setVerticalAlignment(JLabel.CENTER);
         label.setHorizontalAlignment(JLabel.LEFT);
         panel.add(label);
 
-        // Create the input panel for various text fields
+        // Create the pages
+        pages = new JPanel(new CardLayout());
+        pages.add(buildWelcomePage(), WELCOME_PAGE);
+        pages.add(buildSignUpPage(), SIGN_UP_PAGE);
+        pages.add(buildLogInPage(), LOG_IN_PAGE);
+        panel.add(pages);
+
+        // Set the logo and the application icon once they are decoded
+        logo.whenComplete((image, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                System.out.println(error);
+                return;
+            }
+            label.setIcon(new ImageIcon(image));
+            landing_page.setIconImage(image);
+        }));
+
+        authService.whenComplete((service, error) -> {
+            if (error != null) {
+                System.out.println("Could not open the user store: " + error);
+            } else {
+                System.out.printf("User store ready after %d ms%n", (System.nanoTime() - startNanos) / 1_000_000);
+            }
+        });
+    }
+
+
+    // Pages
+
+    /**
+     * Builds the welcome page: a greeting and the Sign Up and Log In buttons.
+     */
+    private JPanel buildWelcomePage() {
         JPanel inputPanel = new JPanel();
         GridLayout inputLayout = new GridLayout(5, 2);
         inputLayout.setVgap(0);  //No change in gap
         inputPanel.setLayout(inputLayout);
 
+        JLabel message = titleLabel("Welcome!");
+
         // buttons
-        Button sign_up = new Button();
-        sign_up.setLabel("Sign Up");
-        sign_up.setPreferredSize(new Dimension(50, 25));
+        Button sign_up = button("Sign Up");
+        Button log_in = button("Log In");
+
+        // Sign Up Button Event
+        sign_up.addActionListener(e -> showPage(SIGN_UP_PAGE, "Sign-Up Page"));
 
-        Button log_in = new Button();
-        log_in.setLabel("Log In");
-        log_in.setPreferredSize(new Dimension(50, 25));
+        // Log In Button Event
+        log_in.addActionListener(e -> showPage(LOG_IN_PAGE, "Log-In Page"));
 
-        Button confirm = new Button();
-        confirm.setLabel("Confirm");
-        confirm.setPreferredSize(new Dimension(50, 25));
+        inputPanel.add(message);
+        inputPanel.add(row(sign_up, log_in));
+        return inputPanel;
+    }
+
+    /**
+     * Builds the sign-up page: the profile and password fields, Confirm and Back.
+     */
+    private JPanel buildSignUpPage() {
+        JPanel signUpPanel = new JPanel();
+        signUpPanel.setLayout(new GridLayout(8, 2));
 
-        Button back = new Button();
-        back.setLabel("Back");
-        back.setPreferredSize(new Dimension(50, 25));
+        JLabel message = titleLabel("Sign Up");
 
         // text-fields
+        JTextField input_firstName = textField();
+        JTextField input_lastName = textField();
+        JTextField input_dateOfBirth = textField();
+        JTextField input_userName = textField();
         JPasswordField input_password = new JPasswordField();
         input_password.setColumns(15);
-        
-        JTextField input_firstName = new JTextField();
-        input_firstName.setColumns(15);
+        JLabel usernameStatus = new JLabel(" ");
+        watchUsername(input_userName, usernameStatus);
 
-        JTextField input_lastName = new JTextField();
-        input_lastName.setColumns(15);
+        Button confirm = button("Confirm");
+        Button back = button("Back");
 
-        JTextField input_dateOfBirth = new JTextField();
-        input_dateOfBirth.setColumns(15);
+        Runnable clearFields = () -> {
+            input_firstName.setText("");
+            input_lastName.setText("");
+            input_dateOfBirth.setText("");
+            input_userName.setText("");
+            input_password.setText("");
+        };
 
-        JTextField input_userName = new JTextField();
-        input_userName.setColumns(15);
-        
-        Font labelFont = new Font("Arial", Font.PLAIN, 24);
+        // Confirm Button Event
+        confirm.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                savedFirstName = input_firstName.getText();
+                savedLastName = input_lastName.getText();
+                savedDateOfBirth = input_dateOfBirth.getText();
+                savedUserName = input_userName.getText();
+                // copies for the request, which may run after the fields are saved again
+                String firstName = savedFirstName, lastName = savedLastName, dateOfBirth = savedDateOfBirth, userName = savedUserName;
+                char[] enteredPassword = input_password.getPassword();
+                // the password is hashed straight from the field's characters
+                String successMessage = "Registration is successful!";
+                CompletableFuture<String> request = withService(enteredPassword,
+                        service -> service.registerAsync(firstName, lastName, userName, dateOfBirth, enteredPassword))
+                        .thenApply(result -> result == RegistrationResult.SUCCESS ? successMessage
+                                : result == RegistrationResult.DUPLICATE_USERNAME ? "Username is already taken"
+                                : "Registration failed, please try again");
+                submit(request, successMessage, message, confirm, clearFields);
+            }
+        });
 
+        // Back Button Event
+        back.addActionListener(e -> goBack(message, "Sign Up", clearFields));
+
+        signUpPanel.add(message);
+        signUpPanel.add(row(new JLabel("First Name"), input_firstName));
+        signUpPanel.add(row(new JLabel("Last Name"), input_lastName));
+        signUpPanel.add(row(new JLabel("Date of Birth (YYYY-MM-DD)"), input_dateOfBirth));
+        signUpPanel.add(row(new JLabel("Username"), input_userName));
+        signUpPanel.add(row(usernameStatus));
+        signUpPanel.add(row(new JLabel("Password"), input_password));
+        signUpPanel.add(row(confirm, back));
+        return signUpPanel;
+    }
 
-        JLabel message = new JLabel();
-        message.setFont(labelFont);
-        message.setText("Welcome!");
-        // Username
-        JLabel userName = new JLabel();
-        userName.setText("Username");
-        
-
-        // password
-        JLabel password = new JLabel();
-        password.setText("Password");
-        //password.setBorder(compound);
-
-        // labels for respective fields
-        JLabel signUp = new JLabel();
-        signUp.setText("Successfully signed up!");
-
-        JLabel logIn = new JLabel();
-        logIn.setText("Successfully logged in!");
-
-        JLabel firstName = new JLabel();
-        firstName.setText("First Name");
-
-        JLabel lastName = new JLabel();
-        lastName.setText("Last Name");
-
-        JLabel dateOfBirth = new JLabel();
-        dateOfBirth.setText("Date of Birth (YYYY-MM-DD)");
-
-        // panels for respective input fields
-        JPanel userNameField = new JPanel();
-        userNameField.setLayout(new FlowLayout());
-        userNameField.add(userName);
-        userNameField.add(input_userName);
-        JPanel passwordField = new JPanel();
-        passwordField.setLayout(new FlowLayout());
-        passwordField.add(password);
-        passwordField.add(input_password);
-
-        JPanel firstNameField = new JPanel();
-        firstNameField.setLayout(new FlowLayout());
-        firstNameField.add(firstName);
-        firstNameField.add(input_firstName);
-
-        JPanel lastNameField = new JPanel();
-        lastNameField.setLayout(new FlowLayout());
-        lastNameField.add(lastName);
-        lastNameField.add(input_lastName);
-
-        JPanel dateOfBirthField = new JPanel();
-        dateOfBirthField.setLayout(new FlowLayout());
-        dateOfBirthField.add(dateOfBirth);
-        dateOfBirthField.add(input_dateOfBirth);
-
-        JPanel buttonField = new JPanel();
-        buttonField.setLayout(new FlowLayout());
-        buttonField.add(sign_up);
-        buttonField.add(log_in);
-
-        JPanel signUpButtonField = new JPanel();
-        signUpButtonField.setLayout(new FlowLayout());
-        signUpButtonField.add(confirm);
-        signUpButtonField.add(back);
+    /**
+     * Builds the log-in page: the username and password fields, Confirm and Back.
+     */
+    private JPanel buildLogInPage() {
+        JPanel logInPanel = new JPanel();
+        GridLayout inputLayout = new GridLayout(5, 2);
+        inputLayout.setVgap(0);
+        logInPanel.setLayout(inputLayout);
 
+        JLabel message = titleLabel("User Login");
 
-        // Sign Up Button Event
-        sign_up.addActionListener(new ActionListener() {
+        // text-fields
+        JTextField input_userName = textField();
+        JPasswordField input_password = new JPasswordField();
+        input_password.setColumns(15);
+
+        Button confirm = button("Confirm");
+        Button back = button("Back");
+
+        Runnable clearFields = () -> {
+            input_userName.setText("");
+            input_password.setText("");
+        };
+
+        // Confirm Button Event
+        confirm.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                JPanel signUpPanel = new JPanel();
-                landing_page.setTitle("Sign-Up Page");
-                pageState = "signUp";
-                signUpPanel.setLayout(new GridLayout(7, 2));
-                signUpPanel.add(message);
-                signUpPanel.add(firstNameField);
-                signUpPanel.add(lastNameField);
-                signUpPanel.add(dateOfBirthField);
-                signUpPanel.add(userNameField);
-                signUpPanel.add(passwordField);
-                signUpPanel.add(signUpButtonField);
-                message.setText("Sign Up");
-                panel.remove(inputPanel);
-                panel.add(signUpPanel);
-                panel.revalidate();
-                panel.repaint();
+                savedUserName = input_userName.getText();
+                String userName = savedUserName; // the request may run after the field is saved again
+                char[] enteredPassword = input_password.getPassword();
+                String successMessage = "Login is successful!";
+                CompletableFuture<String> request = withService(enteredPassword,
+                        service -> service.startSessionAsync(userName, enteredPassword))
+                        .thenApply(token -> {
+                            if (token == null) {
+                                return "Invalid username or password";
+                            }
+                            sessionToken = token; // later actions use the session instead of the password
+                            return successMessage;
+                        });
+                submit(request, successMessage, message, confirm, clearFields);
             }
         });
 
-        // Log In Button Event
-        log_in.addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                message.setText("User Login");
-                landing_page.setTitle("Log-In Page");
-                pageState = "logIn";
-                inputPanel.removeAll();
-                inputPanel.add(message);
-                inputPanel.add(userNameField);
-                inputPanel.add(passwordField);
-                inputPanel.add(signUpButtonField);
-                panel.revalidate();
-                panel.repaint();
+        // Back Button Event
+        back.addActionListener(e -> goBack(message, "User Login", clearFields));
+
+        logInPanel.add(message);
+        logInPanel.add(row(new JLabel("Username"), input_userName));
+        logInPanel.add(row(new JLabel("Password"), input_password));
+        logInPanel.add(row(confirm, back));
+        return logInPanel;
+    }
+
+    /**
+     * Checks the typed username once typing pauses, and shows whether it is free in the status
+     * label, with free alternatives when it is taken. Each keystroke restarts the timer, so a
+     * username is checked once per pause rather than once per key. The check is answered from the
+     * username index in memory; while the store is still opening it waits for it off the Event
+     * Dispatch Thread, and a result is only shown if the username has not changed meanwhile.
+     */
+    private void watchUsername(JTextField input_userName, JLabel usernameStatus) {
+        Timer check = new Timer(USERNAME_CHECK_DELAY_MILLIS, e -> {
+            String userName = input_userName.getText();
+            if (userName.isBlank()) {
+                usernameStatus.setText(" ");
+                return;
             }
+            authService.thenApply(service -> {
+                UsernameAvailability availability = service.checkUsername(userName);
+                return availability == UsernameAvailability.AVAILABLE ? "Username is available"
+                        : availability == UsernameAvailability.TAKEN ? takenMessage(service.suggestUsernames(userName, 3))
+                        : " "; // not known yet, registering will tell
+            }).whenComplete((status, error) -> SwingUtilities.invokeLater(() -> {
+                if (error == null && userName.equals(input_userName.getText())) {
+                    usernameStatus.setText(status);
+                }
+            }));
         });
+        check.setRepeats(false);
 
-        // Confirm Button Event
-        confirm.addActionListener(new ActionListener() {
+        input_userName.getDocument().addDocumentListener(new DocumentListener() {
             @Override
-            public void actionPerformed(ActionEvent e) {
-                if (pageState.equals("signUp")){                    // Added logic that takes data according to what page the UserInterface is on (SignUp or LogIn)
-                    savedFirstName = input_firstName.getText();
-                    savedLastName = input_lastName.getText();
-                    savedDateOfBirth = input_dateOfBirth.getText();
-                    savedUserName = input_userName.getText();
-                    savedPassword = new String(input_password.getPassword());
-                    savedPassword = profile.hashPassword(savedPassword);
-                    // call writeuserdata
-                    dbHandler.writeUserData(savedFirstName, savedLastName, savedUserName, savedDateOfBirth, savedPassword);
-                    message.setText("Registration is successful!");
-                    panel.setBackground(Color.GREEN);
-                    System.out.println(savedFirstName);
-                    System.out.println(savedLastName);
-                    System.out.println(savedDateOfBirth);
-                    System.out.println(savedUserName);
-                    System.out.println(savedPassword);
-                }
-                else if (pageState.equals("logIn")){
-                    savedUserName = input_userName.getText();
-                    savedPassword = new String(input_password.getPassword());
-
-                    System.out.println(savedUserName);
-                    System.out.println(savedPassword);
-                    // call 
-                    if(dbHandler.authenticateUser(savedUserName, savedPassword)) {
-                        message.setText("Login is successful!");
-                        panel.setBackground(Color.GREEN);
-                    }
-                    else {
-                        message.setText("Invalid username or password");
-                        panel.setBackground(Color.RED);
-                    }
-                }
-                
-                // Clear Fields
-                input_firstName.setText("");
-                input_lastName.setText("");
-                input_dateOfBirth.setText("");
-                input_userName.setText("");
-                input_password.setText("");
+            public void insertUpdate(DocumentEvent e) {
+                check.restart();
             }
-        });
 
-        // Back Button Event
-        back.addActionListener(new ActionListener() {
             @Override
-            public void actionPerformed(ActionEvent e) {
-                landing_page.setTitle("Main Page");
-                panel.setBackground(Color.WHITE);
-                panel.removeAll();
-                inputPanel.removeAll();
-                panel.add(label);
-                panel.add(inputPanel);
-                inputPanel.add(message);
-                message.setText("Welcome!");
-                inputPanel.add(buttonField);
-
-                // Clear Fields
-                input_firstName.setText("");
-                input_lastName.setText("");
-                input_dateOfBirth.setText("");
-                input_userName.setText("");
-                input_password.setText("");
-
-                panel.revalidate();
-                panel.repaint();
+            public void removeUpdate(DocumentEvent e) {
+                check.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                check.restart();
             }
         });
+    }
 
-        // Add components to the main panel
-        panel.add(label);
-        panel.add(inputPanel);
+    private static String takenMessage(List<String> suggestions) {
+        return suggestions.isEmpty() ? "Username is taken" : "Taken, try " + String.join(", ", suggestions);
+    }
 
-        // Add components to the input panel
-        inputPanel.add(message);
-        inputPanel.add(buttonField);
+    private void showPage(String page, String title) {
+        landing_page.setTitle(title);
+        ((CardLayout) pages.getLayout()).show(pages, page);
+    }
+
+    /**
+     * Returns to the welcome page. Leaving a page logs the user out.
+     */
+    private void goBack(JLabel message, String title, Runnable clearFields) {
+        AuthService service = authService.getNow(null);
+        if (sessionToken != null && service != null) {
+            service.logout(sessionToken);
+            sessionToken = null;
+        }
+        panel.setBackground(Color.WHITE);
+        message.setText(title);
+        clearFields.run();
+        showPage(WELCOME_PAGE, "Main Page");
+    }
+
+    /**
+     * Runs a request once the user store is open. The password characters are cleared once the
+     * request has taken its copy, or if the store could not be opened.
+     */
+    private <T> CompletableFuture<T> withService(char[] password, Function<AuthService, CompletableFuture<T>> request) {
+        return authService.handle((service, error) -> {
+            try {
+                return error != null ? CompletableFuture.<T>failedFuture(error) : request.apply(service);
+            } finally {
+                Arrays.fill(password, '\0');
+            }
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Shows a busy state while a request is in flight, then its outcome.
+     * The database and hashing work runs in the background; the window stays responsive and keeps
+     * "Confirm" disabled until the result is applied back on the Event Dispatch Thread.
+     */
+    private void submit(CompletableFuture<String> request, String successMessage, JLabel message, Button confirm, Runnable clearFields) {
+        // Busy state while the request is in flight
+        confirm.setEnabled(false);
+        landing_page.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        message.setText("Please wait...");
+
+        // Clear Fields
+        clearFields.run();
+
+        // Apply the result on the Event Dispatch Thread
+        request.whenComplete((outcome, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                System.out.println(error);
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                message.setText(cause instanceof LoginThrottledException ? "Too many login attempts, please wait and try again"
+                        : cause instanceof RejectedExecutionException ? "Server is busy, please try again"
+                        : "Could not reach the user database");
+                panel.setBackground(Color.RED);
+            }
+            else {
+                message.setText(outcome);
+                panel.setBackground(outcome.equals(successMessage) ? Color.GREEN : Color.RED);
+            }
+            confirm.setEnabled(true);
+            landing_page.setCursor(Cursor.getDefaultCursor());
+        }));
+    }
+
+
+    // Components
+
+    private static JLabel titleLabel(String text) {
+        JLabel message = new JLabel();
+        message.setFont(new Font("Arial", Font.PLAIN, 24));
+        message.setText(text);
+        return message;
+    }
+
+    private static Button button(String text) {
+        Button button = new Button();
+        button.setLabel(text);
+        button.setPreferredSize(new Dimension(50, 25));
+        return button;
+    }
+
+    private static JTextField textField() {
+        JTextField field = new JTextField();
+        field.setColumns(15);
+        return field;
+    }
+
+    /**
+     * @return A panel laying out the components side by side, such as a label and its input field.
+     */
+    private static JPanel row(Component... components) {
+        JPanel row = new JPanel();
+        row.setLayout(new FlowLayout());
+        for (Component component : components) {
+            row.add(component);
+        }
+        return row;
+    }
+
+
+    // Startup
+
+    /**
+     * Decodes login.png and scales it to the logo size by repeated halving with bilinear filtering,
+     * which looks as smooth as {@code SCALE_SMOOTH} for a fraction of its cost.
+     */
+    private static BufferedImage loadLogo() {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(UserInterface.class.getResource("/login.png"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int width = image.getWidth(), height = image.getHeight();
+        do {
+            width = Math.max(LOGO_SIZE, width / 2);
+            height = Math.max(LOGO_SIZE, height / 2);
+            BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = scaled.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+            g.dispose();
+            image = scaled;
+        } while (width > LOGO_SIZE || height > LOGO_SIZE);
+        return image;
+    }
+
+    /**
+     * Reports the startup time, and exits after a training run once the store is open too.
+     */
+    private void firstFramePainted() {
+        long sinceMain = (System.nanoTime() - startNanos) / 1_000_000;
+        String sinceJvm = ProcessHandle.current().info().startInstant()
+                .map(start -> Duration.between(start, Instant.now()).toMillis() + " ms after JVM start, ")
+                .orElse("");
+        System.out.println("First frame shown " + sinceJvm + sinceMain + " ms after main");
+
+        if (Boolean.getBoolean("auth.ui.exitAfterStartup")) {
+            authService.handle((service, error) -> null).thenRun(() -> System.exit(0));
+        }
     }
 
 
@@ -289,4 +477,4 @@ public class UserInterface {
     public void show() {
         landing_page.setVisible(true);
     }
-}
\ No newline at end of file
+}
@@ -6,9 +6,7 @@
 // Imports
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.security.MessageDigest;
-import java.math.BigInteger;
-import java.security.NoSuchAlgorithmException;
+import java.time.format.DateTimeParseException;
 
 
 /**
@@ -21,12 +19,13 @@ public class UserProfile {
     // Attributes
     private LocalDateTime lastLogged;
     private boolean loggedIn;
-    private String profilePassword;
+    private StoredPassword profilePassword;   // parsed hash of the password
     private String userName;
-    private LocalDate dateOfBirth;
+    private LocalDate dateOfBirth;            // parsed from dateOfBirthText on first use
+    private String dateOfBirthText;           // as stored, YYYY-MM-DD
     private String lastName;
     private String firstName;
-    private MessageDigest md;
+    private long version;                     // the stored version this profile was loaded at, see UserStore#updateProfile
 
     /**
      * Print the user's profile information.
@@ -39,7 +38,7 @@ public class UserProfile {
     public void printProfile() {
         System.out.println("Username: " + userName);
         System.out.println("Name: " + userName);
-        System.out.println("D.O.B.: " + dateOfBirth);
+        System.out.println("D.O.B.: " + getDateOfBirth());
         System.out.println("Last logged in: " + lastLogged);
     }
 
@@ -51,7 +50,7 @@ public class UserProfile {
      * - firstName: "Default first"
      * - lastName: "Default last"
      * - dateOfBirth: January 1, 2023
-     * - profilePassword: Hashed value of "Default Password" using SHA-256
+     * - profilePassword: Hashed value of "Default Password" using SHA-256 (a placeholder, cheap to compute)
      * - userName: Concatenation of default first name and last name
      * - loggedIn: false
      * - lastLogged: Current date and time
@@ -62,12 +61,70 @@ public class UserProfile {
         firstName = "Default first";
         lastName = "Default last";
         dateOfBirth = LocalDate.of(2023, 01, 01);
-        profilePassword = hashText("Default Password");
+        dateOfBirthText = dateOfBirth.toString();
+        profilePassword = StoredPassword.parse(new Sha256PasswordHasher().hash("Default Password"));
         userName = firstName +  lastName;
         loggedIn = false;
         lastLogged = LocalDateTime.now();
     }
 
+    /**
+     * Constructor for a profile loaded from the database. No password is set, and any detail that
+     * was not loaded may be null.
+     *
+     * @param firstName The user's first name.
+     * @param lastName The user's last name.
+     * @param userName The user's username.
+     * @param dateOfBirth The user's date of birth.
+     */
+    public UserProfile(String firstName, String lastName, String userName, LocalDate dateOfBirth) {
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.userName = userName;
+        this.dateOfBirth = dateOfBirth;
+        this.dateOfBirthText = dateOfBirth == null ? null : dateOfBirth.toString();
+        this.loggedIn = false;
+    }
+
+    /**
+     * Constructor for a profile loaded from the store. The date of birth is kept as stored and only
+     * parsed when {@link #getDateOfBirth()} is first called, so listing or caching profiles that are
+     * never shown does not pay for it. No password is set, and any detail that was not loaded may be null.
+     *
+     * @param firstName The user's first name.
+     * @param lastName The user's last name.
+     * @param userName The user's username.
+     * @param dateOfBirth The user's date of birth (YYYY-MM-DD).
+     * @param lastLogged The time of the user's last successful login, or null if unknown.
+     * @param version The stored version of the profile.
+     */
+    public UserProfile(String firstName, String lastName, String userName, String dateOfBirth, LocalDateTime lastLogged, long version) {
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.userName = userName;
+        this.dateOfBirthText = dateOfBirth;
+        this.lastLogged = lastLogged;
+        this.version = version;
+        this.loggedIn = false;
+    }
+
+    /**
+     * Copy constructor. The copy can be changed without affecting the original.
+     *
+     * @param other The profile to copy.
+     */
+    public UserProfile(UserProfile other) {
+        this.firstName = other.firstName;
+        this.lastName = other.lastName;
+        this.userName = other.userName;
+        this.dateOfBirth = other.dateOfBirth;
+        this.dateOfBirthText = other.dateOfBirthText;
+        this.lastLogged = other.lastLogged;
+        this.version = other.version;
+        this.loggedIn = other.loggedIn;
+        this.profilePassword = other.profilePassword;
+    }
+
 
     // Methods
 
@@ -78,7 +135,7 @@ public class UserProfile {
      * @return True if the entered password matches the profile password; false otherwise.
      */
     public boolean checkPassword(String enteredPassword) {
-        if (hashText(enteredPassword).equals(profilePassword)){
+        if (profilePassword != null && PasswordHashing.getDefault().verify(enteredPassword.toCharArray(), profilePassword)){
             this.loggedIn = true;
             this.lastLogged = LocalDateTime.now();
             return true;
@@ -90,36 +147,27 @@ public class UserProfile {
 
 
     /**
-     * Hash the input text using SHA-256 algorithm.
-     * @param profilePassword The text to be hashed.
-     * @return The hashed text as a hexadecimal string.
-     */
-    private String hashText(String profilePassword) {
-        try {
-            md = MessageDigest.getInstance("SHA-256"); // Get an instance of the MessageDigest class with the SHA-256 algorithm
-            byte[] messageDigest = md.digest(profilePassword.getBytes()); // Compute the hash value of the input text and store it in the byte array messageDigest
-            BigInteger messageNumber = new BigInteger(1, messageDigest); // Convert the byte array messageDigest to a positive BigInteger with 1 sign bit
-            String hashText = messageNumber.toString(16); // Convert the BigInteger messageNumber to a hexadecimal string representation
-
-            // Ensure that the hexadecimal string has a length of 64 by adding leading zeros if necessary
-            while (hashText.length() < 64) {
-                hashText = "0" + hashText;
-            }
-            return hashText; // Return the hashed text
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e); // Throw a RuntimeException if the specified algorithm (SHA-256) is not available
-        }
+    * Hashes the input password with the current password hashing algorithm (salted PBKDF2).
+    * The hash runs on the shared hashing executor.
+    *
+    * @param password The plain text password to be hashed.
+    * @return The encoded hash, recording the algorithm, its parameters and the salt.
+    * @throws java.util.concurrent.RejectedExecutionException if the hashing executor is saturated.
+    */
+    public String hashPassword(String password) {
+        return PasswordHashing.getDefault().hash(password.toCharArray());
     }
 
-
     /**
-    * Hashes the input password using the SHA-256 algorithm.
+    * Hashes the input password with the current password hashing algorithm (salted PBKDF2).
+    * The caller may clear the array once this returns.
     *
-    * @param password The plain text password to be hashed.
-    * @return The hashed password as a hexadecimal string.
+    * @param password The plain text password characters to be hashed.
+    * @return The encoded hash, recording the algorithm, its parameters and the salt.
+    * @throws java.util.concurrent.RejectedExecutionException if the hashing executor is saturated.
     */
-    public String hashPassword(String password) {
-        return hashText(password); // returns the result of the private hashText method
+    public String hashPassword(char[] password) {
+        return PasswordHashing.getDefault().hash(password);
     }
 
 
@@ -137,10 +185,10 @@ public class UserProfile {
     /**
      * Get the profile password of the user.
      *
-     * @return The profile password as a String.
+     * @return The encoded profile password hash as a String, or null if no password is set.
      */
     public String getProfilePassword() {
-        return profilePassword;
+        return profilePassword == null ? null : profilePassword.encode();
     }
 
     /**
@@ -153,14 +201,40 @@ public class UserProfile {
     }
 
     /**
-     * Get the date of birth of the user profile.
+     * Get the date of birth of the user profile, parsing it the first time.
      *
-     * @return The date of birth as a LocalDate object.
+     * @return The date of birth as a LocalDate object, or null if it was not loaded or is not a valid date.
      */
     public LocalDate getDateOfBirth() {
+        if (dateOfBirth == null && dateOfBirthText != null) {
+            try {
+                dateOfBirth = LocalDate.parse(dateOfBirthText);
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
         return dateOfBirth;
     }
 
+    /**
+     * Get the date of birth of the user profile as stored, without parsing it.
+     *
+     * @return The date of birth in the format "YYYY-MM-DD", or null if it was not loaded.
+     */
+    public String getDateOfBirthText() {
+        return dateOfBirthText;
+    }
+
+    /**
+     * Get the stored version this profile was loaded at. An update only succeeds if the stored
+     * profile still has this version.
+     *
+     * @return The version, 0 for a profile that was never updated.
+     */
+    public long getVersion() {
+        return version;
+    }
+
     /**
      * Get the last name of the user.
      *
@@ -200,6 +274,16 @@ public class UserProfile {
      */
     public void setDateOfBirth(String date) {
         this.dateOfBirth = LocalDate.parse(date);
+        this.dateOfBirthText = dateOfBirth.toString();
+    }
+
+    /**
+     * Set the stored version of the profile, after it has been saved.
+     *
+     * @param version The version the store now holds.
+     */
+    public void setVersion(long version) {
+        this.version = version;
     }
 
     /**
@@ -211,13 +295,13 @@ public class UserProfile {
     }
 
     /**
-     * Set the profile password and hash it using the SHA-256 algorithm.
-     * The method takes the input profile password, computes its SHA-256 hash, and sets the hashed value as the profile password.
+     * Set the profile password and hash it using the current password hashing algorithm.
+     * The method takes the input profile password, computes its hash, and sets the hashed value as the profile password.
      *
      * @param profilePassword The plain text profile password to be set.
      */
     public void setProfilePassword(String profilePassword) {
-        this.profilePassword = hashText(profilePassword);
+        this.profilePassword = StoredPassword.parse(hashPassword(profilePassword));
     }
 
     /**
@@ -1,3 +1,6 @@
+-- The application applies this schema itself at startup (see SchemaMigrator) and records the
+-- applied version in the schema_version table. This script is the equivalent for a manual setup.
+
 
 CREATE TABLE Users (
 user_id INT AUTO_INCREMENT PRIMARY KEY,
@@ -5,9 +8,24 @@ Firstname VARCHAR(45) NOT NULL,
 Lastname VARCHAR(45) NOT NULL,
 Username VARCHAR(45) NOT NULL,
 DOB DATE NOT NULL,
-PasswordHash VARCHAR(64) NOT NULL
+PasswordHash VARCHAR(255) NOT NULL,
+LastLogged DATETIME(3) NULL,
+Version BIGINT NOT NULL DEFAULT 0,
+UNIQUE INDEX ux_users_username (Username)
 );
 
+-- One row per login attempt, written in batches in the background
+CREATE TABLE login_events (
+event_id BIGINT AUTO_INCREMENT PRIMARY KEY,
+Username VARCHAR(45) NOT NULL,
+occurred_at DATETIME(3) NOT NULL,
+success BOOLEAN NOT NULL,
+source VARCHAR(45) NULL,
+INDEX ix_login_events_username (Username, occurred_at)
+);
 
-
-
+-- Existing installs are upgraded automatically on startup:
+-- ALTER TABLE Users MODIFY PasswordHash VARCHAR(255) NOT NULL;   -- salted hashes are longer than 64 hex characters
+-- CREATE UNIQUE INDEX ux_users_username ON Users (Username);     -- login lookups by Username, no duplicate usernames
+-- ALTER TABLE Users ADD COLUMN LastLogged DATETIME(3) NULL;      -- last successful login, written in the background
+-- ALTER TABLE Users ADD COLUMN Version BIGINT NOT NULL DEFAULT 0; -- profile version, advanced by each profile update
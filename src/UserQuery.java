@@ -0,0 +1,135 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.time.LocalDate;
+import java.util.EnumSet;
+import java.util.Set;
+
+
+/**
+ * The UserQuery class describes which users to stream from the "users" table and which of their
+ * columns to load. Only the requested columns are selected, and the filters are applied by the
+ * database. By default every user is returned with every profile column.
+ */
+public class UserQuery {
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * The profile columns a query can load. The password hash is never part of a profile listing.
+     */
+    public enum Column {
+        FIRST_NAME("Firstname"),
+        LAST_NAME("Lastname"),
+        USERNAME("Username"),
+        DOB("DOB"),
+        LAST_LOGGED("LastLogged");
+
+        private final String sqlName;
+
+        Column(String sqlName) {
+            this.sqlName = sqlName;
+        }
+
+        /**
+         * @return The column name in the "users" table.
+         */
+        public String getSqlName() {
+            return sqlName;
+        }
+    }
+
+    // Attributes
+    private Set<Column> columns = EnumSet.allOf(Column.class);
+    private String usernamePrefix;
+    private LocalDate bornOnOrAfter;
+    private LocalDate bornOnOrBefore;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+
+    // Getters
+
+    /**
+     * @return The columns to load.
+     */
+    public Set<Column> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return The prefix usernames must start with, or null for any username.
+     */
+    public String getUsernamePrefix() {
+        return usernamePrefix;
+    }
+
+    /**
+     * @return The earliest date of birth to include, or null for no lower bound.
+     */
+    public LocalDate getBornOnOrAfter() {
+        return bornOnOrAfter;
+    }
+
+    /**
+     * @return The latest date of birth to include, or null for no upper bound.
+     */
+    public LocalDate getBornOnOrBefore() {
+        return bornOnOrBefore;
+    }
+
+    /**
+     * @return The number of rows fetched per database round trip.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+
+    // Setters
+
+    /**
+     * Set the columns to load. Columns not listed are left null in the returned profiles.
+     *
+     * @param columns The columns to load; must not be empty.
+     */
+    public void setColumns(Set<Column> columns) {
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("at least one column is required");
+        }
+        this.columns = EnumSet.copyOf(columns);
+    }
+
+    /**
+     * Set the prefix usernames must start with.
+     *
+     * @param usernamePrefix The prefix, or null for any username.
+     */
+    public void setUsernamePrefix(String usernamePrefix) {
+        this.usernamePrefix = usernamePrefix;
+    }
+
+    /**
+     * Set the date of birth range to include. Either bound may be null.
+     *
+     * @param bornOnOrAfter The earliest date of birth, inclusive.
+     * @param bornOnOrBefore The latest date of birth, inclusive.
+     */
+    public void setDateOfBirthRange(LocalDate bornOnOrAfter, LocalDate bornOnOrBefore) {
+        this.bornOnOrAfter = bornOnOrAfter;
+        this.bornOnOrBefore = bornOnOrBefore;
+    }
+
+    /**
+     * Set the number of rows fetched per database round trip.
+     *
+     * @param pageSize The page size; must be positive.
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        this.pageSize = pageSize;
+    }
+}
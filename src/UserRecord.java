@@ -0,0 +1,97 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+
+/**
+ * The UserRecord class is one row of the "users" table as written by registration: the user's
+ * details and their encoded password hash.
+ */
+public class UserRecord {
+
+    // Attributes
+    private final String firstName;
+    private final String lastName;
+    private final String userName;
+    private final String dateOfBirth;
+    private final String passwordHash;
+    private final long version;
+
+
+    // Constructor
+
+    /**
+     * Creates a user record.
+     * @param firstName The user's first name.
+     * @param lastName The user's last name.
+     * @param userName The user's username.
+     * @param dateOfBirth The user's date of birth (YYYY-MM-DD).
+     * @param passwordHash The encoded password hash.
+     */
+    public UserRecord(String firstName, String lastName, String userName, String dateOfBirth, String passwordHash) {
+        this(firstName, lastName, userName, dateOfBirth, passwordHash, 0);
+    }
+
+    /**
+     * Creates a user record that keeps the profile version of an existing user, for copying users between stores.
+     * @param firstName The user's first name.
+     * @param lastName The user's last name.
+     * @param userName The user's username.
+     * @param dateOfBirth The user's date of birth (YYYY-MM-DD).
+     * @param passwordHash The encoded password hash.
+     * @param version The profile version, 0 for a new user.
+     */
+    public UserRecord(String firstName, String lastName, String userName, String dateOfBirth, String passwordHash, long version) {
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.userName = userName;
+        this.dateOfBirth = dateOfBirth;
+        this.passwordHash = passwordHash;
+        this.version = version;
+    }
+
+
+    // Getters
+
+    /**
+     * @return The user's first name.
+     */
+    public String getFirstName() {
+        return firstName;
+    }
+
+    /**
+     * @return The user's last name.
+     */
+    public String getLastName() {
+        return lastName;
+    }
+
+    /**
+     * @return The user's username.
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * @return The user's date of birth (YYYY-MM-DD).
+     */
+    public String getDateOfBirth() {
+        return dateOfBirth;
+    }
+
+    /**
+     * @return The encoded password hash.
+     */
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    /**
+     * @return The profile version, 0 for a new user.
+     */
+    public long getVersion() {
+        return version;
+    }
+}
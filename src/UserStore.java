@@ -0,0 +1,141 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+
+/**
+ * The UserStore interface is where registered users and their password hashes are kept.
+ * {@link UserDatabaseHandler} adds credential caching, hashing and background execution on top of it,
+ * so any store can back the application:
+ * - {@link JdbcUserStore} keeps users in the MySQL "users" table.
+ * - {@link EmbeddedUserStore} keeps them in a local append-only file, for single-node installs without a database server.
+ */
+public interface UserStore extends AutoCloseable {
+
+    /** Returned by {@link #getCredentialStamp()} by a store that cannot tell when credentials change. */
+    long UNKNOWN_CREDENTIAL_STAMP = -1;
+
+    /**
+     * Adds a new user.
+     * @param user The user to add, with an already hashed password.
+     * @return SUCCESS, or DUPLICATE_USERNAME if the username is already registered; nothing is written then.
+     * @throws UserStoreException if the store cannot be reached or rejects the user for another reason.
+     */
+    RegistrationResult insertUser(UserRecord user) throws UserStoreException;
+
+    /**
+     * Adds many users at once. Either every user is added or, on failure, none is.
+     * @param users The users to add, with already hashed passwords.
+     * @throws UserStoreException if any user cannot be added, including a duplicate username.
+     */
+    void insertUsers(List<UserRecord> users) throws UserStoreException;
+
+    /**
+     * Looks up a user's encoded password hash.
+     * @param username The username to look up.
+     * @return The encoded password hash, or null if the username is not registered.
+     * @throws UserStoreException if the store cannot be reached.
+     */
+    String findPasswordHash(String username) throws UserStoreException;
+
+    /**
+     * Looks up the encoded password hashes of many users at once, with as few round trips as the store allows.
+     * @param usernames The usernames to look up.
+     * @return The encoded password hash of each registered username, keyed by the username as given;
+     *         usernames that are not registered are left out.
+     * @throws UserStoreException if the store cannot be reached.
+     */
+    Map<String, String> findPasswordHashes(Collection<String> usernames) throws UserStoreException;
+
+    /**
+     * Loads one user's profile.
+     * @param username The user to load.
+     * @param columns The columns to load. The profile's version is always loaded.
+     * @return The profile, with the columns that were not requested null, or null if the username is not registered.
+     * @throws UserStoreException if the store cannot be reached.
+     */
+    UserProfile findProfile(String username, Set<UserQuery.Column> columns) throws UserStoreException;
+
+    /**
+     * Saves a user's names and date of birth, unless the profile was changed since it was loaded.
+     * The stored version must still be the profile's {@link UserProfile#getVersion()}; it is then
+     * advanced by one. This is what keeps two concurrent edits from silently overwriting each other.
+     * Details that are null, such as the columns a projected profile did not load, are left as stored.
+     * @param profile The username to update, the new details, and the version they were loaded at.
+     * @return SUCCESS, VERSION_CONFLICT if the stored version differs, or NOT_FOUND.
+     * @throws UserStoreException if the store cannot be reached.
+     */
+    ProfileUpdateResult updateProfile(UserProfile profile) throws UserStoreException;
+
+    /**
+     * Replaces a user's encoded password hash, only if it is still the expected one, so a password
+     * change cannot undo another that happened after the current password was checked.
+     * @param username The user whose password hash changes.
+     * @param expectedHash The encoded password hash the change was checked against.
+     * @param passwordHash The new encoded password hash.
+     * @return True if the user exists with the expected hash and was updated.
+     * @throws UserStoreException if the store cannot be reached.
+     */
+    boolean replacePasswordHash(String username, String expectedHash, String passwordHash) throws UserStoreException;
+
+    /**
+     * Replaces a user's encoded password hash.
+     * @param username The user whose password hash changes.
+     * @param passwordHash The new encoded password hash.
+     * @return True if the user exists and was updated.
+     * @throws UserStoreException if the store cannot be reached.
+     */
+    boolean updatePasswordHash(String username, String passwordHash) throws UserStoreException;
+
+    /**
+     * Removes a user.
+     * @param username The user to remove.
+     * @return True if the user existed and was removed.
+     * @throws UserStoreException if the store cannot be reached.
+     */
+    boolean deleteUser(String username) throws UserStoreException;
+
+    /**
+     * Records login attempts, and updates the last login time of each user who logged in successfully.
+     * Called by {@link LoginAuditWriter} with batches of events, off the login path.
+     * @param events The attempts, oldest first.
+     * @throws UserStoreException if the events cannot be written; none of them should be considered written.
+     */
+    void recordLogins(List<LoginEvent> events) throws UserStoreException;
+
+    /**
+     * Streams the users matching a query, in registration order.
+     * @param query The columns to load and the filters to apply.
+     * @return A lazy stream of profiles. Columns that were not requested are null.
+     * @throws RuntimeException wrapping the cause if the users cannot be read.
+     */
+    Stream<UserProfile> streamUsers(UserQuery query);
+
+    /**
+     * @return How many requests the store serves well at the same time; used to size request limits.
+     */
+    int getConcurrencyHint();
+
+    /**
+     * Returns a stamp of every user's credential: it changes whenever a user is added or deleted
+     * or a password hash is written, by this process or any other. Caches that outlive the process,
+     * such as {@link OffHeapCredentialIndex}, compare it to tell whether they are still valid.
+     * @return The stamp, or {@link #UNKNOWN_CREDENTIAL_STAMP} if the store cannot tell.
+     */
+    default long getCredentialStamp() {
+        return UNKNOWN_CREDENTIAL_STAMP;
+    }
+
+    /**
+     * Releases the store's connections, files and threads.
+     */
+    @Override
+    void close();
+}
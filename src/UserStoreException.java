@@ -0,0 +1,29 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+
+/**
+ * The UserStoreException class reports that a {@link UserStore} could not complete an operation,
+ * for example because the database is unreachable or the store's file cannot be written.
+ * The underlying SQLException or IOException is kept as the cause.
+ */
+public class UserStoreException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message What failed.
+     * @param cause The exception raised by the store's backend.
+     */
+    public UserStoreException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * @param message What failed.
+     */
+    public UserStoreException(String message) {
+        super(message);
+    }
+}
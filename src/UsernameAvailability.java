@@ -0,0 +1,16 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+
+/**
+ * The UsernameAvailability enum is the answer of the in-memory username index to "can this username be registered?".
+ */
+public enum UsernameAvailability {
+    /** No registered username matches; a registration may still lose a race for it. */
+    AVAILABLE,
+    /** A registered username matches, ignoring case and accents. */
+    TAKEN,
+    /** The index is not loaded yet or turned off; only registering tells. */
+    UNKNOWN
+}
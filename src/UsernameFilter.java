@@ -0,0 +1,344 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+
+/**
+ * The UsernameFilter class is an in-memory Bloom filter of every registered username. It answers
+ * "might this username be registered?" in well under a microsecond, without the store. A "no" is
+ * certain, so a login for that username can be refused without hashing the password or querying
+ * the store; a "yes" is wrong for a small, configurable share of unknown usernames, which are
+ * then checked as usual. Most credential stuffing and enumeration traffic uses usernames that were
+ * never registered, so this removes most of its cost.
+ *
+ * The filter is built in the background when it is created, by streaming the usernames from the
+ * store, and rebuilt periodically so it stays accurate and is resized as the user base grows.
+ * Until the first build finishes every username "might" be registered. New registrations are
+ * added before they are written, and a rebuild waits for registrations in progress, so a
+ * registered username is never missing from the filter.
+ *
+ * Only registrations made through this process are added at once. A user written to the store
+ * any other way, such as by another application instance sharing the database, is refused login
+ * until the next rebuild. The filter therefore suits a store only this process writes to, like
+ * an {@link EmbeddedUserStore}; over a shared database it needs a short rebuild interval.
+ *
+ * Usernames are compared ignoring case and accents, like the "users" table's default collation,
+ * so every spelling the store would match is let through.
+ *
+ * Refused logins are answered faster than logins for existing users, so unlike the rest of the
+ * login path, the filter lets response times reveal whether a username exists.
+ */
+public class UsernameFilter {
+
+    public static final long DEFAULT_EXPECTED_USERS = 1_000_000;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    public static final long DEFAULT_REBUILD_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final long SHARED_STORE_REBUILD_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1); // other writers' users wait this long at most
+    private static final double GROWTH = 2.0; // a rebuilt filter has room for twice the current users
+
+    /**
+     * One generation of the filter: a fixed-size bit array and the number of bits set per username.
+     * Bits are set with compare-and-set, so it can be read and added to from any thread.
+     */
+    private static final class Bits {
+        private final AtomicLongArray words;
+        private final long expectedUsers;
+        private final long bitCount;
+        private final int hashCount;
+        private final LongAdder added = new LongAdder();
+
+        private Bits(long expectedUsers, double falsePositiveRate) {
+            // Optimal size and number of hash functions for the expected users and false positive rate
+            long bits = (long) Math.ceil(-expectedUsers * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + 63) / 64));
+            this.words = new AtomicLongArray(wordCount);
+            this.expectedUsers = expectedUsers;
+            this.bitCount = wordCount * 64L;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedUsers * Math.log(2)));
+        }
+
+        private void add(long hash) {
+            long h1 = hash;
+            long h2 = (hash >>> 32) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value;
+                while (((value = words.get(word)) & mask) == 0 && !words.compareAndSet(word, value, value | mask)) {
+                    // another bit of this word was set at the same time, try again
+                }
+            }
+            added.increment();
+        }
+
+        private boolean mightContain(long hash) {
+            // The 64-bit hash of the folded username (see Usernames#hash) supplies the two base hashes
+            long h1 = hash;
+            long h2 = (hash >>> 32) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The false positive rate expected with the usernames added so far.
+         */
+        private double falsePositiveRate() {
+            return Math.pow(1 - Math.exp(-hashCount * (double) added.sum() / bitCount), hashCount);
+        }
+    }
+
+    // Attributes
+    private final UserStore store;
+    private final long expectedUsers;
+    private final double falsePositiveRate;
+    private volatile Bits current; // null until the first build finishes
+    private volatile Bits pending; // the generation being built, also receives new usernames
+    private final ReentrantReadWriteLock rebuildLock = new ReentrantReadWriteLock(); // read: adding, write: starting a rebuild
+    private final ScheduledExecutorService rebuilder;
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile long lastBuildMillis;
+
+
+    // Constructors
+
+    /**
+     * Creates a filter with the default size, false positive rate and rebuild interval, and starts building it.
+     * @param store The store whose usernames are filtered.
+     */
+    public UsernameFilter(UserStore store) {
+        this(store, DEFAULT_EXPECTED_USERS, DEFAULT_FALSE_POSITIVE_RATE, DEFAULT_REBUILD_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates a filter and starts building it.
+     * @param store The store whose usernames are filtered.
+     * @param expectedUsers The number of users to size the filter for. It grows past this on rebuilds if needed.
+     * @param falsePositiveRate The share of unknown usernames the filter may let through, such as 0.01.
+     * @param rebuildIntervalMillis The time between rebuilds.
+     */
+    public UsernameFilter(UserStore store, long expectedUsers, double falsePositiveRate, long rebuildIntervalMillis) {
+        if (expectedUsers <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1 || rebuildIntervalMillis <= 0) {
+            throw new IllegalArgumentException("expectedUsers and rebuildIntervalMillis must be positive, falsePositiveRate between 0 and 1");
+        }
+        this.store = store;
+        this.expectedUsers = expectedUsers;
+        this.falsePositiveRate = falsePositiveRate;
+
+        rebuilder = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "username-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebuilder.scheduleWithFixedDelay(this::rebuild, 0, rebuildIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    // Methods
+
+    /**
+     * Tells whether a username might be registered.
+     * @param username The username.
+     * @return False only if the username is certainly not registered; true if it might be, or the filter is not built yet.
+     */
+    public boolean mightContain(String username) {
+        Bits bits = current;
+        if (bits == null) {
+            return true;
+        }
+        checked.increment();
+        if (bits.mightContain(Usernames.hash(username))) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Adds a username that is about to be written to the store. Call {@link #endAdd()} once the
+     * write has finished, whether or not it succeeded; a rebuild does not start in between.
+     * @param username The new username.
+     */
+    public void beginAdd(String username) {
+        rebuildLock.readLock().lock();
+        addToFilters(Usernames.hash(username));
+    }
+
+    /**
+     * Adds usernames that are about to be written to the store. Call {@link #endAdd()} once the
+     * write has finished, whether or not it succeeded.
+     * @param usernames The new usernames.
+     */
+    public void beginAdd(Collection<String> usernames) {
+        rebuildLock.readLock().lock();
+        for (String username : usernames) {
+            addToFilters(Usernames.hash(username));
+        }
+    }
+
+    /**
+     * Ends an add started with beginAdd, letting a waiting rebuild start.
+     */
+    public void endAdd() {
+        rebuildLock.readLock().unlock();
+    }
+
+    private void addToFilters(long hash) {
+        Bits bits = current;
+        if (bits != null) {
+            bits.add(hash);
+        }
+        Bits building = pending;
+        if (building != null) {
+            building.add(hash);
+        }
+    }
+
+    /**
+     * Builds a new generation from the store's usernames and swaps it in. Registrations in progress
+     * are waited for first, so they are in the store when it is read; later ones are added to the
+     * new generation directly. If the store cannot be read, the current generation is kept.
+     */
+    public synchronized void rebuild() {
+        long start = System.nanoTime();
+        Bits previous = current;
+        long size = previous == null ? expectedUsers : Math.max(expectedUsers, (long) (previous.added.sum() * GROWTH));
+        Bits building = new Bits(size, falsePositiveRate);
+
+        rebuildLock.writeLock().lock();
+        try {
+            pending = building;
+        }
+        finally {
+            rebuildLock.writeLock().unlock();
+        }
+
+        UserQuery query = new UserQuery();
+        query.setColumns(EnumSet.of(UserQuery.Column.USERNAME));
+        try (Stream<UserProfile> users = store.streamUsers(query)) {
+            users.forEach(user -> building.add(Usernames.hash(user.getUserName())));
+            current = building;
+            lastBuildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (building.added.sum() > building.expectedUsers && !rebuilder.isShutdown()) {
+                rebuilder.execute(this::rebuild); // more users than it was sized for, resize now rather than in an interval
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Could not build the username filter: " + e);
+        }
+        finally {
+            pending = null;
+        }
+    }
+
+    /**
+     * Stops the periodic rebuilds.
+     */
+    public void shutdown() {
+        rebuilder.shutdownNow();
+    }
+
+
+    // Getters
+
+    /**
+     * @return True once the first build has finished and misses are refused.
+     */
+    public boolean isReady() {
+        return current != null;
+    }
+
+    /**
+     * @return The size of the current generation in bits, or 0 before the first build.
+     */
+    public long getBitCount() {
+        Bits bits = current;
+        return bits == null ? 0 : bits.bitCount;
+    }
+
+    /**
+     * @return The memory used by the current generation in bytes.
+     */
+    public long getMemoryBytes() {
+        return getBitCount() / 8;
+    }
+
+    /**
+     * @return The number of bits set per username, or 0 before the first build.
+     */
+    public int getHashCount() {
+        Bits bits = current;
+        return bits == null ? 0 : bits.hashCount;
+    }
+
+    /**
+     * @return The number of usernames added to the current generation, including registrations that failed.
+     */
+    public long getUsernameCount() {
+        Bits bits = current;
+        return bits == null ? 0 : bits.added.sum();
+    }
+
+    /**
+     * @return The configured false positive rate.
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * @return The false positive rate expected now, given how full the current generation is.
+     */
+    public double getExpectedFalsePositiveRate() {
+        Bits bits = current;
+        return bits == null ? 1.0 : bits.falsePositiveRate();
+    }
+
+    /**
+     * @return The number of usernames checked since the first build.
+     */
+    public long getCheckedCount() {
+        return checked.sum();
+    }
+
+    /**
+     * @return The number of usernames found certainly not registered.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return How long the last successful build took, in milliseconds.
+     */
+    public long getLastBuildMillis() {
+        return lastBuildMillis;
+    }
+
+    /**
+     * @return The size, fill and hit counts of the filter.
+     */
+    @Override
+    public String toString() {
+        return String.format("UsernameFilter[usernames=%d, bits=%d (%d KiB), hashes=%d, fpp=%.4f (target %.4f), checked=%d, rejected=%d]",
+                getUsernameCount(), getBitCount(), getMemoryBytes() / 1024, getHashCount(),
+                getExpectedFalsePositiveRate(), falsePositiveRate, getCheckedCount(), getRejectedCount());
+    }
+}
@@ -0,0 +1,382 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+
+/**
+ * The UsernameIndex class keeps every registered username in memory, sorted, so sign-up forms can
+ * tell whether a username is free, and suggest free ones, in about a microsecond and without the store.
+ *
+ * The usernames are folded the way the store's collation compares them (see {@link Usernames#fold})
+ * and packed into one char array with an offset per username, a few bytes per user beyond the
+ * characters themselves. New registrations go into a small sorted delta, which is merged into the
+ * packed array once it grows past the square root of the user count. Both are immutable and replaced
+ * as a whole (copy on write), so lookups take no lock and see either the old or the new usernames.
+ *
+ * The index is loaded in the background when it is created, by streaming the usernames from the
+ * store, and reloaded periodically to pick up users registered by other application instances.
+ * Until the first load finishes every username is {@link UsernameAvailability#UNKNOWN}.
+ */
+public class UsernameIndex {
+
+    public static final long DEFAULT_RELOAD_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final int MAX_USERNAME_LENGTH = 45; // Users.Username is a VARCHAR(45)
+    private static final int MIN_DELTA_MERGE = 256;
+    private static final int SEQUENTIAL_SUGGESTIONS = 99; // name1 to name99 are tried in order, then random numbers
+
+    /**
+     * One immutable generation of the index: the packed sorted usernames and the sorted delta of
+     * usernames added since they were packed. No username is in both.
+     */
+    private static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(new char[0], new int[] {0}, new String[0]);
+
+        private final char[] chars;   // every packed username, back to back
+        private final int[] offsets;  // username i is chars[offsets[i]] up to chars[offsets[i + 1]]
+        private final String[] delta;
+
+        private Snapshot(char[] chars, int[] offsets, String[] delta) {
+            this.chars = chars;
+            this.offsets = offsets;
+            this.delta = delta;
+        }
+
+        private int packedSize() {
+            return offsets.length - 1;
+        }
+
+        private int size() {
+            return packedSize() + delta.length;
+        }
+
+        private boolean contains(String folded) {
+            return Arrays.binarySearch(delta, folded) >= 0 || packedIndexOf(folded) >= 0;
+        }
+
+        private int packedIndexOf(String folded) {
+            int low = 0, high = packedSize() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareAt(mid, folded);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Compares packed username i with a string, in the order of {@link String#compareTo}.
+         */
+        private int compareAt(int i, String key) {
+            int start = offsets[i], length = offsets[i + 1] - start;
+            int common = Math.min(length, key.length());
+            for (int k = 0; k < common; k++) {
+                int diff = chars[start + k] - key.charAt(k);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return length - key.length();
+        }
+
+        /**
+         * @return A snapshot with the usernames of this one and the sorted extra ones all packed.
+         */
+        private Snapshot packedWith(String[] extra) {
+            int extraChars = 0;
+            for (String name : extra) {
+                extraChars += name.length();
+            }
+            char[] mergedChars = new char[chars.length + extraChars];
+            int[] mergedOffsets = new int[packedSize() + extra.length + 1];
+            int count = 0, at = 0, i = 0, j = 0;
+            while (i < packedSize() || j < extra.length) {
+                int cmp = i == packedSize() ? 1 : j == extra.length ? -1 : compareAt(i, extra[j]);
+                if (cmp <= 0) {
+                    int length = offsets[i + 1] - offsets[i];
+                    System.arraycopy(chars, offsets[i], mergedChars, at, length);
+                    at += length;
+                    i++;
+                    if (cmp == 0) {
+                        j++; // already packed
+                    }
+                } else {
+                    extra[j].getChars(0, extra[j].length(), mergedChars, at);
+                    at += extra[j].length();
+                    j++;
+                }
+                mergedOffsets[++count] = at;
+            }
+            return new Snapshot(Arrays.copyOf(mergedChars, at), Arrays.copyOf(mergedOffsets, count + 1), new String[0]);
+        }
+    }
+
+    // Attributes
+    private final UserStore store;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private volatile boolean ready;
+    private List<String> addedWhileLoading; // usernames added during a load, merged in at its end; guarded by this
+    private final Object loading = new Object(); // held by the load in progress
+    private final ScheduledExecutorService reloader;
+    private final LongAdder checked = new LongAdder();
+    private volatile long lastLoadMillis;
+
+
+    // Constructors
+
+    /**
+     * Creates an index reloaded every hour, and starts loading it.
+     * @param store The store whose usernames are indexed.
+     */
+    public UsernameIndex(UserStore store) {
+        this(store, DEFAULT_RELOAD_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates an index and starts loading it.
+     * @param store The store whose usernames are indexed.
+     * @param reloadIntervalMillis The time between reloads.
+     */
+    public UsernameIndex(UserStore store, long reloadIntervalMillis) {
+        if (reloadIntervalMillis <= 0) {
+            throw new IllegalArgumentException("reloadIntervalMillis must be positive");
+        }
+        this.store = store;
+
+        reloader = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "username-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloader.scheduleWithFixedDelay(this::reload, 0, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    // Methods
+
+    /**
+     * Tells whether a username can be registered.
+     * @param username The username, as typed.
+     * @return TAKEN if a registered username matches ignoring case and accents, AVAILABLE if none does,
+     *         or UNKNOWN before the first load finishes.
+     */
+    public UsernameAvailability check(String username) {
+        if (!ready) {
+            return UsernameAvailability.UNKNOWN;
+        }
+        checked.increment();
+        return snapshot.contains(Usernames.fold(username)) ? UsernameAvailability.TAKEN : UsernameAvailability.AVAILABLE;
+    }
+
+    /**
+     * Suggests free usernames close to a taken one: its trailing digits replaced by small numbers
+     * first, then by random numbers up to 9999, shortened if needed to fit the Username column.
+     * @param username The username, as typed.
+     * @param count The number of suggestions wanted.
+     * @return Up to count free usernames, spelled like the given one; empty before the first load finishes.
+     */
+    public List<String> suggest(String username, int count) {
+        List<String> suggestions = new ArrayList<>(count);
+        int end = username.length();
+        while (end > 0 && username.charAt(end - 1) == ' ') {
+            end--;
+        }
+        int stemEnd = end;
+        while (stemEnd > 0 && Character.isDigit(username.charAt(stemEnd - 1))) {
+            stemEnd--;
+        }
+        String stem = username.substring(0, stemEnd == 0 ? end : stemEnd);
+        if (!ready || stem.isEmpty()) {
+            return suggestions;
+        }
+
+        Snapshot current = snapshot;
+        for (int n = 1; n <= SEQUENTIAL_SUGGESTIONS && suggestions.size() < count; n++) {
+            suggestIfFree(current, stem, n, suggestions);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int tries = 0; tries < 100 * count && suggestions.size() < count; tries++) {
+            suggestIfFree(current, stem, random.nextInt(SEQUENTIAL_SUGGESTIONS + 1, 10_000), suggestions);
+        }
+        return suggestions;
+    }
+
+    private static void suggestIfFree(Snapshot current, String stem, int number, List<String> suggestions) {
+        String suffix = Integer.toString(number);
+        int stemLength = Math.min(stem.length(), MAX_USERNAME_LENGTH - suffix.length());
+        if (stemLength < stem.length() && Character.isHighSurrogate(stem.charAt(stemLength - 1))) {
+            stemLength--; // do not split a character
+        }
+        String candidate = stem.substring(0, stemLength) + suffix;
+        if (!current.contains(Usernames.fold(candidate)) && !suggestions.contains(candidate)) {
+            suggestions.add(candidate);
+        }
+    }
+
+    /**
+     * Adds a username that is now registered in the store.
+     * @param username The registered username.
+     */
+    public void add(String username) {
+        addAll(List.of(username));
+    }
+
+    /**
+     * Adds usernames that are now registered in the store.
+     * @param usernames The registered usernames.
+     */
+    public synchronized void addAll(Collection<String> usernames) {
+        Snapshot current = snapshot;
+        List<String> added = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            String folded = Usernames.fold(username);
+            if (!current.contains(folded)) {
+                added.add(folded);
+            }
+        }
+        if (addedWhileLoading != null) {
+            addedWhileLoading.addAll(added);
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+
+        String[] delta = new String[current.delta.length + added.size()];
+        System.arraycopy(current.delta, 0, delta, 0, current.delta.length);
+        for (int i = 0; i < added.size(); i++) {
+            delta[current.delta.length + i] = added.get(i);
+        }
+        delta = sortedDistinct(delta);
+        if (delta.length > Math.max(MIN_DELTA_MERGE, (int) Math.sqrt(current.packedSize()))) {
+            snapshot = current.packedWith(delta); // the merge copies every username, so it is done rarely
+        } else {
+            snapshot = new Snapshot(current.chars, current.offsets, delta);
+        }
+    }
+
+    /**
+     * Loads every username from the store and swaps the result in. Usernames added meanwhile are
+     * kept. If the store cannot be read, the current usernames are kept.
+     */
+    public void reload() {
+        synchronized (loading) {
+            load();
+        }
+    }
+
+    private void load() {
+        long start = System.nanoTime();
+        synchronized (this) {
+            if (addedWhileLoading == null) {
+                addedWhileLoading = new ArrayList<>();
+            }
+        }
+
+        UserQuery query = new UserQuery();
+        query.setColumns(EnumSet.of(UserQuery.Column.USERNAME));
+        String[] loaded;
+        try (Stream<UserProfile> users = store.streamUsers(query)) {
+            loaded = sortedDistinct(users.map(user -> Usernames.fold(user.getUserName())).toArray(String[]::new));
+        }
+        catch (RuntimeException e) {
+            System.out.println("Could not load the username index: " + e);
+            synchronized (this) {
+                addedWhileLoading = null;
+            }
+            return;
+        }
+
+        Snapshot fresh = Snapshot.EMPTY.packedWith(loaded);
+        synchronized (this) {
+            String[] added = sortedDistinct(addedWhileLoading.toArray(new String[0]));
+            addedWhileLoading = null;
+            snapshot = fresh.packedWith(added);
+            ready = true;
+        }
+        lastLoadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static String[] sortedDistinct(String[] names) {
+        Arrays.sort(names);
+        int count = 0;
+        for (String name : names) {
+            if (count == 0 || !name.equals(names[count - 1])) {
+                names[count++] = name;
+            }
+        }
+        return count == names.length ? names : Arrays.copyOf(names, count);
+    }
+
+    /**
+     * Stops the periodic reloads.
+     */
+    public void shutdown() {
+        reloader.shutdownNow();
+    }
+
+
+    // Getters
+
+    /**
+     * @return True once the first load has finished and availability is known.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return The number of usernames indexed, folded so spellings the store treats as equal count once.
+     */
+    public int size() {
+        return snapshot.size();
+    }
+
+    /**
+     * @return The memory used by the packed usernames and their offsets in bytes, not counting the delta.
+     */
+    public long getMemoryBytes() {
+        Snapshot current = snapshot;
+        return current.chars.length * 2L + current.offsets.length * 4L;
+    }
+
+    /**
+     * @return The number of availability checks answered since the first load.
+     */
+    public long getCheckedCount() {
+        return checked.sum();
+    }
+
+    /**
+     * @return How long the last successful load took, in milliseconds.
+     */
+    public long getLastLoadMillis() {
+        return lastLoadMillis;
+    }
+
+    /**
+     * @return The size and use of the index.
+     */
+    @Override
+    public String toString() {
+        return String.format("UsernameIndex[usernames=%d, packed=%d KiB, checked=%d, lastLoad=%d ms]",
+                size(), getMemoryBytes() / 1024, getCheckedCount(), getLastLoadMillis());
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * @author Akshun Kalra, October 17, 2023
+ */
+
+// Imports
+import java.text.Normalizer;
+import java.util.Locale;
+
+
+/**
+ * The Usernames class compares usernames the way the store's collation does (MySQL's default
+ * collation): trailing spaces, case and accents do not count, so "alice" and "Alice " are one
+ * user. Everything keyed by username (the caches, the embedded store, the throttle, the username
+ * filter and index, and the shard ring) folds or hashes it here, so they all agree.
+ */
+public final class Usernames {
+
+    private Usernames() {
+    }
+
+    /**
+     * Folds a username the way the store's collation compares usernames: trailing spaces, case and accents do not count.
+     * @param username The username as entered.
+     * @return The folded username; equal for every spelling the store treats as the same user.
+     */
+    public static String fold(String username) {
+        int end = username.length();
+        while (end > 0 && username.charAt(end - 1) == ' ') {
+            end--; // trailing spaces do not count in the collation
+        }
+        String trimmed = username.substring(0, end);
+        for (int i = 0; i < trimmed.length(); i++) {
+            if (trimmed.charAt(i) >= 128) {
+                String decomposed = Normalizer.normalize(trimmed, Normalizer.Form.NFKD).replaceAll("\\p{M}", "");
+                return decomposed.toLowerCase(Locale.ROOT).replace("\u00df", "ss");
+            }
+        }
+        return trimmed.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Hashes a folded username, so spellings the store treats as equal hash alike. Used for the
+     * username filter's bit positions and for placing users on the shard ring, so it must not change.
+     * @param username The username as entered.
+     * @return A well-mixed 64-bit hash of the folded username.
+     */
+    public static long hash(String username) {
+        String folded = fold(username);
+        long h = 0xcbf29ce484222325L; // FNV-1a over the UTF-16 chars
+        for (int i = 0; i < folded.length(); i++) {
+            h = (h ^ folded.charAt(i)) * 0x100000001b3L;
+        }
+        // Final mix, so every bit depends on every char
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}